@@ -0,0 +1,99 @@
+import bench.Workloads;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Ellipse2D;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Runs the benchmarked operations on a real Canvas and Gallery without a window.
+ * Operations that can start a background redraw run on the event thread, like they do in the program,
+ * so the redraw is swapped in between them rather than during them
+ */
+public class CanvasWorkloads implements Workloads {
+    private Canvas canvas;                                          //canvas holding the generated design
+    private Gallery gallery;                                        //gallery images are saved to
+    private Path folder;                                            //temporary folder for the design file and gallery
+    private Circle brush;                                           //Circle drawn by drawSectors
+    private int lastStart, lastEnd;                                 //Circles of the last stroke
+
+    @Override
+    public void setUp(long seed, int dabs, int lineCount, boolean reflected, String renderMode) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        folder = Files.createTempDirectory("doily-bench");
+        System.setProperty("doily.gallery", folder.resolve("gallery").toString());
+        Path file = folder.resolve("design" + DesignFile.EXTENSION);
+        DesignFile.write(DesignGenerator.generate(seed, dabs, lineCount, reflected), file);
+
+        SwingUtilities.invokeAndWait(() -> {
+            canvas = new Canvas(null);
+            gallery = new Gallery(null);
+            try {
+                canvas.setRenderMode(RenderMode.valueOf(renderMode));
+                canvas.open(file);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        StrokeStore strokes = canvas.getDesign().getStrokes();
+        lastStart = strokes.strokeStart(strokes.strokeCount() - 1);
+        lastEnd = strokes.strokeEnd(strokes.strokeCount() - 1);
+        brush = new Circle(new Ellipse2D.Double(295.5, 195.5, 9, 9), Color.black, reflected);
+    }
+
+    @Override
+    public void drawSectors(){
+        canvas.drawSectors(brush);
+    }
+
+    @Override
+    public void updateSectors(){
+        canvas.updateSectors();
+    }
+
+    @Override
+    public int duplicateSectors(){
+        return canvas.duplicateSectors(lastStart, lastEnd);
+    }
+
+    @Override
+    public void erase(long seed) throws Exception {
+        Random random = new Random(seed);
+        int x = 100 + random.nextInt(400), y = 100 + random.nextInt(400);
+        SwingUtilities.invokeAndWait(() -> {
+            canvas.eraser(true);
+            long when = System.currentTimeMillis();
+            canvas.dispatchEvent(new MouseEvent(canvas, MouseEvent.MOUSE_PRESSED, when, 0, x, y, 1, false));
+            for (int i = 1; i <= 30; i++)
+                canvas.dispatchEvent(new MouseEvent(canvas, MouseEvent.MOUSE_DRAGGED, when, 0, x + i * 3, y + i * 2, 0, false));
+            canvas.dispatchEvent(new MouseEvent(canvas, MouseEvent.MOUSE_RELEASED, when, 0, x + 90, y + 60, 1, false));
+            canvas.eraser(false);
+        });
+    }
+
+    @Override
+    public void undoRedo(){
+        canvas.undo();
+        canvas.redo();
+    }
+
+    @Override
+    public void save(){
+        canvas.save(gallery);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        //lets queued gallery writes finish before their folder is removed
+        Thread.sleep(500);
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the quick operations done while drawing on a canvas holding a generated design:
+ * drawing one brush Circle, copying a stroke over the sectors for the eraser, undo and redo, and saving to the gallery
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanvasBenchmark {
+    @Param({"42"})
+    long seed;
+    @Param({"10000"})
+    int dabs;
+    @Param({"1", "8", "20"})
+    int lineCount;
+    @Param({"false", "true"})
+    boolean reflected;
+    @Param({"SERIAL"})
+    String renderMode;
+
+    private Workloads workloads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workloads = Workloads.create();
+        workloads.setUp(seed, dabs, lineCount, reflected, renderMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workloads.tearDown();
+    }
+
+    @Benchmark
+    public void drawSectors(){
+        workloads.drawSectors();
+    }
+
+    @Benchmark
+    public int duplicateSectors(){
+        return workloads.duplicateSectors();
+    }
+
+    @Benchmark
+    public void undoRedo(){
+        workloads.undoRedo();
+    }
+
+    @Benchmark
+    @Measurement(iterations = 5, time = 2)
+    public void save(){
+        workloads.save();
+    }
+}
@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times one eraser stroke across a generated design. Erasing changes the design, so each stroke
+ * is timed on its own against a freshly opened copy of the design
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class EraseBenchmark {
+    @Param({"42"})
+    long seed;
+    @Param({"1000", "100000"})
+    int dabs;
+    @Param({"1", "8", "20"})
+    int lineCount;
+    @Param({"false", "true"})
+    boolean reflected;
+
+    private Workloads workloads;
+    private long strokeSeed;                                        //seed of where the next eraser stroke goes
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        workloads = Workloads.create();
+        workloads.setUp(seed, dabs, lineCount, reflected, "SERIAL");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        workloads.tearDown();
+    }
+
+    @Benchmark
+    public void erase() throws Exception {
+        workloads.erase(strokeSeed++);
+    }
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times redrawing a whole generated design, as done when the sector count changes.
+ * The full grid takes a long time, so narrow it with -p, eg -p dabs=1000000 -p lineCount=20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class UpdateSectorsBenchmark {
+    @Param({"42"})
+    long seed;
+    @Param({"1000", "10000", "100000", "1000000"})
+    int dabs;
+    @Param({"1", "2", "8", "20"})
+    int lineCount;
+    @Param({"false", "true"})
+    boolean reflected;
+    @Param({"SERIAL", "TILED", "STAMP", "WEDGE"})
+    String renderMode;
+
+    private Workloads workloads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workloads = Workloads.create();
+        workloads.setUp(seed, dabs, lineCount, reflected, renderMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workloads.tearDown();
+    }
+
+    @Benchmark
+    public void updateSectors(){
+        workloads.updateSectors();
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+/**
+ * The operations the benchmarks time. JMH needs benchmarks to be in a package but the program's classes are in the
+ * default package, which packaged code cannot name, so the benchmarks call the program through this interface.
+ * CanvasWorkloads in the default package implements it and is loaded by name once per trial.
+ */
+public interface Workloads {
+    /**
+     * Sets up a canvas holding a generated design
+     * @param seed seed of the design
+     * @param dabs number of Circles in the design
+     * @param lineCount number of sectors
+     * @param reflected reflected flag of every Circle
+     * @param renderMode name of the RenderMode used to redraw the design
+     */
+    void setUp(long seed, int dabs, int lineCount, boolean reflected, String renderMode) throws Exception;
+
+    /** Draws one brush Circle over the sectors */
+    void drawSectors();
+
+    /** Redraws the whole design */
+    void updateSectors();
+
+    /** @return number of Circles copied over the sectors from the last stroke */
+    int duplicateSectors();
+
+    /**
+     * Drags the eraser across the canvas and removes the Circles under it
+     * @param seed seed of where the eraser goes
+     */
+    void erase(long seed) throws Exception;
+
+    /** Undoes the last stroke and redoes it */
+    void undoRedo();
+
+    /** Saves the canvas's design to the gallery, which draws it and writes it to disk in the background */
+    void save();
+
+    /** Stops the canvas and gallery and removes their files */
+    void tearDown() throws Exception;
+
+    /** @return the program's implementation */
+    static Workloads create() throws ReflectiveOperationException {
+        return (Workloads) Class.forName("CanvasWorkloads").getDeclaredConstructor().newInstance();
+    }
+}
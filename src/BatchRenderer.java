@@ -0,0 +1,161 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Draws design files to PNG images from the command line, without a window.
+ * Designs are drawn in parallel on a fixed number of threads, each with its own SectorRenderer,
+ * and only a few designs per thread are queued at once so memory stays bounded however many files there are.
+ * Images of another size are drawn in strips by a StripExporter, so very large ones fit in memory.
+ *
+ * Usage: --batch [-threads n] [-mode serial|tiled|stamp|wedge] [-size pixels] [-out directory] files or directories...
+ */
+public class BatchRenderer {
+
+    private int threads = Runtime.getRuntime().availableProcessors();//number of designs drawn at once
+    private RenderMode renderMode = RenderMode.SERIAL;              //how each design is drawn
+    private int size = Design.SIZE;                                        //width and height of the images written
+    private Path outDir;                                            //folder images are written to, next to each design if null
+    private ArrayList<Path> files = new ArrayList<>();              //design files to draw
+    private AtomicInteger rendered = new AtomicInteger(), failed = new AtomicInteger();
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        BatchRenderer batch = new BatchRenderer();
+        try {
+            batch.parse(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: --batch [-threads n] [-mode serial|tiled|stamp|wedge] [-size pixels] [-out directory] files or directories...");
+            System.exit(2);
+        }
+        batch.run();
+        System.exit(batch.failed.get() == 0 ? 0 : 1);
+    }
+
+    /** Reads the command line options and finds the design files */
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(value(args, ++i));
+                    if (threads < 1)
+                        throw new IllegalArgumentException("-threads must be at least 1");
+                    break;
+                case "-mode":
+                    renderMode = RenderMode.valueOf(value(args, ++i).toUpperCase());
+                    break;
+                case "-size":
+                    size = Integer.parseInt(value(args, ++i));
+                    if (size < 1)
+                        throw new IllegalArgumentException("-size must be at least 1");
+                    break;
+                case "-out":
+                    outDir = Paths.get(value(args, ++i));
+                    Files.createDirectories(outDir);
+                    break;
+                default:
+                    Path path = Paths.get(args[i]);
+                    if (Files.isDirectory(path)) {
+                        try (Stream<Path> found = Files.list(path)) {
+                            found.filter(f -> f.toString().endsWith(DesignFile.EXTENSION)).sorted().forEach(files::add);
+                        }
+                    } else {
+                        files.add(path);
+                    }
+            }
+        }
+        if (files.isEmpty())
+            throw new IllegalArgumentException("No design files given");
+    }
+
+    private static String value(String[] args, int i){
+        if (i >= args.length)
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    /** Draws every design file and reports how long it took */
+    private void run(){
+        //the queue holds a few designs per thread, once it is full the main thread draws the next one itself
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        ThreadLocal<SectorRenderer> renderers = ThreadLocal.withInitial(() -> {
+            SectorRenderer renderer = new SectorRenderer(new BufferedImage(Design.SIZE, Design.SIZE, BufferedImage.TYPE_INT_RGB));
+            renderer.setRenderMode(renderMode);
+            return renderer;
+        });
+        //draws each layer of a design of several on its own, to be laid over the ones below
+        ThreadLocal<SectorRenderer> layerRenderers = ThreadLocal.withInitial(() -> {
+            SectorRenderer renderer = new SectorRenderer(new BufferedImage(Design.SIZE, Design.SIZE, BufferedImage.TYPE_INT_ARGB_PRE));
+            renderer.setRenderMode(renderMode);
+            return renderer;
+        });
+
+        long start = System.nanoTime();
+        for (Path file : files)
+            pool.execute(() -> render(renderers.get(), layerRenderers.get(), file));
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d designs (%d failed) in %.2f s on %d threads, %.1f designs/sec%n",
+                rendered.get(), failed.get(), seconds, threads, rendered.get() / seconds);
+    }
+
+    /**
+     * Draws one design file to a PNG image
+     * @param renderer draws onto the image
+     * @param layerRenderer draws a layer onto a transparent image, when there are several
+     * @param file design file to draw
+     */
+    private void render(SectorRenderer renderer, SectorRenderer layerRenderer, Path file){
+        try {
+            List<Design> layers = DesignFile.read(file).getVisibleDesigns();
+            String name = file.getFileName().toString();
+            if (name.endsWith(DesignFile.EXTENSION))
+                name = name.substring(0, name.length() - DesignFile.EXTENSION.length());
+            Path dir = outDir != null ? outDir : file.toAbsolutePath().getParent();
+            if (size != Design.SIZE) {
+                //designs are already drawn in parallel, so each is drawn in strips on its own thread
+                new StripExporter(1, 1 << 21).export(layers, size, dir.resolve(name + ".png"));
+                rendered.incrementAndGet();
+                return;
+            }
+
+            BufferedImage image = new BufferedImage(Design.SIZE, Design.SIZE, BufferedImage.TYPE_INT_RGB);
+            renderer.setImage(image);
+            renderer.clear();
+            if (layers.size() == 1) {
+                renderer.setLineCount(layers.get(0).getLineCount());
+                renderer.render(layers.get(0).getStrokes(), () -> false);
+            } else {
+                //each layer is drawn on its own transparent image and laid over the ones below, like the canvas does
+                Graphics2D g = image.createGraphics();
+                for (Design layer : layers) {
+                    layerRenderer.setLineCount(layer.getLineCount());
+                    layerRenderer.render(layer.getStrokes(), () -> false);
+                    g.drawImage(layerRenderer.getImage(), 0, 0, null);
+                }
+                g.dispose();
+            }
+            ImageIO.write(image, "png", dir.resolve(name + ".png").toFile());
+            rendered.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.err.println("Could not render " + file + ": " + e.getMessage());
+        }
+    }
+}
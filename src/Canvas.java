@@ -1,35 +1,177 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Stack;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Handles drawing the design. The design is made of layers, each with its own strokes, sector settings and image.
+ * Drawing, undoing and erasing only redraw the selected layer, and the canvas shows the visible layers' images
+ * laid over white, from the bottom layer up.
+ * The fields from image to reflected hold the selected layer's parts while it is selected.
+ *
+ * The canvas can be any size. The design is kept in cords of a Design.SIZE square, shown in the largest square that fits
+ * in the middle of the canvas, and the layers' images are as many screen pixels across as that square, so they are
+ * sharp on HiDPI screens. They are laid over each other into a VolatileImage when the screen allows one,
+ * and into a compatible image otherwise.
+ */
 public class Canvas extends JPanel{
+    private ArrayList<Layer> layers = new ArrayList<>();            //layers of the design from the bottom up
+    private ArrayList<Layer> opening;                               //layers being read from a file, shown in place of the design, null if none
+    private Layer layer;                                            //layer being drawn on
+    private int layersMade;                                         //number of layers made, used to name new ones
+    private Image view;                                             //visible layers laid over white, drawn to the screen
+    private GraphicsConfiguration viewConfiguration;                //screen the view was made for
+    private int imageSize;                                          //width and height of the layers' images in screen pixels
+    private int offsetX, offsetY;                                   //corner of the design's square on the canvas
+    private double displayScale = 1;                                //canvas units per design cord
     private BufferedImage image;                                    //The image is the picture that will show
     private Graphics2D g2;                                          // used to draw with
-    private int x, y, oldX, oldY, brushSize, centerX, centerY;      //cords and brush size
+    private double x, y, oldX, oldY;                                //cords of the mouse in the design
+    private int brushSize, centerX, centerY;                        //brush size and centre of the design
     private int lineCount;                                          //how many Lines there are dividing the canvas into secotrs
     private boolean reflected;                                      //flags if the canvas is to be reflected
     private Color brushColor;                                       //color
     private Color tempColor;                                        //used to store color while eraser is in use
     private boolean eraseMode;                                      //Flags if eraser is active
 
-    private ArrayList<ArrayList<Circle>> design = new ArrayList<>();//Stores all the Circles drawn in groups of strokes. The master list
-    private Stack<ArrayList<Circle>> redoStack = new Stack<>();     //Stores recently undone Circles
-    private ArrayList<Circle> strokeGroup;                          //Groups together Circles into a move that can be undone easily
+    private StrokeStore design;                                     //Stores all the Circles drawn in groups of strokes, including undone ones. The master list
+    private DabGrid designGrid;                                     //Finds the stored Circles near a point for the eraser
+    private RasterHistory history;                                  //Copies of the canvas every few strokes used by undo
+    private HistoryManager historyManager = new HistoryManager(48L << 20, 32L << 20, 1L << 30);//keeps every layer's copies and old strokes under one budget
+    private int historyInterval = 16;                               //number of strokes between copies
+    private SectorRenderer renderer;                                //draws Circles over the sectors onto the image
+    private RenderMode renderMode = RenderMode.SERIAL;              //how the whole design is redrawn
+    private RenderWorker renderWorker;                              //redraws the whole design off the event thread
+    private long pendingRender;                                     //number of the render waited for, 0 if none
+    private RenderWorker.Job deferredRender;                        //render finished while a stroke was being drawn
+    private boolean drawing;                                        //flags if the mouse is down drawing a stroke
+    private int dirtyMinX, dirtyMinY, dirtyMaxX = -1, dirtyMaxY = -1;//area drawn on since the last repaint, empty while max < min
+    private StrokeBuilder strokeBuilder = new StrokeBuilder();       //spaces out the Circles of the stroke being drawn
+    private boolean polylineStrokes = true;                         //flags if strokes are stored as polylines rather than Circles
+    private double lastCentreX, lastCentreY;                        //brush centre the next live segment starts from
+    private StrokeBackup strokeBackup = new StrokeBackup();         //pixels under the stroke being drawn, put back once it is stored
+    private int frameRate = 60;                                     //times a second queued drags are drawn, 0 to draw each as it comes
+    private Timer frameTimer;                                       //draws the queued drags once a frame while the mouse is dragged
+    private double[] queuedX = new double[64], queuedY = new double[64];//design cords of drags not drawn yet
+    private int queuedCount;
+    private double[] batchX = new double[64], batchY = new double[64];//brush centres drawn together in a frame
+    private Rectangle2D damaged;                                    //one copy of the area under the Circles removed by an erase or undo, null if none
+    private boolean damagedReflected;                               //flags if a removed Circle was reflected, so the damage is too
+    private int[] touching = new int[256];                          //stored Circles found under the damaged area
+    private InputTrace.Recorder recorder;                           //records what the user does, null if not recording
+    private SessionClient session;                                  //shared session strokes are sent to, null if drawing alone
+    private HashMap<Long, RemoteStroke> remoteStrokes = new HashMap<>();//strokes other clients are drawing and those sent from here not passed back yet, by client and stroke number
+    private RemoteStroke sending;                                   //stroke being drawn and sent to the session, null if none
+    private int sendingNumber;                                      //the session's number for the stroke being sent
+    private ArrayList<RemoteStroke> endedRemote = new ArrayList<>();//strokes other clients have finished that are not stored yet
+    private boolean storeRemoteQueued;                              //flags if storing the ended strokes is queued on the event thread
+    private int sessionLineCount = -1;                              //line count last set through the session, taken with the ended strokes, -1 if none
+    private int lineCountsSent;                                     //line counts sent to the session that the server has not passed back yet
     private UI ui;                                                  //Reference to the UI class Canvas is attached to
 
+    /** A layer of the design, with its own strokes, sector settings and cached image */
+    private static class Layer {
+        private String name;
+        private StrokeStore design = new StrokeStore();
+        private DabGrid designGrid = new DabGrid(Design.SIZE, Design.SIZE, 32);
+        private RasterHistory history;
+        private SectorRenderer renderer;                            //draws the layer's Circles onto its transparent image
+        private int lineCount;
+        private boolean reflected;
+        private boolean visible = true;                             //flags if the layer is shown
+    }
+
+    /**
+     * The layers of the design as saved to the gallery: each layer's strokes, sector settings and visibility.
+     * Taking one copies no Circles, as the strokes are copy on write snapshots shared with the canvas
+     */
+    public static class Snapshot {
+        private final List<Design> layers;                          //strokes and sector settings of each layer from the bottom up
+        private final List<String> names;
+        private final boolean[] visible;
+        private final int selected;                                 //layer that was selected
+
+        Snapshot(List<Design> layers, List<String> names, boolean[] visible, int selected){
+            this.layers = layers;
+            this.names = names;
+            this.visible = visible;
+            this.selected = selected;
+        }
+
+        /** @return the design of each layer from the bottom up */
+        public List<Design> getLayers(){
+            return layers;
+        }
+
+        /** @return the name of a layer */
+        public String getName(int index){
+            return names.get(index);
+        }
+
+        /** @return true if a layer is shown */
+        public boolean isVisible(int index){
+            return visible[index];
+        }
+
+        /** @return the layer that was selected */
+        public int getSelected(){
+            return selected;
+        }
+
+        /** @return the designs of the visible layers from the bottom up, for drawing */
+        public List<Design> getVisibleDesigns(){
+            ArrayList<Design> designs = new ArrayList<>();
+            for (int i = 0; i < layers.size(); i++) {
+                if (visible[i])
+                    designs.add(layers.get(i));
+            }
+            return designs;
+        }
+    }
+
+    /** A stroke another client of the session is drawing, drawn live as its brush centres arrive */
+    private static class RemoteStroke {
+        private StrokeBuilder builder = new StrokeBuilder();        //builds it exactly as the sender's canvas does
+        private Color color;
+        private double radius;
+        private boolean reflected, polyline, eraser;
+        private boolean own;                                        //flags if drawn here, so finished as the mouse was released
+        private boolean redrawn;                                    //flags if its live drawing was redrawn as if it had ended
+        private float[] pathX = new float[64], pathY = new float[64];//brush centres so far, to draw it again after a redraw
+        private int pathCount;
+
+        private void addPoint(double x, double y){
+            if (pathCount == pathX.length) {
+                pathX = Arrays.copyOf(pathX, pathCount * 2);
+                pathY = Arrays.copyOf(pathY, pathCount * 2);
+            }
+            pathX[pathCount] = (float) x;
+            pathY[pathCount++] = (float) y;
+        }
+    }
+
     /**
      * Sets size of the paint brush
      * @param brushSize
      */
     public void setBrushSize(Integer brushSize){
+        if (recorder != null)
+            recorder.control(InputTrace.BRUSH_SIZE, brushSize);
         this.brushSize = brushSize;
     }
 
@@ -38,6 +180,8 @@ public class Canvas extends JPanel{
      * @param brushColor
      */
     public void setBrushColor(Color brushColor) {
+        if (recorder != null)
+            recorder.control(InputTrace.COLOR, brushColor.getRGB());
         g2.setColor(brushColor);
         this.brushColor = brushColor;
     }
@@ -50,14 +194,15 @@ public class Canvas extends JPanel{
     public Canvas(UI ui) {
         //sets up canvas
         this.ui = ui;
-        this.setSize(600,600);
-        centerX = this.getWidth()/2;
-        centerY = this.getHeight()/2;
-        image = new BufferedImage(getSize().width, getSize().height, BufferedImage.TYPE_INT_RGB);
-        g2 = (Graphics2D) image.getGraphics();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        this.setSize(Design.SIZE, Design.SIZE);
+        centerX = Design.SIZE/2;
+        centerY = Design.SIZE/2;
+        fitDesign();
+        brushColor = Color.black;
+        selectLayer(addLayer());
         setDoubleBuffered(false);
-        newStokeGroup();
+        Metrics.setStoredDabs(this::storedDabs);
+        Metrics.setHistory(historyManager);
 
         //sets defaults settings
         setBrushSize(9);
@@ -70,43 +215,599 @@ public class Canvas extends JPanel{
         //Listeners
         addMouseListener(new MouseAdapter() {
             public void mousePressed(MouseEvent e) {
-                clearRedo();
-                g2.setColor(brushColor);
-                //adds a circle to canvas
-                oldX = e.getX();
-                oldY = e.getY();
-
-                strokeGroup.add(new Circle(new Ellipse2D.Double(oldX-brushSize/2, oldY-brushSize/2, brushSize, brushSize), brushColor, reflected));
-
-                drawSectors(strokeGroup.get(strokeGroup.size()-1));
-                repaint();
+                press(designX(e.getX()), designY(e.getY()));
             }
         });
 
        addMouseListener(new MouseAdapter() {
            public void mouseReleased(MouseEvent e) {
-               //marks the end of a move and a group of Circles
-               if (eraseMode)
-                   removeFromDesign(strokeGroup);
-               else
-                   addToDesign(strokeGroup);
-               newStokeGroup();
+               release(designX(e.getX()), designY(e.getY()));
            }
         });
 
         addMouseMotionListener(new MouseMotionAdapter() {
             public void mouseDragged(MouseEvent e) {
-                //adds a line to canvas
-                x = e.getX();
-                y = e.getY();
-                strokeGroup.add(new Circle(new Ellipse2D.Double(oldX-brushSize/2, oldY-brushSize/2, brushSize, brushSize), brushColor, reflected));
-
-                drawSectors(strokeGroup.get(strokeGroup.size()-1));
-                repaint();
-                oldX = x;
-                oldY = y;
+                queueDrag(designX(e.getX()), designY(e.getY()));
+            }
+        });
+
+        addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) {
+                fitDesign();
+            }
+        });
+        //moving to a screen with another scale changes how many pixels the design needs
+        addPropertyChangeListener("graphicsConfiguration", e -> fitDesign());
+    }
+
+    /** Starts a stroke where the mouse is pressed, in design cords */
+    private void press(double pressX, double pressY){
+        if (recorder != null)
+            recorder.mouse(InputTrace.PRESS, pressX, pressY);
+        drawing = true;
+        clearRedo();
+        //the wedge keeps its own copy of the pixels, which a backup of the image would not put back
+        if (!eraseMode && renderMode != RenderMode.WEDGE)
+            strokeBackup.start(image, renderer.imageVersion());
+        g2.setColor(brushColor);
+        //adds a circle to canvas
+        oldX = pressX;
+        oldY = pressY;
+
+        lastCentreX = brushCentre(oldX);
+        lastCentreY = brushCentre(oldY);
+        drawPlaced(strokeBuilder.begin(lastCentreX, lastCentreY, brushSize / 2.0));
+        repaintDirty();
+        if (session != null) {
+            sending = new RemoteStroke();
+            sending.own = true;
+            sending.color = brushColor;
+            sending.radius = brushSize / 2.0;
+            sending.reflected = reflected;
+            sending.polyline = isPolyline();
+            sending.eraser = eraseMode;
+            sending.addPoint(lastCentreX, lastCentreY);
+            sendingNumber = session.begin(brushColor, brushSize / 2.0, (reflected ? SessionProtocol.REFLECTED : 0)
+                    | (isPolyline() ? SessionProtocol.POLYLINE : 0) | (eraseMode ? SessionProtocol.ERASER : 0), lastCentreX, lastCentreY);
+        }
+    }
+
+    /** Carries the stroke on to where the mouse is dragged, in design cords */
+    private void drag(double dragX, double dragY){
+        if (recorder != null)
+            recorder.mouse(InputTrace.DRAG, dragX, dragY);
+        //adds a line to canvas
+        x = dragX;
+        y = dragY;
+        int placed = strokeBuilder.moveTo(brushCentre(x), brushCentre(y));
+        if (isPolyline())
+            drawSegment(brushCentre(x), brushCentre(y));
+        else
+            drawPlaced(placed);
+        repaintDirty();
+        oldX = x;
+        oldY = y;
+        if (session != null)
+            send(brushCentre(x), brushCentre(y));
+    }
+
+    /** Sends a brush centre of the stroke being drawn to the session, keeping it to draw the stroke again until it is stored */
+    private void send(double centreX, double centreY){
+        session.moveTo(centreX, centreY);
+        if (sending != null)
+            sending.addPoint(centreX, centreY);
+    }
+
+    /**
+     * Queues a drag to be drawn with the others of the same frame. The mouse can send several drags a frame,
+     * and drawing them in one go does the sector transforms and repaint once rather than for each
+     */
+    private void queueDrag(double dragX, double dragY){
+        if (frameRate <= 0 || !drawing) {
+            drag(dragX, dragY);
+            return;
+        }
+        //recorded as it comes so a replay, which may draw each drag on its own, has the same mouse events
+        if (recorder != null)
+            recorder.mouse(InputTrace.DRAG, dragX, dragY);
+        if (queuedCount == queuedX.length) {
+            queuedX = Arrays.copyOf(queuedX, queuedCount * 2);
+            queuedY = Arrays.copyOf(queuedY, queuedCount * 2);
+        }
+        queuedX[queuedCount] = dragX;
+        queuedY[queuedCount++] = dragY;
+        if (frameTimer == null) {
+            frameTimer = new Timer(1000 / frameRate, e -> drawQueued());
+            frameTimer.setCoalesce(true);
+        }
+        if (!frameTimer.isRunning())
+            frameTimer.start();
+    }
+
+    /** Carries the stroke on through every queued drag, drawing what they add in one pass and repainting once */
+    private void drawQueued(){
+        if (queuedCount == 0) {
+            //the mouse has stopped, so the timer waits for the next drag
+            frameTimer.stop();
+            return;
+        }
+        long start = System.nanoTime();
+        Metrics.SAMPLES_PER_FRAME.record(queuedCount);
+        boolean polyline = isPolyline();
+        int count = 0;
+        for (int i = 0; i < queuedCount; i++) {
+            x = queuedX[i];
+            y = queuedY[i];
+            double centreX = brushCentre(x), centreY = brushCentre(y);
+            int placed = strokeBuilder.moveTo(centreX, centreY);
+            if (polyline) {
+                double fromX = count == 0 ? lastCentreX : batchX[count - 1], fromY = count == 0 ? lastCentreY : batchY[count - 1];
+                if (centreX != fromX || centreY != fromY)
+                    count = addToBatch(count, centreX, centreY);
+            } else {
+                for (int j = 0; j < placed; j++)
+                    count = addToBatch(count, strokeBuilder.dabX(j), strokeBuilder.dabY(j));
+            }
+            if (session != null)
+                send(centreX, centreY);
+        }
+        oldX = x;
+        oldY = y;
+        queuedCount = 0;
+
+        double radius = brushSize / 2.0;
+        if (polyline) {
+            for (int i = 0; i < count; i++) {
+                double fromX = i == 0 ? lastCentreX : batchX[i - 1], fromY = i == 0 ? lastCentreY : batchY[i - 1];
+                addDirty((fromX + batchX[i]) / 2, (fromY + batchY[i]) / 2, Math.hypot(batchX[i] - fromX, batchY[i] - fromY) / 2 + radius, reflected);
+            }
+            renderer.drawPolyline(lastCentreX, lastCentreY, batchX, batchY, count, radius, reflected);
+            if (count > 0) {
+                lastCentreX = batchX[count - 1];
+                lastCentreY = batchY[count - 1];
+            }
+        } else {
+            for (int i = 0; i < count; i++)
+                addDirty(batchX[i], batchY[i], radius, reflected);
+            renderer.drawDabs(batchX, batchY, count, radius, reflected);
+        }
+        repaintDirty();
+        Metrics.DRAW_FRAME.recordSince(start);
+    }
+
+    /** Adds a brush centre to the ones drawn this frame, growing the arrays if needed */
+    private int addToBatch(int count, double centreX, double centreY){
+        if (count == batchX.length) {
+            batchX = Arrays.copyOf(batchX, count * 2);
+            batchY = Arrays.copyOf(batchY, count * 2);
+        }
+        batchX[count] = centreX;
+        batchY[count] = centreY;
+        return count + 1;
+    }
+
+    /**
+     * Sets how often the drags of the mouse are drawn while painting
+     * @param fps frames a second, 0 to draw every drag as it comes
+     */
+    public void setFrameRate(int fps){
+        if (queuedCount > 0)
+            drawQueued();
+        frameRate = Math.max(0, fps);
+        if (frameTimer != null && frameRate > 0)
+            frameTimer.setDelay(1000 / frameRate);
+    }
+
+    /** Ends the stroke where the mouse is released, in design cords */
+    private void release(double releaseX, double releaseY){
+        //drags still queued come before the release
+        if (queuedCount > 0)
+            drawQueued();
+        if (frameTimer != null)
+            frameTimer.stop();
+        if (recorder != null)
+            recorder.mouse(InputTrace.RELEASE, releaseX, releaseY);
+        //marks the end of a move and a group of Circles
+        if (!isPolyline())
+            drawPlaced(strokeBuilder.finish());
+        repaintDirty();
+        if (sending != null && session != null) {
+            //stored once the server passes its end back, in the same order as every other canvas stores it.
+            //Till then it is kept like a stroke from another client, with the builder it was drawn with
+            StrokeBuilder sent = strokeBuilder;
+            strokeBuilder = sending.builder;
+            sending.builder = sent;
+            remoteStrokes.put((long) SessionProtocol.OWN << 32 | sendingNumber, sending);
+        } else {
+            newStokeGroup();
+            if (isPolyline())
+                strokeBuilder.commitPolyline(design, brushColor, reflected);
+            else
+                strokeBuilder.commit(design, brushColor, reflected);
+            if (eraseMode)
+                removeFromDesign();
+            else
+                addToDesign();
+        }
+        sending = null;
+        strokeBackup.stop();
+        drawing = false;
+        if (session != null)
+            session.end();
+        //strokes other clients finished meanwhile go on top, in the order they were finished
+        storeEndedRemote();
+        repaintDirty();
+        //shows a render that finished during the stroke
+        if (deferredRender != null)
+            swapIn(deferredRender);
+    }
+
+    /**
+     * Presses, drags or releases the mouse at a point of the design, as if the user had, for replaying input traces.
+     * Drags are queued to be drawn once a frame like the mouse's, unless the frame rate is 0
+     * @param kind InputTrace.PRESS, DRAG or RELEASE
+     * @param x design x cord
+     * @param y design y cord
+     */
+    public void replayMouse(int kind, double x, double y){
+        if (kind == InputTrace.PRESS)
+            press(x, y);
+        else if (kind == InputTrace.DRAG)
+            queueDrag(x, y);
+        else
+            release(x, y);
+    }
+
+    /**
+     * Records every mouse event and control change from now on, or stops recording.
+     * A replay starts from a new canvas, so the settings already chosen are recorded first
+     * @param recorder trace to write to, null to stop
+     */
+    public void setRecorder(InputTrace.Recorder recorder){
+        this.recorder = recorder;
+        if (recorder == null)
+            return;
+        recorder.control(InputTrace.LINE_COUNT, lineCount);
+        recorder.control(InputTrace.REFLECT, reflected ? 1 : 0);
+        recorder.control(InputTrace.BRUSH_SIZE, brushSize);
+        recorder.control(InputTrace.COLOR, (eraseMode ? tempColor : brushColor).getRGB());
+        if (eraseMode)
+            recorder.control(InputTrace.ERASER, 1);
+    }
+
+    /**
+     * Sends the strokes drawn and line counts set from now on to a shared session, or stops sending them.
+     * Strokes from the session's other clients are passed to applyBatch by whoever listens to the client.
+     * On joining, the line count is sent so every canvas in the session has the same sectors.
+     * On leaving, the strokes still open or not passed back are stored as they are, as they will not end now
+     * @param session client of the session, null to stop
+     */
+    public void setSession(SessionClient session){
+        this.session = session;
+        lineCountsSent = 0;
+        if (session != null)
+            sendLineCount();
+        if (session != null || remoteStrokes.isEmpty())
+            return;
+        ArrayList<RemoteStroke> open = new ArrayList<>(remoteStrokes.values());
+        remoteStrokes.clear();
+        for (RemoteStroke remote : open)
+            endRemote(remote);
+        repaintDirty();
+    }
+
+    /**
+     * Draws the strokes other clients of the session are drawing as far as a batch takes them, and stores those it ends.
+     * Each stroke is stored as it ends just like one drawn here, going back to the nearest checkpoint at most,
+     * so the design is never redrawn whole. Strokes drawn here are stored as their end comes back from the server,
+     * so every canvas stores the same strokes in the same order.
+     * Must be called on the event thread
+     * @param batch batch from the session
+     */
+    public void applyBatch(SessionProtocol.Batch batch){
+        long client = (long) batch.getClient() << 32;
+        //the strokes of a frame passed back are already drawn, and only their ends are needed
+        boolean own = batch.getClient() == SessionProtocol.OWN;
+        batch.read(new SessionProtocol.Receiver() {
+            public void begun(int stroke, Color color, double radius, int flags, double x, double y){
+                if (own)
+                    return;
+                RemoteStroke remote = new RemoteStroke();
+                remote.color = color;
+                remote.radius = radius;
+                remote.reflected = (flags & SessionProtocol.REFLECTED) != 0;
+                remote.polyline = (flags & SessionProtocol.POLYLINE) != 0;
+                remote.eraser = (flags & SessionProtocol.ERASER) != 0;
+                remote.addPoint(x, y);
+                remoteStrokes.put(client | stroke, remote);
+                g2.setColor(color);
+                drawPlaced(remote.builder, remote.builder.begin(x, y, radius), radius, remote.reflected);
+                g2.setColor(brushColor);
+            }
+
+            public void moved(int stroke, double x, double y){
+                RemoteStroke remote = own ? null : remoteStrokes.get(client | stroke);
+                if (remote == null)
+                    return;
+                float lastX = remote.pathX[remote.pathCount - 1], lastY = remote.pathY[remote.pathCount - 1];
+                remote.addPoint(x, y);
+                g2.setColor(remote.color);
+                int placed = remote.builder.moveTo(x, y);
+                if (remote.polyline)
+                    drawSegment(lastX, lastY, x, y, remote.radius, remote.reflected);
+                else
+                    drawPlaced(remote.builder, placed, remote.radius, remote.reflected);
+                g2.setColor(brushColor);
+            }
+
+            public void ended(int stroke){
+                RemoteStroke remote = remoteStrokes.remove(client | stroke);
+                if (remote != null)
+                    endRemote(remote);
+            }
+
+            public void left(){
+                for (Iterator<Map.Entry<Long, RemoteStroke>> it = remoteStrokes.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Long, RemoteStroke> entry = it.next();
+                    if ((entry.getKey() & 0xFFFFFFFF00000000L) == client) {
+                        it.remove();
+                        endRemote(entry.getValue());
+                    }
+                }
+            }
+
+            public void lineCountSet(int lineCount){
+                //the sender's own comes back too, in the server's order, so every canvas ends with the last one set.
+                //One set here since comes back after this one, so this one would only show for a moment
+                if (own)
+                    lineCountsSent--;
+                if (lineCountsSent > 0)
+                    return;
+                sessionLineCount = lineCount;
+                storeEndedLater();
             }
         });
+        repaintDirty();
+    }
+
+    /**
+     * Queues a finished stroke from another client to be stored once the batches already waiting on the event thread
+     * are drawn, so strokes ending close together are stored together
+     */
+    private void endRemote(RemoteStroke remote){
+        if (!remote.polyline && !remote.own) {
+            g2.setColor(remote.color);
+            drawPlaced(remote.builder, remote.builder.finish(), remote.radius, remote.reflected);
+            g2.setColor(brushColor);
+        }
+        endedRemote.add(remote);
+        storeEndedLater();
+    }
+
+    /** Sends the line count of the selected layer to the session */
+    private void sendLineCount(){
+        session.setLineCount(lineCount);
+        lineCountsSent++;
+        //one from the session not taken yet is older than this one
+        sessionLineCount = -1;
+    }
+
+    /** Queues the ended strokes and line count from the session to be stored once the batches waiting are drawn */
+    private void storeEndedLater(){
+        if (!storeRemoteQueued) {
+            storeRemoteQueued = true;
+            SwingUtilities.invokeLater(() -> {
+                storeRemoteQueued = false;
+                storeEndedRemote();
+            });
+        }
+    }
+
+    /**
+     * Stores the strokes the session has finished, in the order they finished, and swaps their live drawing for
+     * the stored strokes. Waits for a stroke being drawn here, so storing them does not redraw over it.
+     * The selected layer takes the line count last set through the session, so the canvases of a session keep the same sectors
+     */
+    private void storeEndedRemote(){
+        if (drawing || (endedRemote.isEmpty() && sessionLineCount < 0))
+            return;
+        ArrayList<RemoteStroke> ended = new ArrayList<>(endedRemote);
+        endedRemote.clear();
+        boolean restore = false, linesChanged = sessionLineCount >= 0 && sessionLineCount != lineCount;
+        if (linesChanged) {
+            lineCount = sessionLineCount;
+            renderer.setLineCount(lineCount);
+        }
+        sessionLineCount = -1;
+        for (RemoteStroke remote : ended) {
+            StrokeBuilder builder = remote.builder;
+            newStokeGroup();
+            if (remote.polyline)
+                builder.commitPolyline(design, remote.color, remote.reflected);
+            else
+                builder.commit(design, remote.color, remote.reflected);
+            if (remote.eraser) {
+                removeFromDesign();
+                continue;
+            }
+            design.endStroke();
+            designGrid.addStroke(design, design.strokeCount() - 1);
+            pageOutIfDue();
+            //as for a stroke drawn here, the live drawing only differs from the stored stroke once simplified or as a polyline,
+            //or once it has been redrawn
+            restore |= builder.isSimplified() || remote.polyline || remote.redrawn;
+        }
+        //every stroke is drawn again with the new sectors
+        if (linesChanged) {
+            requestUpdate();
+            if (ui != null)
+                ui.showLineCount();
+            return;
+        }
+        //one trip back to the nearest checkpoint does for all of them
+        if (restore)
+            restoreFromHistory();
+        else
+            captureIfDue();
+    }
+
+    /** Takes an undo checkpoint if one is due, unless strokes other clients are still drawing are on the image */
+    private void captureIfDue(){
+        if (history.isDue(design.strokeCount()) && remoteStrokes.isEmpty() && endedRemote.isEmpty())
+            history.capture(design.strokeCount(), image);
+    }
+
+    /**
+     * Pages out the oldest strokes of every layer once the strokes held pass the manager's stroke budget,
+     * leaving each layer an even share of half the budget so it is not done again every stroke
+     */
+    private void pageOutIfDue(){
+        long budget = historyManager.getStrokeBudget(), held = 0;
+        for (Layer each : layers)
+            held += each.design.heldBytes();
+        if (held <= budget)
+            return;
+        for (Layer each : layers)
+            each.design.pageOut(historyManager, budget / 2 / layers.size());
+    }
+
+    /** Draws the strokes other clients are still drawing again, after the image has been redrawn or restored under them */
+    private void redrawRemoteStrokes(){
+        if (remoteStrokes.isEmpty() && endedRemote.isEmpty())
+            return;
+        //each is drawn as the stroke it would be stored as if it ended now, in one go rather than segment by segment
+        StrokeStore open = new StrokeStore();
+        StrokeBuilder builder = new StrokeBuilder();
+        for (RemoteStroke remote : remoteStrokes.values())
+            addOpenStroke(open, builder, remote);
+        for (RemoteStroke remote : endedRemote)
+            addOpenStroke(open, builder, remote);
+        for (int stroke = 0; stroke < open.strokeCount(); stroke++)
+            renderer.drawStroke(open, stroke);
+    }
+
+    private void addOpenStroke(StrokeStore open, StrokeBuilder builder, RemoteStroke remote){
+        builder.begin(remote.pathX[0], remote.pathY[0], remote.radius);
+        for (int i = 1; i < remote.pathCount; i++)
+            builder.moveTo(remote.pathX[i], remote.pathY[i]);
+        remote.redrawn = true;
+        open.beginStroke();
+        if (remote.polyline)
+            builder.commitPolyline(open, remote.color, remote.reflected);
+        else
+            builder.commit(open, remote.color, remote.reflected);
+        open.endStroke();
+    }
+
+    /**
+     * @param cord design cord of the mouse
+     * @return centre of the brush, keeping the placement of an Ellipse2D of brushSize drawn from cord - brushSize/2.
+     *         In a session it is rounded to what the other clients receive
+     */
+    private double brushCentre(double cord){
+        double centre = cord - brushSize/2 + brushSize / 2.0;
+        return session == null ? centre : SessionProtocol.quantize(centre);
+    }
+
+    //turn mouse cords on the canvas into design cords
+    private double designX(int x){
+        return (x - offsetX) / displayScale;
+    }
+    private double designY(int y){
+        return (y - offsetY) / displayScale;
+    }
+
+    /**
+     * Fits the design's square in the middle of the canvas and, if it now needs a different number of screen pixels,
+     * makes new images for the layers and draws them again. The selected layer is drawn on the render thread,
+     * showing its old image scaled up or down meanwhile
+     */
+    private void fitDesign(){
+        int side = Math.max(1, Math.min(getWidth(), getHeight()));
+        offsetX = (getWidth() - side) / 2;
+        offsetY = (getHeight() - side) / 2;
+        displayScale = side / (double) Design.SIZE;
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        double screenScale = configuration == null ? 1 : configuration.getDefaultTransform().getScaleX();
+        //kept even so the centre of the sectors lies on a pixel corner
+        int size = Math.max(2, (int) Math.round(side * screenScale) & ~1);
+        if (size != imageSize) {
+            imageSize = size;
+            view = null;
+            for (Layer each : layers)
+                resizeLayer(each);
+        }
+        repaint();
+    }
+
+    /** Moves a layer to a new image of imageSize and draws it again */
+    private void resizeLayer(Layer resized){
+        BufferedImage old = resized.renderer.getImage();
+        BufferedImage image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_ARGB_PRE);
+        resized.renderer.setImage(image);
+        //checkpoints of the old size are no use
+        (resized == layer ? history : resized.history).invalidate();
+        if (resized != layer) {
+            resized.renderer.render(resized.design, () -> false);
+            return;
+        }
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(old, 0, 0, imageSize, imageSize, null);
+        g.dispose();
+        renderer.imageChanged();
+        this.image = image;
+        g2 = renderer.getGraphics();
+        g2.setColor(brushColor);
+        requestUpdate();
+    }
+
+    /**
+     * Draws the Circles just placed by the stroke builder over the sectors
+     * @param placed number of Circles placed
+     */
+    private void drawPlaced(int placed){
+        drawPlaced(strokeBuilder, placed, brushSize / 2.0, reflected);
+    }
+
+    /**
+     * Draws the Circles just placed by a stroke builder over the sectors
+     * @param builder builder that placed them
+     * @param placed number of Circles placed
+     * @param radius radius of the Circles
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    private void drawPlaced(StrokeBuilder builder, int placed, double radius, boolean reflected){
+        for (int i = 0; i < placed; i++) {
+            addDirty(builder.dabX(i), builder.dabY(i), radius, reflected);
+            drawSectors(builder.dabX(i), builder.dabY(i), radius, reflected);
+        }
+    }
+
+    /**
+     * Draws the segment from the last brush centre to a new one over the sectors
+     * @param toX x cord of the new brush centre
+     * @param toY y cord of the new brush centre
+     */
+    private void drawSegment(double toX, double toY){
+        if (toX == lastCentreX && toY == lastCentreY)
+            return;
+        drawSegment(lastCentreX, lastCentreY, toX, toY, brushSize / 2.0, reflected);
+        lastCentreX = toX;
+        lastCentreY = toY;
+    }
+
+    /** Draws a segment of a polyline over the sectors */
+    private void drawSegment(double fromX, double fromY, double toX, double toY, double radius, boolean reflected){
+        addDirty((fromX + toX) / 2, (fromY + toY) / 2, Math.hypot(toX - fromX, toY - fromY) / 2 + radius, reflected);
+        long start = System.nanoTime();
+        renderer.drawSegment(fromX, fromY, toX, toY, radius, reflected);
+        Metrics.DRAW_SECTORS.recordSince(start);
+    }
+
+    /** @return true if the stroke being drawn is kept as a polyline. Eraser strokes are always Circles */
+    private boolean isPolyline(){
+        return polylineStrokes && !eraseMode;
     }
 
     /**
@@ -114,49 +815,416 @@ public class Canvas extends JPanel{
      * @param circle
      */
     public void drawSectors(Circle circle){
-        if(lineCount != 0) {
-            //rotates each item around each sector
-            double incrAngle = (Math.PI*2 / lineCount);
-            for (int i = 1; i <= lineCount; i++) {
-                AffineTransform rotateLine = AffineTransform.getRotateInstance(i * incrAngle, centerX, centerY);
-                g2.fill(((rotateLine.createTransformedShape(circle.getShape()))));
-
-                if (circle.isReflected()) {
-                    //Translates to the x-axis, reflects over the x-axis and translates back
-                    AffineTransform reflectLine = AffineTransform.getRotateInstance(i * incrAngle, centerX, centerY);
-                    reflectLine.translate(centerX, 0);
-                    reflectLine.scale(-1, 1);
-                    reflectLine.translate(-centerX, 0);
-                    g2.fill(((reflectLine.createTransformedShape(circle.getShape()))));
-                }
-            }
+        drawSectors(circle.getX(), circle.getY(), circle.getRadius(), circle.isReflected());
+    }
+
+    /**
+     * Takes a stored Circle and draws a repeat and reflection over sectors
+     * @param dab index of the circle in the design
+     */
+    public void drawSectors(int dab){
+        drawSectors(design.x(dab), design.y(dab), design.radius(dab), design.isReflected(dab));
+    }
+
+    /**
+     * Draws a circle repeated and reflected over sectors
+     * @param x centre x cord
+     * @param y centre y cord
+     * @param radius radius of the circle
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    private void drawSectors(double x, double y, double radius, boolean reflected){
+        long start = System.nanoTime();
+        renderer.drawSectors(x, y, radius, reflected);
+        Metrics.DRAW_SECTORS.recordSince(start);
+    }
+
+    /**
+     * Grows the area to repaint to hold every copy of a Circle about to be drawn live over the sectors, and keeps the
+     * pixels there if they are not kept yet
+     */
+    private void addDirty(double x, double y, double radius, boolean reflected){
+        SectorTransforms sectors = renderer.getSectors();
+        x -= centerX;
+        y -= centerY;
+        //leaves a pixel either side for antialiasing
+        int reach = (int) Math.ceil(radius) + 2;
+        for (int i = 1; i <= lineCount; i++) {
+            addDirty((int) Math.floor(centerX + sectors.rotateX(i, x, y)), (int) Math.floor(centerY + sectors.rotateY(i, x, y)), reach);
+            if (reflected)
+                addDirty((int) Math.floor(centerX + sectors.reflectX(i, x, y)), (int) Math.floor(centerY + sectors.reflectY(i, x, y)), reach);
         }
     }
 
+    private void addDirty(int x, int y, int reach){
+        double scale = imageSize / (double) Design.SIZE;
+        strokeBackup.save((int) Math.floor((x - reach) * scale), (int) Math.floor((y - reach) * scale),
+                (int) Math.ceil((x + reach) * scale), (int) Math.ceil((y + reach) * scale));
+        if (dirtyMaxX < dirtyMinX) {
+            dirtyMinX = x - reach;
+            dirtyMinY = y - reach;
+            dirtyMaxX = x + reach;
+            dirtyMaxY = y + reach;
+        } else {
+            dirtyMinX = Math.min(dirtyMinX, x - reach);
+            dirtyMinY = Math.min(dirtyMinY, y - reach);
+            dirtyMaxX = Math.max(dirtyMaxX, x + reach);
+            dirtyMaxY = Math.max(dirtyMaxY, y + reach);
+        }
+    }
+
+    /** Repaints only the area drawn on since the last repaint */
+    private void repaintDirty(){
+        if (dirtyMaxX >= dirtyMinX) {
+            int left = (int) Math.floor(offsetX + dirtyMinX * displayScale), top = (int) Math.floor(offsetY + dirtyMinY * displayScale);
+            repaint(left, top, (int) Math.ceil(offsetX + (dirtyMaxX + 1) * displayScale) - left + 1,
+                    (int) Math.ceil(offsetY + (dirtyMaxY + 1) * displayScale) - top + 1);
+        }
+        dirtyMaxX = dirtyMaxY = -1;
+        dirtyMinX = dirtyMinY = 0;
+    }
+
     /** Updates the repetition of the pattern when the sector count changes */
     public void updateSectors(){
-        clearCanvas();
-        //for every stored Circle...
-        for (ArrayList<Circle> strokeGroup : design){
-            for(Circle circle : strokeGroup) {
-                //...draw the their shape in their assigned color and size
-                g2.setColor(circle.getBrushColor());
-                drawSectors(circle);
-            }
+        //anything still being drawn off the event thread is now out of date
+        pendingRender = 0;
+        deferredRender = null;
+        history.invalidate();
+        long start = System.nanoTime();
+        renderer.render(design, () -> false);
+        Metrics.UPDATE_SECTORS.recordSince(start);
+        captureIfDue();
+        redrawRemoteStrokes();
+        repaint();
+    }
+
+    /**
+     * Redraws the whole design on the render thread and swaps the new image in once it is done.
+     * The canvas keeps taking input meanwhile, and a newer request replaces one still being drawn
+     */
+    public void requestUpdate(){
+        if (design.strokeCount() == 0) {
+            updateSectors();
+            return;
         }
+        history.invalidate();
+        if (renderWorker == null)
+            renderWorker = new RenderWorker("Canvas render");
+        pendingRender = renderWorker.submit(new RenderWorker.Job(design.view(), lineCount, renderMode,
+                image.getWidth(), image.getHeight(), this::swapIn).transparent());
+    }
+
+    /**
+     * Shows an image drawn on the render thread in place of the current one
+     * @param render finished render
+     */
+    private void swapIn(RenderWorker.Job render){
+        if (render.getGeneration() != pendingRender)
+            return;
+        //an undo or erase since the render started means it is out of date
+        if (render.getDesign().editCount() != design.editCount()) {
+            requestUpdate();
+            return;
+        }
+        if (drawing) {
+            deferredRender = render;
+            return;
+        }
+        pendingRender = 0;
+        deferredRender = null;
+        image = render.getImage();
+        renderer.setImage(image);
+        g2 = renderer.getGraphics();
+        if (history.isDue(render.getDesign().strokeCount()))
+            history.capture(render.getDesign().strokeCount(), image);
+        //strokes added while it was drawing go on top
+        replay(render.getDesign().strokeCount());
+        redrawRemoteStrokes();
         repaint();
     }
+
+    /**
+     * Draws the strokes of the design from a stroke onwards on top of the canvas,
+     * taking checkpoints for undo along the way
+     * @param fromStroke first stroke to draw
+     */
+    private void replay(int fromStroke){
+        for (int stroke = fromStroke; stroke < design.strokeCount(); stroke++) {
+            renderer.drawStroke(design, stroke);
+            if (history.isDue(stroke + 1))
+                history.capture(stroke + 1, image);
+        }
+    }
+
+    /**
+     * Sets how the whole design is redrawn and redraws it
+     * @param renderMode SERIAL to draw on this thread, TILED to draw tiles in parallel, STAMP to copy cached stamps
+     *                   or WEDGE to draw one sector and copy it around
+     */
+    public void setRenderMode(RenderMode renderMode){
+        this.renderMode = renderMode;
+        for (Layer each : layers)
+            each.renderer.setRenderMode(renderMode);
+        updateSectors();
+    }
+
+    /**
+     * Sets whether new strokes are stored as polylines, drawn as one line with round ends, or as rows of Circles
+     * @param polylineStrokes polyline flag
+     */
+    public void setPolylineStrokes(boolean polylineStrokes){
+        this.polylineStrokes = polylineStrokes;
+    }
+
+    /**
+     * Sets how often undo checkpoints are taken and how much memory the checkpoints of every layer may use between them.
+     * Older checkpoints past the budget are compressed and then written to disk
+     * @param interval number of strokes between checkpoints
+     * @param budgetBytes most memory the checkpoints may use
+     */
+    public void setHistoryBudget(int interval, long budgetBytes){
+        history.invalidate();
+        historyInterval = interval;
+        historyManager.setBudget(budgetBytes);
+        for (Layer each : layers) {
+            if (each != layer)
+                each.history.invalidate();
+            each.history = new RasterHistory(interval, historyManager);
+        }
+        history = layer.history;
+    }
+
+    /**
+     * Sets how much memory the strokes of every layer may use. Past it the oldest strokes are paged out to the history,
+     * which compresses them and writes them to disk with the oldest checkpoints, and pages them back in for undo
+     * @param budgetBytes most memory the strokes may use
+     */
+    public void setStrokeBudget(long budgetBytes){
+        historyManager.setStrokeBudget(budgetBytes);
+        pageOutIfDue();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
-        g.drawImage(image, 0, 0, null);
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.setColor(getBackground());
+        g2d.fillRect(0, 0, getWidth(), getHeight());
+        //draws in screen pixels so the layers' images are not scaled again on HiDPI screens
+        AffineTransform screen = g2d.getTransform();
+        int left = (int) Math.round(screen.getTranslateX() + offsetX * screen.getScaleX());
+        int top = (int) Math.round(screen.getTranslateY() + offsetY * screen.getScaleY());
+        g2d.setTransform(new AffineTransform());
+        Rectangle clip = g2d.getClipBounds();
+        Rectangle area = new Rectangle(0, 0, imageSize, imageSize);
+        if (clip != null)
+            area = area.intersection(new Rectangle(clip.x - left, clip.y - top, clip.width, clip.height));
+        if (!area.isEmpty()) {
+            do {
+                Graphics2D viewGraphics = (Graphics2D) view().getGraphics();
+                composite(viewGraphics, area);
+                viewGraphics.dispose();
+                g2d.drawImage(view, left, top, null);
+            } while (view instanceof VolatileImage && ((VolatileImage) view).contentsLost());
+        }
+        g2d.dispose();
+    }
+
+    /**
+     * @return the image the layers are laid over each other in, a VolatileImage on a screen that allows one and a
+     * compatible image otherwise, made again if the screen lost or changed it
+     */
+    private Image view(){
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        if (view instanceof VolatileImage && ((VolatileImage) view).validate(configuration) != VolatileImage.IMAGE_INCOMPATIBLE)
+            return view;
+        //a compatible image made when the screen gave no VolatileImage is kept until the size or screen changes
+        if (view instanceof BufferedImage && configuration == viewConfiguration && view.getWidth(null) == imageSize)
+            return view;
+        viewConfiguration = configuration;
+        view = configuration == null ? null : createVolatileImage(imageSize, imageSize);
+        if (view == null) {
+            view = configuration == null ? new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB)
+                    : configuration.createCompatibleImage(imageSize, imageSize);
+        }
+        return view;
+    }
+
+    /** Lays the visible layers' images over white in an area */
+    private void composite(Graphics2D g, Rectangle area){
+        g.setClip(area);
+        g.setColor(Color.white);
+        g.fill(area);
+        for (Layer shown : opening != null ? opening : layers) {
+            if (shown.visible)
+                g.drawImage(shown.renderer.getImage(), 0, 0, null);
+        }
+    }
+
+    /** Repaints the part of the canvas showing an area of the layers' images */
+    private void repaintImage(Rectangle area){
+        double scale = displayScale * Design.SIZE / imageSize;
+        int left = (int) Math.floor(offsetX + area.x * scale), top = (int) Math.floor(offsetY + area.y * scale);
+        repaint(left, top, (int) Math.ceil(offsetX + (area.x + area.width) * scale) - left + 1,
+                (int) Math.ceil(offsetY + (area.y + area.height) * scale) - top + 1);
+    }
+
+    /**
+     * Adds an empty layer above the selected one, with the same sector settings. The selected layer stays selected
+     * @return position of the new layer, counting from the bottom
+     */
+    public int addLayer(){
+        if (recorder != null)
+            recorder.control(InputTrace.ADD_LAYER);
+        int index = layer == null ? 0 : layers.indexOf(layer) + 1;
+        layers.add(index, newLayer("Layer " + ++layersMade, new StrokeStore(), lineCount, reflected));
+        return index;
+    }
+
+    /** @return a layer of strokes with a clear image of imageSize, not yet drawn on */
+    private Layer newLayer(String name, StrokeStore strokes, int lineCount, boolean reflected){
+        Layer made = new Layer();
+        made.name = name;
+        made.design = strokes;
+        made.history = new RasterHistory(historyInterval, historyManager);
+        made.renderer = new SectorRenderer(new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_ARGB_PRE));
+        made.renderer.setRenderMode(renderMode);
+        made.renderer.setLineCount(lineCount);
+        made.lineCount = lineCount;
+        made.reflected = reflected;
+        made.renderer.clear();
+        return made;
+    }
+
+    /** Counts the layers loaded as made, so new layers are not named like them */
+    private void countLayersMade(){
+        layersMade = Math.max(layersMade, layers.size());
+        for (Layer each : layers) {
+            if (each.name.matches("Layer \\d{1,9}"))
+                layersMade = Math.max(layersMade, Integer.parseInt(each.name.substring(6)));
+        }
+    }
+
+    /**
+     * Removes the selected layer, unless it is the only one, and selects the one below it
+     */
+    public void removeLayer(){
+        if (layers.size() == 1)
+            return;
+        if (recorder != null)
+            recorder.control(InputTrace.REMOVE_LAYER);
+        finishRender();
+        int index = layers.indexOf(layer);
+        layers.remove(index);
+        layer = null;
+        selectLayer(Math.max(0, index - 1));
+        repaint();
+    }
+
+    /**
+     * Selects the layer drawn on, undone and erased from. Its sector settings become the canvas's
+     * @param index position of the layer, counting from the bottom
+     */
+    public void selectLayer(int index){
+        if (recorder != null)
+            recorder.control(InputTrace.SELECT_LAYER, index);
+        if (layer != null) {
+            finishRender();
+            //keeps the parts of the layer that may have been replaced while it was selected
+            layer.design = design;
+            layer.history = history;
+            layer.lineCount = lineCount;
+            layer.reflected = reflected;
+        }
+        useLayer(layers.get(index));
+    }
+
+    /** Makes a layer the one drawn on, taking on its strokes and sector settings */
+    private void useLayer(Layer used){
+        layer = used;
+        design = layer.design;
+        designGrid = layer.designGrid;
+        history = layer.history;
+        renderer = layer.renderer;
+        lineCount = layer.lineCount;
+        reflected = layer.reflected;
+        image = renderer.getImage();
+        g2 = renderer.getGraphics();
+        g2.setColor(brushColor);
+    }
+
+    /**
+     * Moves a layer up or down the order
+     * @param index position of the layer, counting from the bottom
+     * @param newIndex position to move it to
+     */
+    public void moveLayer(int index, int newIndex){
+        if (recorder != null)
+            recorder.control(InputTrace.MOVE_LAYER, index, newIndex);
+        layers.add(newIndex, layers.remove(index));
+        repaint();
+    }
+
+    /**
+     * Shows or hides a layer. A hidden layer can still be drawn on
+     * @param index position of the layer, counting from the bottom
+     * @param visible visible flag
+     */
+    public void setLayerVisible(int index, boolean visible){
+        if (recorder != null)
+            recorder.control(InputTrace.LAYER_VISIBLE, index, visible ? 1 : 0);
+        layers.get(index).visible = visible;
+        repaint();
+    }
+
+    public boolean isLayerVisible(int index){
+        return layers.get(index).visible;
+    }
+    public String getLayerName(int index){
+        return layers.get(index).name;
+    }
+    public int getLayerCount(){
+        return layers.size();
+    }
+    /** @return position of the selected layer, counting from the bottom */
+    public int getSelectedLayer(){
+        return layers.indexOf(layer);
+    }
+    public int getLineCount(){
+        return lineCount;
+    }
+    public boolean isReflected(){
+        return reflected;
+    }
+
+    /** Finishes a redraw of the selected layer still on its way here, so it is not lost when another layer is selected */
+    private void finishRender(){
+        if (pendingRender != 0 || deferredRender != null)
+            updateSectors();
+    }
+
+    /** @return number of Circles stored in every layer */
+    private int storedDabs(){
+        int dabs = design.dabCount();
+        for (Layer other : layers) {
+            if (other != layer)
+                dabs += other.design.dabCount();
+        }
+        return dabs;
     }
 
     /**Updates the line count for the sectors
      * @param lineCount number of repeats
      */
     public void setLineCount(Integer lineCount){
+        if (lineCount == this.lineCount)
+            return;
+        if (recorder != null)
+            recorder.control(InputTrace.LINE_COUNT, lineCount);
         this.lineCount = lineCount;
-        updateSectors();
+        if (session != null)
+            sendLineCount();
+        renderer.setLineCount(lineCount);
+        requestUpdate();
     }
 
     /**
@@ -164,23 +1232,25 @@ public class Canvas extends JPanel{
      * @param reflected boolean flag
      */
     public void setReflected(boolean reflected){
+        if (recorder != null)
+            recorder.control(InputTrace.REFLECT, reflected ? 1 : 0);
         this.reflected = reflected;
     }
 
-    /**clears the canvas and the stack of Circles */
+    /**clears the selected layer and its stack of Circles */
     public void clear() {
+        if (recorder != null)
+            recorder.control(InputTrace.CLEAR);
         design.clear();
+        designGrid.clear();
+        history.invalidate();
         clearCanvas();
     }
 
     /** Clears the canvas of paint */
     public void clearCanvas(){
-        Color brushColour = g2.getColor();
-        g2.setPaint(Color.white);
-
         // draw white on entire draw area to clear
-        g2.fillRect(0, 0, getSize().width, getSize().height);
-        g2.setPaint(brushColour);
+        renderer.clear();
         repaint();
     }
 
@@ -189,6 +1259,8 @@ public class Canvas extends JPanel{
      * @param selected eraser flag
      */
     public void eraser(boolean selected){
+        if (recorder != null)
+            recorder.control(InputTrace.ERASER, selected ? 1 : 0);
         if (selected){
             eraseMode = true;
             tempColor = g2.getColor();
@@ -201,106 +1273,393 @@ public class Canvas extends JPanel{
 
     /** creates a new collection of lines that will be undone if undo is pressed */
     public void newStokeGroup(){
-        strokeGroup = new ArrayList<>();
+        design.beginStroke();
     }
 
-    /** Saves the current image to the undo stack */
-    public void addToDesign(ArrayList<Circle> strokeGroup){
-        design.add(strokeGroup);
+    /** Saves the stroke being drawn to the design */
+    public void addToDesign(){
+        design.endStroke();
+        designGrid.addStroke(design, design.strokeCount() - 1);
+        pageOutIfDue();
+        Metrics.DABS_PER_STROKE.record(design.strokeEnd(design.strokeCount() - 1) - design.strokeStart(design.strokeCount() - 1));
+        //a simplified stroke is drawn slightly differently from its live drawing, so the pixels under the live drawing are
+        //put back and the stored stroke drawn over them, to keep the canvas the same as a replay of the design. So is a polyline, whose live segments overlap at the joins
+        if (strokeBuilder.isSimplified() || design.isPolyline(design.strokeStart(design.strokeCount() - 1))) {
+            //strokes other clients are drawing are on the image too, so only a checkpoint puts those back right
+            boolean putBack = remoteStrokes.isEmpty() && endedRemote.isEmpty() && strokeBackup.restore(image, renderer.imageVersion());
+            if (!putBack) {
+                restoreFromHistory();
+                return;
+            }
+            renderer.drawStroke(design, design.strokeCount() - 1);
+            repaint();
+        }
+        captureIfDue();
     }
 
-    /**
-     * Removes points that have been selected by the erase tool
-     * @param strokeGroup
-     */
-    public void  removeFromDesign(ArrayList<Circle> strokeGroup){
-        //For all Circles in design...
-        strokeGroup = duplicateSectors(strokeGroup);
-        for (ArrayList<Circle> strokeSet : design){
-            Iterator<Circle> circleItr = strokeSet.iterator();
-            while(circleItr.hasNext()) {
-                Circle circle = circleItr.next();
-                for (Circle eraseCircle : strokeGroup){
-                    //measures the square of the distance between the centres of the circles to see if they over lap
-                    if ((eraseCircle.getX() - circle.getX()) * (eraseCircle.getX() - circle.getX()) + (eraseCircle.getY() - circle.getY()) * (eraseCircle.getY() - circle.getY()) <=
-                            ((circle.getRadius() + eraseCircle.getRadius()) * (circle.getRadius() + eraseCircle.getRadius()))) {
-                        //removes the circles
-                        circleItr.remove();
-                        break;
+    /** Removes points that have been selected by the erase tool, using the stroke being drawn as the eraser */
+    public void removeFromDesign(){
+        long start = System.nanoTime();
+        int eraseCount = duplicateSectors(design.openStart(), design.dabCount());
+        design.discardStroke();
+        //For every eraser Circle, only the stored Circles in nearby cells of the grid are checked
+        for (int i = 0; i < eraseCount; i++) {
+            float eraseX = renderer.copyX(i), eraseY = renderer.copyY(i), eraseR = renderer.copyRadius(i);
+            int found = designGrid.query(eraseX, eraseY, eraseR);
+            for (int j = 0; j < found; j++) {
+                int dab = designGrid.found(j);
+                if (design.hasSegment(dab)) {
+                    //a segment is hit if the eraser centre is within both radii of it
+                    double distance = StrokeBuilder.distanceToSegment(eraseX, eraseY, design.x(dab), design.y(dab),
+                            design.x(dab + 1), design.y(dab + 1));
+                    if (distance <= eraseR + design.radius(dab)) {
+                        addDamage(dab);
+                        designGrid.remove(design, dab);
+                        design.breakSegment(dab);
                     }
+                    continue;
+                }
+                //measures the square of the distance between the centres of the circles to see if they over lap
+                float dx = eraseX - design.x(dab), dy = eraseY - design.y(dab), reach = eraseR + design.radius(dab);
+                if (dx * dx + dy * dy <= reach * reach) {
+                    //removes the circles
+                    addDamage(dab);
+                    designGrid.remove(design, dab);
+                    design.erase(dab);
                 }
             }
         }
-        updateSectors();
+        //earlier strokes have changed, so every checkpoint is out of date
+        history.invalidate();
+        if (repairDamage()) {
+            captureIfDue();
+        } else {
+            requestUpdate();
+        }
+        Metrics.ERASE.recordSince(start);
     }
 
     /**
-     * Instead of drawing the same line many times but rotated and reflected, this method adds
-     * the rotations and reflections to the array list as physical circle objects
-     * @param strokeGroup group of circles to be duplicated then rotated
-     * @return new group with additional circles
-     */
-    public ArrayList<Circle> duplicateSectors(ArrayList<Circle> strokeGroup){
-        ArrayList<Circle> circlesToAdd = new ArrayList<>();
-        Iterator<Circle> circleItr = strokeGroup.iterator();
-        while (circleItr.hasNext()) {
-            Circle circle = circleItr.next();
-            if (lineCount != 0) {
-                //rotates each item around each sector
-                double incrAngle = (Math.PI * 2 / lineCount);
-                for (int i = 1; i <= lineCount; i++) {
-                    AffineTransform rotateLine = AffineTransform.getRotateInstance(i * incrAngle, centerX, centerY);
-                    //Creates a new shape from the transformed old shape
-                    Shape newShape = rotateLine.createTransformedShape(circle.getShape());
-                    //makes the shape into a new copy of circle and adds to the array list
-                    circlesToAdd.add(circle.copy(new Ellipse2D.Double(newShape.getBounds().x, newShape.getBounds().y, newShape.getBounds().height, newShape.getBounds().width)));
-                    if (circle.isReflected()) {
-                        //Translates to the x-axis, reflects over the x-axis and translates back
-                        AffineTransform reflectLine = AffineTransform.getRotateInstance(i * incrAngle, centerX, centerY);
-                        reflectLine.translate(centerX, 0);
-                        reflectLine.scale(-1, 1);
-                        reflectLine.translate(-centerX, 0);
-                        newShape = reflectLine.createTransformedShape(circle.getShape());
-                        circlesToAdd.add(circle.copy(new Ellipse2D.Double(newShape.getBounds().x, newShape.getBounds().y, newShape.getBounds().height, newShape.getBounds().width)));
-                    }
+     * Copies the rotations and reflections of a group of stored circles over every sector, read back from the renderer
+     * @param from first circle of the group to be duplicated
+     * @param to index one past the last circle of the group
+     * @return number of circles copied
+     */
+    public int duplicateSectors(int from, int to){
+        return renderer.duplicateSectors(design, from, to);
+    }
+
+    /** Recovers previous paintings from the UndoStack and displays them */
+    public void undo(){
+        if (recorder != null)
+            recorder.control(InputTrace.UNDO);
+        long start = System.nanoTime();
+        if (design.undo()) {
+            int stroke = design.strokeCount();
+            for (int dab = design.strokeStart(stroke); dab < design.strokeEnd(stroke); dab++) {
+                if (!design.isErased(dab))
+                    addDamage(dab);
+            }
+            designGrid.removeStroke(design, stroke);
+            if (!repairDamage())
+                restoreFromHistory();
+            Metrics.UNDO.recordSince(start);
+        }
+    }
+
+    /** Adds a stored Circle, or the segment from a polyline point to the next, to the damaged area */
+    private void addDamage(int dab){
+        float x = design.x(dab), y = design.y(dab), radius = design.radius(dab);
+        if (design.hasSegment(dab)) {
+            float toX = design.x(dab + 1), toY = design.y(dab + 1);
+            addDamage((x + toX) / 2, (y + toY) / 2, Math.hypot(toX - x, toY - y) / 2 + radius, design.isReflected(dab));
+        } else {
+            addDamage(x, y, radius, design.isReflected(dab));
+        }
+    }
+
+    /**
+     * Adds a circle to the damaged area. Its copies are the same whichever sector it is turned into,
+     * so it is turned into the sector that grows the area least, keeping the damage from many sectors in one small rectangle
+     */
+    private void addDamage(double x, double y, double reach, boolean reflected){
+        //leaves a pixel either side for antialiasing
+        reach = Math.ceil(reach) + 2;
+        Rectangle2D bounds = new Rectangle2D.Double(x - reach, y - reach, reach * 2, reach * 2);
+        damagedReflected |= reflected;
+        if (damaged == null) {
+            damaged = bounds;
+            return;
+        }
+        SectorTransforms sectors = renderer.getSectors();
+        double dx = x - centerX, dy = y - centerY;
+        double least = grownArea(bounds);
+        for (int i = 1; i <= lineCount; i++) {
+            //a reflected circle can be reflected too, as its reflected copies are redrawn with it
+            for (int side = reflected ? -1 : 1; side <= 1; side += 2) {
+                Rectangle2D turned = new Rectangle2D.Double(centerX + side * sectors.rotateX(i, dx, dy) - reach,
+                        centerY + sectors.rotateY(i, dx, dy) - reach, reach * 2, reach * 2);
+                double grown = grownArea(turned);
+                if (grown < least) {
+                    least = grown;
+                    bounds = turned;
                 }
             }
         }
-        strokeGroup.addAll(circlesToAdd);
-        return strokeGroup;
+        damaged.add(bounds);
     }
 
-    /** Recovers previous paintings from the UndoStack and displays them */
-    public void undo(){
-        if(!design.isEmpty()) {
-            ArrayList<Circle> toUndo = design.get(design.size()-1); //gets last added element
-            design.remove(design.size()-1); //removes it
-            //pushes Circle group to redo stack
-            redoStack.push(toUndo);
-            updateSectors();
+    /** @return area of the damaged area once grown to hold a rectangle */
+    private double grownArea(Rectangle2D bounds){
+        Rectangle2D union = damaged.createUnion(bounds);
+        return union.getWidth() * union.getHeight();
+    }
+
+    /**
+     * Redraws only the damaged area, every copy of it over the sectors, from the stored Circles with a copy that touches it
+     * @return false if the area was left alone, as a render is on its way, the area is most of the canvas or the
+     * render mode cannot redraw an area without seams
+     */
+    private boolean repairDamage(){
+        Rectangle2D source = damaged;
+        boolean reflected = damagedReflected;
+        damaged = null;
+        damagedReflected = false;
+        if (source == null)
+            return pendingRender == 0;
+        double copies = Math.max(1, lineCount) * (reflected ? 2 : 1);
+        if (pendingRender != 0 || !renderer.canRenderArea()
+                || source.getWidth() * source.getHeight() * copies * 2 > (double) Design.SIZE * Design.SIZE)
+            return false;
+        int count = findTouching(source);
+        Rectangle redrawn = renderer.renderArea(design, touching, count, source, reflected);
+        if (!redrawn.isEmpty())
+            repaintImage(redrawn);
+        return true;
+    }
+
+    /**
+     * Finds the stored Circles with a copy that may touch any copy of an area, by looking for Circles in the grid
+     * near every copy of the area
+     * @param source area in the design
+     * @return number of Circles found, held in drawing order at the start of touching
+     */
+    private int findTouching(Rectangle2D source){
+        SectorTransforms sectors = renderer.getSectors();
+        double x = source.getCenterX() - centerX, y = source.getCenterY() - centerY;
+        //the copies of the area are redrawn by their bounds, which reach past its corners when turned
+        float reach = (float) (Math.hypot(source.getWidth(), source.getHeight()) / Math.sqrt(2));
+        int count = 0;
+        for (int i = 1; i <= lineCount; i++) {
+            float copyX = (float) sectors.rotateX(i, x, y), copyY = (float) sectors.rotateY(i, x, y);
+            count = addTouching(count, centerX + copyX, centerY + copyY, reach);
+            //a reflected Circle here has a copy over the area
+            count = addTouching(count, centerX - copyX, centerY + copyY, reach);
+        }
+        //a polyline is drawn whole from the start of its run
+        for (int i = 0; i < count; i++) {
+            while (design.hasSegmentBefore(touching[i]))
+                touching[i]--;
+        }
+        Arrays.sort(touching, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || touching[i] != touching[unique - 1])
+                touching[unique++] = touching[i];
         }
+        return unique;
+    }
+
+    /** Adds the stored Circles the grid finds near a point to touching */
+    private int addTouching(int count, float x, float y, float reach){
+        int found = designGrid.query(x, y, reach);
+        if (count + found > touching.length)
+            touching = Arrays.copyOf(touching, Math.max(touching.length * 2, count + found));
+        for (int j = 0; j < found; j++)
+            touching[count++] = designGrid.found(j);
+        return count;
+    }
+
+    /** Goes back to the nearest checkpoint and only draws the strokes of the design after it */
+    private void restoreFromHistory(){
+        //a render on its way will hold the strokes anyway
+        if (pendingRender != 0)
+            return;
+        int restored = history.restore(design.strokeCount(), image);
+        renderer.imageChanged();
+        if (restored < 0) {
+            clearCanvas();
+            restored = 0;
+        }
+        replay(restored);
+        redrawRemoteStrokes();
+        repaint();
     }
 
     /** Recovers previous paintings from the redo Stack and displays them */
     public void redo(){
-        if (!redoStack.empty()) {
-            ArrayList<Circle> toRedo = redoStack.pop();
-            design.add(toRedo);
-            updateSectors();
+        if (recorder != null)
+            recorder.control(InputTrace.REDO);
+        long start = System.nanoTime();
+        if (design.redo()) {
+            designGrid.addStroke(design, design.strokeCount() - 1);
+            //the stroke goes back on top of what is already drawn
+            renderer.drawStroke(design, design.strokeCount() - 1);
+            captureIfDue();
+            repaint();
+            Metrics.REDO.recordSince(start);
         }
     }
 
     /**Emptys the redo arraylist */
     public void clearRedo(){
-        redoStack.clear();
+        design.clearRedo();
+        history.truncate(design.strokeCount());
+    }
+
+    /** @return the design as it is now, sharing the stored Circles, for drawing or saving away from the canvas */
+    public Design getDesign(){
+        return new Design(design.view(), lineCount, reflected);
+    }
+
+    /**
+     * @return the designs of the visible layers from the bottom up, as copy on write snapshots,
+     * so they can be drawn on another thread while the canvas is changed
+     */
+    public List<Design> getVisibleDesigns(){
+        return snapshotDesign().getVisibleDesigns();
+    }
+
+    /** @return a copy on write snapshot of every layer, which copies no Circles until the canvas or the snapshot changes them */
+    public Snapshot snapshotDesign(){
+        ArrayList<Design> saved = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        boolean[] visible = new boolean[layers.size()];
+        for (int i = 0; i < layers.size(); i++) {
+            Layer each = layers.get(i);
+            if (each == layer)
+                saved.add(new Design(design.snapshot(), lineCount, reflected));
+            else
+                saved.add(new Design(each.design.snapshot(), each.lineCount, each.reflected));
+            names.add(each.name);
+            visible[i] = each.visible;
+        }
+        return new Snapshot(saved, names, visible, layers.indexOf(layer));
+    }
+
+    /**
+     * Replaces every layer with those of a snapshot, so a design saved to the gallery can be changed again.
+     * The layers take snapshots of its strokes, so the saved design stays as it is and no Circles are copied
+     * until a layer is changed
+     * @param saved snapshot to load
+     */
+    public void load(Snapshot saved){
+        pendingRender = 0;
+        deferredRender = null;
+        //the old layers' checkpoints are no use
+        history.invalidate();
+        for (Layer each : layers) {
+            if (each != layer)
+                each.history.invalidate();
+        }
+        layers.clear();
+        for (int i = 0; i < saved.layers.size(); i++) {
+            Design each = saved.layers.get(i);
+            Layer loaded = newLayer(saved.names.get(i), each.getStrokes().snapshot(), each.getLineCount(), each.isReflected());
+            loaded.visible = saved.visible[i];
+            for (int stroke = 0; stroke < loaded.design.strokeCount(); stroke++)
+                loaded.designGrid.addStroke(loaded.design, stroke);
+            if (i != saved.selected)
+                loaded.renderer.render(loaded.design, () -> false);
+            layers.add(loaded);
+        }
+        countLayersMade();
+        useLayer(layers.get(saved.selected));
+        updateSectors();
+    }
+
+    /**
+     * Saves the design to a file so it can be opened again
+     * @param file file to write
+     * @throws IOException if the file could not be written
+     */
+    public void saveDesign(Path file) throws IOException {
+        DesignFile.write(snapshotDesign(), file);
+    }
+
+    /**
+     * Replaces every layer with those read from a file. Strokes are drawn as they are read and shown in place of
+     * the design, so the start of a large design shows before the rest of the file is read. The layers only replace
+     * the design once the whole file is read, so a file that cannot be read leaves the design as it was
+     * @param file file to read
+     * @return the design opened, whose settings the canvas now uses
+     * @throws IOException if the file could not be read
+     */
+    public Snapshot open(Path file) throws IOException {
+        ArrayList<Layer> read = new ArrayList<>();
+        int[] drawn = {0};
+        opening = read;
+        Snapshot opened;
+        try {
+            opened = DesignFile.read(file, (readDesign, strokeCount) -> {
+                Layer reading = read.isEmpty() ? null : read.get(read.size() - 1);
+                if (reading == null || reading.design != readDesign.getStrokes()) {
+                    //the first call for each layer
+                    reading = newLayer("Layer " + (read.size() + 1), readDesign.getStrokes(), readDesign.getLineCount(), readDesign.isReflected());
+                    read.add(reading);
+                    drawn[0] = 0;
+                }
+                for (; drawn[0] < strokeCount; drawn[0]++) {
+                    reading.renderer.drawStroke(reading.design, drawn[0]);
+                    reading.designGrid.addStroke(reading.design, drawn[0]);
+                    if (reading.history.isDue(drawn[0] + 1))
+                        reading.history.capture(drawn[0] + 1, reading.renderer.getImage());
+                }
+                paintImmediately(0, 0, getWidth(), getHeight());
+            });
+        } catch (IOException | RuntimeException e) {
+            for (Layer each : read)
+                each.history.invalidate();
+            opening = null;
+            repaint();
+            throw e;
+        }
+        opening = null;
+        pendingRender = 0;
+        deferredRender = null;
+        //the old layers' checkpoints are no use
+        history.invalidate();
+        for (Layer each : layers) {
+            if (each != layer)
+                each.history.invalidate();
+        }
+        layers.clear();
+        layers.addAll(read);
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).name = opened.getName(i);
+            layers.get(i).visible = opened.isVisible(i);
+        }
+        countLayersMade();
+        useLayer(layers.get(opened.getSelected()));
+        repaint();
+        return opened;
+    }
+
+    /**
+     * Saves the design to the gallery, which draws it when it is shown
+     * @param gallery gallery to save to
+     */
+    public void save(Gallery gallery){
+        gallery.addDesign(snapshotDesign());
     }
 
-    /**Saves the current image to gallery*/
-    public void save(){
-        BufferedImage imageToSave = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+    /** @return a copy of the image on the canvas, with the visible layers laid over white */
+    public BufferedImage snapshot(){
+        BufferedImage imageToSave = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
         Graphics2D g2d = imageToSave.createGraphics();
-        g2d.drawImage(image, 0, 0, null);
-        ui.addImage(imageToSave);
+        composite(g2d, new Rectangle(0, 0, imageSize, imageSize));
+        g2d.dispose();
+        return imageToSave;
     }
 
 }
@@ -0,0 +1,220 @@
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the canvas that holds the index of every dab in the design by the cell its centre is in.
+ * Used so the eraser only has to check the dabs near it rather than the whole design.
+ * A polyline point joined to the next point is held by every cell the segment between them, widened by its radius,
+ * overlaps, so a long segment does not widen every search. Points that only end a segment are not held, as the
+ * segment covers them.
+ */
+public class DabGrid {
+    private int cellSize;                                           //width and height of a cell in pixels
+    private int columns, rows;
+    private int[][] cells;                                          //dab indexes held in each cell
+    private int[] cellCounts;                                       //how many of each cell's slots are used
+    private int[] spreadCounts;                                     //how many of each cell's dabs are segments held by other cells too
+    private float maxRadius;                                        //largest radius of a dab held by its centre, used to widen searches
+    private int size;                                               //number of dabs held
+    private int[] found = new int[64];                              //dab indexes found by the last query
+
+    /**
+     * Creates an empty grid
+     * @param width width of the canvas
+     * @param height height of the canvas
+     * @param cellSize width and height of a cell
+     */
+    public DabGrid(int width, int height, int cellSize){
+        this.cellSize = cellSize;
+        columns = Math.max(1, (width + cellSize - 1) / cellSize);
+        rows = Math.max(1, (height + cellSize - 1) / cellSize);
+        cells = new int[columns * rows][];
+        cellCounts = new int[columns * rows];
+        spreadCounts = new int[columns * rows];
+    }
+
+    /**
+     * Adds a dab to the cell its centre lies in
+     * @param dab index of the dab
+     * @param x centre x cord
+     * @param y centre y cord
+     * @param radius radius of the dab
+     */
+    public void add(int dab, float x, float y, float radius){
+        addToCell(cellAt(x, y), dab);
+        maxRadius = Math.max(maxRadius, radius);
+        size++;
+    }
+
+    private void addToCell(int cell, int dab){
+        int[] slots = cells[cell];
+        if (slots == null)
+            slots = cells[cell] = new int[8];
+        else if (cellCounts[cell] == slots.length)
+            slots = cells[cell] = Arrays.copyOf(slots, slots.length * 2);
+        slots[cellCounts[cell]++] = dab;
+    }
+
+    /**
+     * Removes a dab from the grid
+     * @param dab index of the dab
+     * @param x centre x cord it was added with
+     * @param y centre y cord it was added with
+     */
+    public void remove(int dab, float x, float y){
+        if (removeFromCell(cellAt(x, y), dab))
+            size--;
+    }
+
+    private boolean removeFromCell(int cell, int dab){
+        int[] slots = cells[cell];
+        for (int i = cellCounts[cell] - 1; i >= 0; i--) {
+            if (slots[i] == dab) {
+                //moves the last slot into the gap
+                slots[i] = slots[--cellCounts[cell]];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds or removes the segment from a polyline point to the next in every cell it overlaps
+     * @param design stored dabs
+     * @param dab index of the point starting the segment
+     * @param adding true to add the segment, false to remove it
+     */
+    private void segment(StrokeStore design, int dab, boolean adding){
+        float radius = design.radius(dab);
+        float x = design.x(dab), y = design.y(dab), toX = design.x(dab + 1), toY = design.y(dab + 1);
+        int firstColumn = column(Math.min(x, toX) - radius), lastColumn = column(Math.max(x, toX) + radius);
+        int firstRow = row(Math.min(y, toY) - radius), lastRow = row(Math.max(y, toY) + radius);
+        int spread = firstColumn == lastColumn && firstRow == lastRow ? 0 : 1;
+        boolean found = false;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                if (adding) {
+                    addToCell(cell, dab);
+                    spreadCounts[cell] += spread;
+                } else if (removeFromCell(cell, dab)) {
+                    spreadCounts[cell] -= spread;
+                    found = true;
+                }
+            }
+        }
+        if (adding)
+            size++;
+        else if (found)
+            size--;
+    }
+
+    /**
+     * Adds a stored dab, or the segment from a polyline point to the next
+     * @param design stored dabs
+     * @param dab index of the dab
+     */
+    public void add(StrokeStore design, int dab){
+        if (design.isErased(dab))
+            return;
+        if (design.hasSegment(dab)) {
+            segment(design, dab, true);
+        } else if (!design.hasSegmentBefore(dab)) {
+            add(dab, design.x(dab), design.y(dab), design.radius(dab));
+        }
+    }
+
+    /**
+     * Removes a stored dab, or the segment from a polyline point to the next. Called before the dab is erased or its
+     * segment broken, so it is found where it was added
+     * @param design stored dabs
+     * @param dab index of the dab
+     */
+    public void remove(StrokeStore design, int dab){
+        if (design.isErased(dab))
+            return;
+        if (design.hasSegment(dab))
+            segment(design, dab, false);
+        else if (!design.hasSegmentBefore(dab))
+            remove(dab, design.x(dab), design.y(dab));
+    }
+
+    /** Adds the dabs of a stroke that have not been erased */
+    public void addStroke(StrokeStore design, int stroke){
+        for (int dab = design.strokeStart(stroke), end = design.strokeEnd(stroke); dab < end; dab++)
+            add(design, dab);
+    }
+
+    /** Removes the dabs of a stroke that have not been erased */
+    public void removeStroke(StrokeStore design, int stroke){
+        for (int dab = design.strokeStart(stroke), end = design.strokeEnd(stroke); dab < end; dab++)
+            remove(design, dab);
+    }
+
+    /**
+     * Finds every dab that could overlap a circle, each once. Dabs are only near, not always overlapping
+     * @param x centre x cord of the circle
+     * @param y centre y cord of the circle
+     * @param radius radius of the circle
+     * @return number of dabs found, read back with found(i)
+     */
+    public int query(float x, float y, float radius){
+        float reach = radius + maxRadius;
+        int firstColumn = column(x - reach), lastColumn = column(x + reach);
+        int firstRow = row(y - reach), lastRow = row(y + reach);
+        int count = 0;
+        int spread = 0;                                             //cells found holding segments that other cells hold too
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * columns + column;
+                int cellCount = cellCounts[cell];
+                if (cellCount == 0)
+                    continue;
+                if (count + cellCount > found.length)
+                    found = Arrays.copyOf(found, Math.max(found.length * 2, count + cellCount));
+                System.arraycopy(cells[cell], 0, found, count, cellCount);
+                count += cellCount;
+                if (spreadCounts[cell] > 0)
+                    spread++;
+            }
+        }
+        if (spread < 2)
+            return count;
+        //the same segment may have been found in more than one cell
+        Arrays.sort(found, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || found[i] != found[unique - 1])
+                found[unique++] = found[i];
+        }
+        return unique;
+    }
+
+    /** @return index of a dab found by the last query */
+    public int found(int i){
+        return found[i];
+    }
+
+    /** Removes every dab */
+    public void clear(){
+        Arrays.fill(cellCounts, 0);
+        Arrays.fill(spreadCounts, 0);
+        maxRadius = 0;
+        size = 0;
+    }
+
+    /** @return number of dabs held */
+    public int size(){
+        return size;
+    }
+
+    private int cellAt(float x, float y){
+        return row(y) * columns + column(x);
+    }
+    //cords off the canvas are kept in the edge cells
+    private int column(float x){
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor(x / cellSize)));
+    }
+    private int row(float y){
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor(y / cellSize)));
+    }
+}
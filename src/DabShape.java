@@ -0,0 +1,108 @@
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+
+/**
+ * The shape drawn for a stored dab, reused from one dab to the next.
+ * A Circle dab is filled as a Circle. The first point of a run of joined polyline points is drawn as the whole run,
+ * stroked with round caps and joins, and the other points of the run draw nothing.
+ * Also keeps a circle around the shape so its copies can be found without building them.
+ */
+public class DabShape {
+    private Ellipse2D.Double circle = new Ellipse2D.Double();
+    private Path2D.Float path = new Path2D.Float();
+    private BasicStroke stroke = new BasicStroke(1, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    private boolean stroked;                                        //flags if the shape is the path rather than the circle
+    private double centerX, centerY, reach;                         //circle around the shape
+
+    /**
+     * Sets the shape to a stored dab
+     * @param design stored dabs
+     * @param dab index of the dab
+     * @return false if the dab draws nothing, because it was erased or is drawn as part of an earlier point's run
+     */
+    public boolean set(StrokeStore design, int dab){
+        if (design.isErased(dab) || design.hasSegmentBefore(dab))
+            return false;
+        float radius = design.radius(dab);
+        if (!design.hasSegment(dab)) {
+            setCircle(design.x(dab), design.y(dab), radius);
+            return true;
+        }
+        path.reset();
+        path.moveTo(design.x(dab), design.y(dab));
+        float minX = design.x(dab), maxX = minX, minY = design.y(dab), maxY = minY;
+        do {
+            dab++;
+            float x = design.x(dab), y = design.y(dab);
+            path.lineTo(x, y);
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        } while (design.hasSegment(dab));
+        setStroke(radius);
+        centerX = (minX + maxX) / 2.0;
+        centerY = (minY + maxY) / 2.0;
+        reach = Math.hypot(maxX - minX, maxY - minY) / 2 + radius;
+        return true;
+    }
+
+    /** Sets the shape to a Circle */
+    public void setCircle(double x, double y, double radius){
+        stroked = false;
+        circle.setFrame(x - radius, y - radius, radius * 2, radius * 2);
+        centerX = x;
+        centerY = y;
+        reach = radius;
+    }
+
+    /** Sets the shape to a single capsule, a segment with round caps as wide as a Circle */
+    public void setSegment(double fromX, double fromY, double toX, double toY, double radius){
+        path.reset();
+        path.moveTo(fromX, fromY);
+        path.lineTo(toX, toY);
+        setStroke(radius);
+        centerX = (fromX + toX) / 2;
+        centerY = (fromY + toY) / 2;
+        reach = Math.hypot(toX - fromX, toY - fromY) / 2 + radius;
+    }
+
+    /** Draws the shape with the graphics' current color and transform */
+    public void paint(Graphics2D g){
+        if (stroked) {
+            //pure strokes are placed exactly, like the filled Circles
+            Stroke old = g.getStroke();
+            Object control = g.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL);
+            g.setStroke(stroke);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            g.draw(path);
+            g.setStroke(old);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, control);
+        } else {
+            g.fill(circle);
+        }
+    }
+
+    /** @return true if the shape is a plain Circle */
+    public boolean isCircle(){
+        return !stroked;
+    }
+
+    //circle around the shape
+    public double centerX(){
+        return centerX;
+    }
+    public double centerY(){
+        return centerY;
+    }
+    public double reach(){
+        return reach;
+    }
+
+    private void setStroke(double radius){
+        stroked = true;
+        if (stroke.getLineWidth() != (float) (radius * 2))
+            stroke = new BasicStroke((float) (radius * 2), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    }
+}
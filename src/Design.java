@@ -0,0 +1,31 @@
+/**
+ * A design that can be drawn away from the canvas: its stored Circles, the number of sectors they are repeated over
+ * and whether new Circles were being reflected
+ */
+public class Design {
+    public static final int SIZE = 600;                             //width and height the cords of every design are measured in
+    private StrokeStore strokes;                                    //Circles of the design in groups of strokes
+    private int lineCount;                                          //how many Lines divide the design into sectors
+    private boolean reflected;                                      //flags if the canvas was reflecting new Circles
+
+    /**
+     * @param strokes Circles of the design
+     * @param lineCount number of sectors
+     * @param reflected reflect setting of the canvas
+     */
+    public Design(StrokeStore strokes, int lineCount, boolean reflected){
+        this.strokes = strokes;
+        this.lineCount = lineCount;
+        this.reflected = reflected;
+    }
+
+    public StrokeStore getStrokes(){
+        return strokes;
+    }
+    public int getLineCount(){
+        return lineCount;
+    }
+    public boolean isReflected(){
+        return reflected;
+    }
+}
@@ -0,0 +1,238 @@
+import java.awt.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Reads and writes designs as files so they can be kept and drawn later without the canvas.
+ *
+ * Version 4 files are binary: the bytes "DOIL", the version, the number of layers and the selected layer, then each
+ * layer from the bottom up. A layer is a settings byte holding the reflect setting and the visible flag, the length
+ * and UTF-8 bytes of its name, then the line count, the palette as argb ints and the strokes. Each stroke is its
+ * Circle count followed by the Circles, whose centre and radius are stored in 1/256ths of a pixel as the difference
+ * from the Circle before, then their palette index shifted up 4 bits over their REFLECTED, POLYLINE and BROKEN flags.
+ * Every number other than the palette is a varint, so a Circle next to the last one usually takes 5 or 6 bytes.
+ * Files are written through a FileChannel and read from a memory mapped buffer, so the operating system pages the
+ * file in as the strokes are read.
+ *
+ * Erased Circles and undone strokes are not written.
+ */
+public class DesignFile {
+    public static final String EXTENSION = ".doily";                //file name ending of design files
+    private static final int MAGIC = 0x444F494C;                    //"DOIL", first bytes of a binary design file
+    private static final byte VERSION = 4;                          //version of the binary format written
+    private static final int STORED_FLAGS = StrokeStore.REFLECTED | StrokeStore.POLYLINE | StrokeStore.BROKEN;
+    private static final float FIXED = 256;                         //cords and radii are stored in 1/256ths of a pixel
+    private static final int STREAM_STROKES = 64;                   //strokes read between progress reports
+    private static final int REFLECTED = 1, VISIBLE = 2;            //bits of a layer's settings byte
+
+    /** Told about the strokes of a design as they are read, so drawing can start before the whole file is read */
+    public interface Progress {
+        /**
+         * Called on the reading thread every few strokes and once at the end of each layer, layers from the bottom up.
+         * The layer's settings are known from its first call and strokes are only ever added to the end of its store
+         * @param design layer being read
+         * @param strokeCount number of strokes read so far
+         */
+        void strokesRead(Design design, int strokeCount);
+    }
+
+    /**
+     * Writes a design of one layer to a file in the binary format
+     * @param design design to write
+     * @param file file to write to
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Design design, Path file) throws IOException {
+        write(singleLayer(design), file);
+    }
+
+    /**
+     * Writes every layer of a design to a file in the binary format. The file is written next to the old one and moved
+     * over it once done, so a failed save does not lose the old file
+     * @param design layers to write
+     * @param file file to write to
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Canvas.Snapshot design, Path file) throws IOException {
+        ByteBuffer buffer = encode(design);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a design from a file
+     * @param file file to read
+     * @return the layers of the design in the file
+     * @throws IOException if the file could not be read or is not a design file
+     */
+    public static Canvas.Snapshot read(Path file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Reads a design from a file, reporting the strokes as they are read
+     * @param file file to read
+     * @param progress told every few strokes, may be null
+     * @return the layers of the design in the file
+     * @throws IOException if the file could not be read or is not a design file
+     */
+    public static Canvas.Snapshot read(Path file, Progress progress) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 5 || buffer.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a design file");
+            return decode(buffer, file, progress);
+        }
+    }
+
+    /** @return a design of one visible layer */
+    private static Canvas.Snapshot singleLayer(Design design){
+        return new Canvas.Snapshot(Collections.singletonList(design), Collections.singletonList("Layer 1"), new boolean[]{true}, 0);
+    }
+
+    /** Encodes a design into a buffer ready to be written */
+    private static ByteBuffer encode(Canvas.Snapshot design){
+        byte[][] names = new byte[design.getLayers().size()][];
+        //at most 5 bytes per varint
+        int size = 4 + 1 + 5 * 2;
+        for (int i = 0; i < names.length; i++) {
+            StrokeStore strokes = design.getLayers().get(i).getStrokes();
+            names[i] = design.getName(i).getBytes(StandardCharsets.UTF_8);
+            size += 1 + 5 + names[i].length + 5 * 2 + strokes.paletteSize() * 4 + strokes.strokeCount() * 5 + strokes.designEnd() * 20;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        Varints.put(buffer, names.length);
+        Varints.put(buffer, design.getSelected());
+        for (int i = 0; i < names.length; i++) {
+            Design layer = design.getLayers().get(i);
+            buffer.put((byte) ((layer.isReflected() ? REFLECTED : 0) | (design.isVisible(i) ? VISIBLE : 0)));
+            Varints.put(buffer, names[i].length);
+            buffer.put(names[i]);
+            encodeLayer(buffer, layer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Encodes the line count, palette and strokes of a layer */
+    private static void encodeLayer(ByteBuffer buffer, Design design){
+        StrokeStore strokes = design.getStrokes();
+        Varints.put(buffer, design.getLineCount());
+        Varints.put(buffer, strokes.paletteSize());
+        for (int i = 0; i < strokes.paletteSize(); i++)
+            buffer.putInt(strokes.paletteColor(i).getRGB());
+
+        Varints.put(buffer, strokes.strokeCount());
+        int lastX = 0, lastY = 0, lastRadius = 0;
+        for (int stroke = 0; stroke < strokes.strokeCount(); stroke++) {
+            int count = 0;
+            for (int dab = strokes.strokeStart(stroke); dab < strokes.strokeEnd(stroke); dab++)
+                if (!strokes.isErased(dab))
+                    count++;
+            Varints.put(buffer, count);
+            for (int dab = strokes.strokeStart(stroke); dab < strokes.strokeEnd(stroke); dab++) {
+                if (strokes.isErased(dab))
+                    continue;
+                int x = Math.round(strokes.x(dab) * FIXED), y = Math.round(strokes.y(dab) * FIXED);
+                int radius = Math.round(strokes.radius(dab) * FIXED);
+                Varints.put(buffer, Varints.zigzag(x - lastX));
+                Varints.put(buffer, Varints.zigzag(y - lastY));
+                Varints.put(buffer, Varints.zigzag(radius - lastRadius));
+                Varints.put(buffer, strokes.colorIndex(dab) << 4 | (strokes.flags(dab) & STORED_FLAGS));
+                lastX = x;
+                lastY = y;
+                lastRadius = radius;
+            }
+        }
+    }
+
+    /** Decodes a binary design file, from after the magic number */
+    private static Canvas.Snapshot decode(ByteBuffer buffer, Path file, Progress progress) throws IOException {
+        try {
+            buffer.position(4);
+            int version = buffer.get();
+            if (version != VERSION)
+                throw new IOException(file + " is design file version " + version + ", which is not supported");
+            //a layer takes at least 5 bytes: settings, name length, line count, palette size and stroke count
+            int layerCount = getCount(buffer, 5), selected = Varints.get(buffer);
+            if (layerCount < 1 || selected < 0 || selected >= layerCount)
+                throw new IOException(file + " is damaged: layer " + selected + " of " + layerCount + " is selected");
+            ArrayList<Design> layers = new ArrayList<>();
+            ArrayList<String> names = new ArrayList<>();
+            boolean[] visible = new boolean[layerCount];
+            for (int i = 0; i < layerCount; i++) {
+                int settings = buffer.get();
+                visible[i] = (settings & VISIBLE) != 0;
+                byte[] name = new byte[getCount(buffer, 1)];
+                buffer.get(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+                layers.add(decodeLayer(buffer, (settings & REFLECTED) != 0, progress));
+            }
+            return new Canvas.Snapshot(layers, names, visible, selected);
+        } catch (RuntimeException e) {
+            //runs off the end or points outside the palette
+            throw new IOException(file + " is damaged: " + e, e);
+        }
+    }
+
+    /** Decodes the line count, palette and strokes of a layer */
+    private static Design decodeLayer(ByteBuffer buffer, boolean reflected, Progress progress){
+        int lineCount = Varints.get(buffer);
+        Color[] palette = new Color[getCount(buffer, 4)];
+        for (int i = 0; i < palette.length; i++)
+            palette[i] = new Color(buffer.getInt(), true);
+
+        int strokeCount = getCount(buffer, 1);
+        StrokeStore strokes = new StrokeStore(Math.min(buffer.remaining() / 5, 1 << 20));
+        Design design = new Design(strokes, lineCount, reflected);
+        int x = 0, y = 0, radius = 0;
+        for (int stroke = 0; stroke < strokeCount; stroke++) {
+            strokes.beginStroke();
+            for (int count = getCount(buffer, 4); count > 0; count--) {
+                x += Varints.unzigzag(Varints.get(buffer));
+                y += Varints.unzigzag(Varints.get(buffer));
+                radius += Varints.unzigzag(Varints.get(buffer));
+                int colorAndFlags = Varints.get(buffer);
+                strokes.addDab(x / FIXED, y / FIXED, radius / FIXED, palette[colorAndFlags >>> 4], colorAndFlags & STORED_FLAGS);
+            }
+            strokes.endStroke();
+            if (progress != null && (stroke + 1) % STREAM_STROKES == 0)
+                progress.strokesRead(design, stroke + 1);
+        }
+        if (progress != null)
+            progress.strokesRead(design, strokeCount);
+        return design;
+    }
+
+    /**
+     * Reads a count of things stored after it, checked against the bytes left before anything is made room for,
+     * so a damaged count cannot ask for more memory than the file could fill
+     * @param bytesEach fewest bytes each thing takes
+     */
+    private static int getCount(ByteBuffer buffer, int bytesEach){
+        int count = Varints.get(buffer);
+        if (count < 0 || count > buffer.remaining() / bytesEach)
+            throw new IllegalArgumentException("count of " + count + " runs past the end of the file");
+        return count;
+    }
+}
@@ -0,0 +1,51 @@
+import java.awt.*;
+import java.util.Random;
+
+/**
+ * Makes made up designs for benchmarks and load tests. The same seed always gives the same design.
+ * Strokes wander like a hand drawn line, with their Circles spaced the way the StrokeBuilder spaces them,
+ * and use a brush size and a color from a small palette, like a person changing brushes now and then
+ */
+public class DesignGenerator {
+
+    /**
+     * @param seed seed of the random numbers
+     * @param dabs number of Circles in the design
+     * @param lineCount number of sectors
+     * @param reflected reflected flag of every Circle
+     * @return the design
+     */
+    public static Design generate(long seed, int dabs, int lineCount, boolean reflected){
+        Random random = new Random(seed);
+        Color[] palette = new Color[12];
+        for (int i = 0; i < palette.length; i++)
+            palette[i] = new Color(random.nextInt(0x1000000));
+
+        StrokeStore strokes = new StrokeStore(dabs);
+        while (strokes.dabCount() < dabs) {
+            int length = Math.min(20 + random.nextInt(180), dabs - strokes.dabCount());
+            double radius = (1 + random.nextInt(50)) / 2.0;
+            double spacing = Math.max(1, radius * 0.5);
+            Color color = palette[random.nextInt(palette.length)];
+            double x = 50 + random.nextDouble() * (Design.SIZE - 100), y = 50 + random.nextDouble() * (Design.SIZE - 100);
+            double angle = random.nextDouble() * Math.PI * 2;
+
+            strokes.beginStroke();
+            for (int i = 0; i < length; i++) {
+                strokes.addDab(x, y, radius, color, reflected);
+                //turns a little each step and bounces off the edges
+                angle += (random.nextDouble() - 0.5) * 0.6;
+                x += Math.cos(angle) * spacing;
+                y += Math.sin(angle) * spacing;
+                if (x < 0 || x >= Design.SIZE)
+                    angle = Math.PI - angle;
+                if (y < 0 || y >= Design.SIZE)
+                    angle = -angle;
+                x = Math.max(0, Math.min(Design.SIZE - 1, x));
+                y = Math.max(0, Math.min(Design.SIZE - 1, y));
+            }
+            strokes.endStroke();
+        }
+        return new Design(strokes, lineCount, reflected);
+    }
+}
@@ -1,19 +1,93 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.LineBorder;
 import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Handles the design and functionality of the Gallery UI
- * Displays up to 12 images
+ * Every saved design is kept as a PNG in the gallery folder along with a small thumbnail and its design file,
+ * so the gallery lasts between runs and can hold thousands of images. Writing and scaling happen on
+ * background threads, and only the thumbnails and images used most recently are kept in memory.
+ * Designs saved this run are kept as copy on write snapshots of the canvas's strokes, so saving copies nothing
+ * and they are drawn on a gallery thread rather than while saving. Any design can be opened on the canvas again,
+ * those from earlier runs being read from their design file when opened.
+ * The folder is ~/.doilies/gallery unless the doily.gallery property names another
  */
 public class Gallery extends JPanel {
+    private static final int THUMBNAIL_SIZE = 100;                  //width and height of the thumbnails shown
 
-    private ArrayList<JToggleButton> images = new ArrayList<>();    //Stores the images as Toggle Buttons
+    private ArrayList<Entry> entries = new ArrayList<>();           //Stores the images in the order they were saved
     private JPanel controls, display;                               //Sub sections of the gallery
     private UI ui;                                                  //Links the UI where the gallery is displayed
+    private Path folder;                                            //folder the images are kept in
+    private long nextId;                                            //number given to the next image saved
+    private ExecutorService pool;                                   //writes, reads and scales images off the event thread
+    private LruCache<Long, BufferedImage> thumbnails = new LruCache<>(8L << 20, Gallery::bytes);//thumbnails shown lately
+    private LruCache<Long, BufferedImage> images = new LruCache<>(16L << 20, Gallery::bytes);  //full images used lately
+
+    /** An image in the gallery */
+    public class Entry {
+        private long id;                                            //number the image's files are named by
+        private JToggleButton button;                               //shows the thumbnail and can be selected
+        private volatile boolean written;                           //flags if the image's files are on disk
+        private volatile boolean deleted;                           //flags if the image has been deleted from the gallery
+        private boolean loading;                                    //flags if the thumbnail is being read from disk
+        private boolean opening;                                    //flags if the design file is being read to open it
+        private Canvas.Snapshot design;                             //design saved this run or opened, null if not read yet
+
+        private Entry(long id, boolean written){
+            this.id = id;
+            this.written = written;
+        }
+
+        public long getId(){
+            return id;
+        }
+    }
+
+    /** Draws the cached thumbnail of an entry, asking for it to be read if it is not in memory */
+    private class ThumbnailIcon implements Icon {
+        private Entry entry;
+
+        ThumbnailIcon(Entry entry){
+            this.entry = entry;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y){
+            BufferedImage thumbnail = thumbnails.get(entry.id);
+            if (thumbnail != null) {
+                g.drawImage(thumbnail, x, y, null);
+            } else {
+                g.setColor(Color.LIGHT_GRAY);
+                g.fillRect(x, y, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+                loadThumbnail(entry);
+            }
+        }
+
+        @Override
+        public int getIconWidth(){
+            return THUMBNAIL_SIZE;
+        }
+
+        @Override
+        public int getIconHeight(){
+            return THUMBNAIL_SIZE;
+        }
+    }
 
     public Gallery(UI ui){
         //creates the gallery tab
@@ -23,6 +97,12 @@ public class Gallery extends JPanel {
         this.setBackground(Color.WHITE);
         this.setLayout(new FlowLayout());
         this.ui = ui;
+        //once many images are waiting to be written the thread saving waits for one, so they cannot fill the memory
+        pool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(32), r -> {
+            Thread thread = new Thread(r, "Gallery");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
 
         //sets up controls
         controls = new JPanel();
@@ -31,63 +111,275 @@ public class Gallery extends JPanel {
         deleteBtn.addActionListener(e -> deleteImage());
         JButton saveBtn = new JButton("Save");
         saveBtn.addActionListener(e -> ui.save());
+        JButton openBtn = new JButton("Open");
+        openBtn.addActionListener(e -> openDesign());
         controls.add(deleteBtn);
         controls.add(saveBtn);
+        controls.add(openBtn);
 
-        //display
+        //display, scrolls once there are more images than fit
         display = new JPanel();
-        display.setPreferredSize(new Dimension(330, 650));
+        display.setLayout(new GridLayout(0, 3, 5, 5));
+        JScrollPane scroller = new JScrollPane(display, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+                JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        scroller.setPreferredSize(new Dimension(330, 650));
+        scroller.getVerticalScrollBar().setUnitIncrement(THUMBNAIL_SIZE / 2);
 
         this.add(controls);
-        this.add(display);
+        this.add(scroller);
+
+        folder = Paths.get(System.getProperty("doily.gallery", Paths.get(System.getProperty("user.home"), ".doilies", "gallery").toString()));
+        loadEntries();
     }
 
     /**
-     * Adds Image to the gallery
-     * @param image BufferedImage to diplay
+     * Adds a design to the gallery without drawing it. It is drawn for its thumbnail and saved to the gallery folder
+     * in the background
+     * @param design snapshot of the canvas's layers
      */
-    public void addImage(BufferedImage image){
-        //displays no more than 15 images
-        if (images.size() < 15) {
-            Image smallerImage = image.getScaledInstance(100, 100, 2);
-
-            //Each image is made into a ToggleButton that can be selected
-            //Behaviour:
-            images.add(new JToggleButton(new ImageIcon(smallerImage)));
-            JToggleButton currentButton = images.get(images.size() - 1);
-            currentButton.addItemListener(e -> {
-                if (e.getStateChange() == ItemEvent.SELECTED) {
-                    currentButton.setBorder(new LineBorder(Color.GREEN, 5));
-                } else if (e.getStateChange() == ItemEvent.DESELECTED) {
-                    currentButton.setBorder(new LineBorder(Color.WHITE));
+    public void addDesign(Canvas.Snapshot design){
+        Entry entry = new Entry(nextId++, false);
+        entry.design = design;
+        addButton(entry);
+        pool.execute(() -> write(entry, design));
+    }
+
+    /** Draws an entry's design and writes it, its image and its thumbnail to the gallery folder, on a gallery thread */
+    private void write(Entry entry, Canvas.Snapshot design){
+        try {
+            Files.createDirectories(folder);
+            DesignFile.write(design, designFile(entry.id));
+            BufferedImage image = draw(design, Design.SIZE);
+            ImageIO.write(image, "png", imageFile(entry.id).toFile());
+            BufferedImage thumbnail = thumbnail(image, THUMBNAIL_SIZE);
+            ImageIO.write(thumbnail, "png", thumbnailFile(entry.id).toFile());
+            thumbnails.put(entry.id, thumbnail);
+            entry.written = true;
+            //deleted while it was being written
+            if (entry.deleted)
+                deleteFiles(entry);
+        } catch (IOException e) {
+            System.err.println("Could not save gallery image " + entry.id + ": " + e.getMessage());
+        }
+        SwingUtilities.invokeLater(entry.button::repaint);
+    }
+
+    /**
+     * Returns the full image of an entry, reading it from the gallery folder if it is not in memory
+     * @param entry entry of the image
+     * @return the image
+     * @throws IOException if the image could not be read
+     */
+    public BufferedImage getImage(Entry entry) throws IOException {
+        BufferedImage image = images.get(entry.id);
+        if (image == null && entry.design != null && !entry.written) {
+            image = draw(entry.design, Design.SIZE);
+            images.put(entry.id, image);
+        } else if (image == null) {
+            image = ImageIO.read(imageFile(entry.id).toFile());
+            if (image == null)
+                throw new IOException(imageFile(entry.id) + " is not an image");
+            images.put(entry.id, image);
+        }
+        return image;
+    }
+
+    /** Finds the images saved in the gallery folder by earlier runs. Their thumbnails are only read once shown */
+    private void loadEntries(){
+        if (!Files.isDirectory(folder))
+            return;
+        try (Stream<Path> files = Files.list(folder)) {
+            files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.matches("\\d+\\.png"))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .forEach(id -> addButton(new Entry(id, true)));
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not read the gallery folder " + folder + ": " + e.getMessage());
+        }
+        if (!entries.isEmpty())
+            nextId = entries.get(entries.size() - 1).id + 1;
+    }
+
+    /** Each image is made into a ToggleButton that can be selected */
+    private void addButton(Entry entry){
+        entry.button = new JToggleButton(new ThumbnailIcon(entry));
+        JToggleButton currentButton = entry.button;
+        //Behaviour:
+        currentButton.addItemListener(e -> {
+            if (e.getStateChange() == ItemEvent.SELECTED) {
+                currentButton.setBorder(new LineBorder(Color.GREEN, 5));
+            } else if (e.getStateChange() == ItemEvent.DESELECTED) {
+                currentButton.setBorder(new LineBorder(Color.WHITE));
+            }
+        });
+        //Defaults and appearance:
+        currentButton.setSelected(false);
+        currentButton.setBorder(new LineBorder(Color.WHITE));
+        currentButton.setPreferredSize(new Dimension(THUMBNAIL_SIZE, THUMBNAIL_SIZE));
+        entries.add(entry);
+        display.add(currentButton);
+        revalidate();
+        repaint();
+    }
+
+    /** Reads the thumbnail of an entry from disk in the background and shows it once read */
+    private void loadThumbnail(Entry entry){
+        if (entry.loading || !entry.written)
+            return;
+        entry.loading = true;
+        pool.execute(() -> {
+            try {
+                BufferedImage thumbnail = Files.exists(thumbnailFile(entry.id))
+                        ? ImageIO.read(thumbnailFile(entry.id).toFile()) : null;
+                if (thumbnail == null) {
+                    //the thumbnail is missing, so it is made again from the full image
+                    thumbnail = thumbnail(getImage(entry), THUMBNAIL_SIZE);
+                    ImageIO.write(thumbnail, "png", thumbnailFile(entry.id).toFile());
                 }
+                thumbnails.put(entry.id, thumbnail);
+            } catch (IOException e) {
+                System.err.println("Could not read gallery image " + entry.id + ": " + e.getMessage());
+            }
+            SwingUtilities.invokeLater(() -> {
+                entry.loading = false;
+                entry.button.repaint();
             });
-            //Defaults and appearance:
-            currentButton.setSelected(false);
-            currentButton.setBorder(new LineBorder(Color.WHITE));
-            currentButton.setPreferredSize(new Dimension(100, 100));
-            display.add(currentButton);
-            revalidate();
-            repaint();
+        });
+    }
+
+    /** Opens the selected design on the canvas, in place of the design there */
+    private void openDesign(){
+        for (Entry entry : entries) {
+            if (!entry.button.isSelected())
+                continue;
+            if (entry.design != null)
+                ui.load(entry.design);
+            else if (entry.written)
+                readDesign(entry);
+            return;
         }
     }
 
-    /** Deletes image from the gallery tab */
+    /** Reads the design file of an entry from an earlier run in the background and opens it once read */
+    private void readDesign(Entry entry){
+        if (entry.opening)
+            return;
+        entry.opening = true;
+        pool.execute(() -> {
+            Canvas.Snapshot design = null;
+            String problem = null;
+            try {
+                if (Files.exists(designFile(entry.id)))
+                    design = DesignFile.read(designFile(entry.id));
+                else
+                    problem = "This image was saved without its design, so it cannot be opened";
+            } catch (IOException e) {
+                problem = "Could not open the design: " + e.getMessage();
+            }
+            Canvas.Snapshot read = design;
+            String message = problem;
+            SwingUtilities.invokeLater(() -> {
+                entry.opening = false;
+                if (read == null) {
+                    JOptionPane.showMessageDialog(this, message);
+                } else if (!entry.deleted) {
+                    entry.design = read;
+                    ui.load(read);
+                }
+            });
+        });
+    }
+
+    /** Deletes image from the gallery tab and the gallery folder */
     private void deleteImage(){
-        ArrayList<JToggleButton> toRemove = new ArrayList<>();
+        ArrayList<Entry> toRemove = new ArrayList<>();
         //removes from canvas
-        for(JToggleButton image : images){
-            if (image.isSelected()){
-                display.remove(image);
-                toRemove.add(image);
+        for(Entry entry : entries){
+            if (entry.button.isSelected()){
+                display.remove(entry.button);
+                toRemove.add(entry);
+                thumbnails.remove(entry.id);
+                images.remove(entry.id);
+                entry.design = null;
+                //an image still being written is deleted once it is written
+                entry.deleted = true;
+                if (entry.written)
+                    pool.execute(() -> deleteFiles(entry));
             }
         }
         //removes from arraylist:
-        images.removeAll(toRemove);
+        entries.removeAll(toRemove);
         revalidate();
         repaint();
     }
 
+    private void deleteFiles(Entry entry){
+        try {
+            Files.deleteIfExists(imageFile(entry.id));
+            Files.deleteIfExists(thumbnailFile(entry.id));
+            Files.deleteIfExists(designFile(entry.id));
+        } catch (IOException e) {
+            System.err.println("Could not delete gallery image " + entry.id + ": " + e.getMessage());
+        }
+    }
+
+    private Path imageFile(long id){
+        return folder.resolve(String.format("%08d.png", id));
+    }
+    private Path thumbnailFile(long id){
+        return folder.resolve(String.format("%08d-thumb.png", id));
+    }
+    private Path designFile(long id){
+        return folder.resolve(String.format("%08d", id) + DesignFile.EXTENSION);
+    }
+
+    /**
+     * Scales an image down to a square thumbnail by halving it with bilinear filtering until it is near the size,
+     * which is much quicker than getScaledInstance and looks as smooth
+     * @param image image to scale
+     * @param size width and height of the thumbnail
+     * @return the thumbnail
+     */
+    static BufferedImage thumbnail(BufferedImage image, int size){
+        BufferedImage scaled = image;
+        int width = image.getWidth(), height = image.getHeight();
+        do {
+            width = Math.max(size, width / 2);
+            height = Math.max(size, height / 2);
+            BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(scaled, 0, 0, width, height, null);
+            g.dispose();
+            scaled = step;
+        } while (width > size || height > size);
+        return scaled;
+    }
+
+    /**
+     * Draws the visible layers of a design over white
+     * @param design design to draw
+     * @param size width and height of the image
+     * @return the image
+     */
+    static BufferedImage draw(Canvas.Snapshot design, int size){
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        SectorRenderer renderer = new SectorRenderer(image);
+        renderer.clear();
+        for (Design layer : design.getVisibleDesigns()) {
+            renderer.setLineCount(layer.getLineCount());
+            for (int stroke = 0; stroke < layer.getStrokes().strokeCount(); stroke++)
+                renderer.drawStroke(layer.getStrokes(), stroke);
+        }
+        return image;
+    }
+
+    /** @return memory used by an image's pixels */
+    private static long bytes(BufferedImage image){
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
     }
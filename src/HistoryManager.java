@@ -0,0 +1,407 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the undo checkpoints of every layer under one memory budget, however long the session.
+ * The newest checkpoints are kept as plain pixels so undo is quick. Once those pass half the budget the oldest are
+ * compressed, and once the checkpoints held pass the whole budget the oldest compressed ones are written to a temp file.
+ * Restoring a checkpoint reads it back from whichever form it is in, so undo works the same past that point, only slower.
+ * The temp file is also bounded: once it passes its limit the oldest checkpoints in it are dropped, and undo goes back
+ * to an earlier checkpoint or redraws from the start as it does when none was taken.
+ * Compressing and writing happen on a background thread so drawing is not held up.
+ *
+ * The manager also holds the oldest strokes of each layer once the strokes held pass their own budget. These pages of
+ * strokes are compressed as they come in and are written out with the compressed checkpoints, but are never dropped,
+ * as they are the only copy.
+ */
+public class HistoryManager {
+    private long budgetBytes;                                       //most memory the checkpoints may use
+    private long strokeBudgetBytes;                                 //most memory the strokes of every layer may use before the oldest are paged out
+    private long spillLimit;                                        //most bytes of checkpoints kept in the temp file
+    private LinkedHashSet<Checkpoint> plain = new LinkedHashSet<>();//checkpoints held as pixels, oldest first
+    private LinkedHashSet<Checkpoint> compressed = new LinkedHashSet<>();//checkpoints held compressed, oldest first
+    private LinkedHashSet<Checkpoint> spilled = new LinkedHashSet<>();//checkpoints in the temp file, oldest first
+    private long plainBytes, compressedBytes, spilledBytes;
+    private FileChannel spill;                                      //temp file checkpoints are written to, opened when first needed
+    private long spillEnd;                                          //end of the data written to the temp file
+    private int readers;                                            //restores reading the temp file, which may not be truncated meanwhile
+    private boolean compacting;                                     //flags if the background thread has been asked to compact
+    private ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "History");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Copy of a canvas image, or a page of strokes, in one of three forms */
+    public static class Checkpoint {
+        private final int width, height;                            //size of the image, 0 for a page of strokes
+        private final int rawLength;                                //bytes before compressing
+        private final boolean kept;                                 //flags if it is a page of strokes, which is never dropped for room
+        private int[] pixels;                                       //set while plain
+        private byte[] bytes;                                       //set while compressed
+        private long offset = -1;                                   //place in the temp file once written there
+        private int length;                                         //compressed length
+        private boolean removed;                                    //flags if it has been dropped, by its history or for room
+
+        private Checkpoint(int width, int height, int[] pixels){
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            rawLength = pixels.length * 4;
+            kept = false;
+        }
+
+        private Checkpoint(int rawLength, byte[] bytes){
+            width = height = 0;
+            this.rawLength = rawLength;
+            this.bytes = bytes;
+            length = bytes.length;
+            kept = true;
+        }
+    }
+
+    /**
+     * @param budgetBytes most memory the checkpoints may use
+     * @param strokeBudgetBytes most memory the strokes of every layer may use before the oldest are paged out
+     * @param spillLimit most bytes of checkpoints kept in the temp file
+     */
+    public HistoryManager(long budgetBytes, long strokeBudgetBytes, long spillLimit){
+        this.budgetBytes = budgetBytes;
+        this.strokeBudgetBytes = strokeBudgetBytes;
+        this.spillLimit = spillLimit;
+    }
+
+    /** @param budgetBytes most memory the checkpoints may use */
+    public synchronized void setBudget(long budgetBytes){
+        this.budgetBytes = budgetBytes;
+        compactLater();
+    }
+
+    /** @param strokeBudgetBytes most memory the strokes of every layer may use before the oldest are paged out */
+    public synchronized void setStrokeBudget(long strokeBudgetBytes){
+        this.strokeBudgetBytes = strokeBudgetBytes;
+    }
+
+    /** @return most memory the strokes of every layer may use before the oldest are paged out */
+    public synchronized long getStrokeBudget(){
+        return strokeBudgetBytes;
+    }
+
+    /**
+     * Takes a copy of an image's pixels
+     * @param image image to copy
+     * @return the checkpoint, null if a single copy would not fit in the budget
+     */
+    public Checkpoint add(BufferedImage image){
+        long bytes = (long) image.getWidth() * image.getHeight() * 4;
+        if (bytes > budgetBytes)
+            return null;
+        int[] pixels = (int[]) image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
+        Checkpoint checkpoint = new Checkpoint(image.getWidth(), image.getHeight(), pixels);
+        synchronized (this) {
+            plain.add(checkpoint);
+            plainBytes += bytes;
+            compactLater();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Takes a page of strokes, compressing it now. It is written to the temp file along with the compressed checkpoints
+     * once they pass the budget, and stays until removed
+     * @param raw the strokes packed into bytes
+     * @return the page
+     */
+    public Checkpoint addPage(byte[] raw){
+        Checkpoint page = new Checkpoint(raw.length, deflate(raw));
+        synchronized (this) {
+            compressed.add(page);
+            compressedBytes += page.length;
+            compactLater();
+        }
+        return page;
+    }
+
+    /**
+     * Reads a page of strokes back, from the temp file if it was written there
+     * @param page page to read
+     * @return the strokes packed into bytes, as they were added
+     * @throws IOException if the page has been removed or could not be read
+     */
+    public byte[] readPage(Checkpoint page) throws IOException {
+        byte[] bytes;
+        long offset;
+        synchronized (this) {
+            if (page.removed)
+                throw new IOException("page of strokes has been removed");
+            bytes = page.bytes;
+            offset = page.offset;
+            if (bytes == null)
+                readers++;
+        }
+        try {
+            return inflate(bytes != null ? bytes : read(offset, page.length), page.rawLength);
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            if (bytes == null) {
+                synchronized (this) {
+                    readers--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a checkpoint back into an image, reading it back from the temp file if it was written there
+     * @param checkpoint checkpoint to copy
+     * @param image image of the checkpoint's size to copy into
+     * @return false if the checkpoint was dropped or could not be read, leaving the image alone
+     */
+    public boolean restore(Checkpoint checkpoint, BufferedImage image){
+        int[] pixels;
+        byte[] bytes;
+        long offset;
+        boolean fromFile;
+        synchronized (this) {
+            if (checkpoint.removed || checkpoint.width != image.getWidth() || checkpoint.height != image.getHeight())
+                return false;
+            pixels = checkpoint.pixels;
+            bytes = checkpoint.bytes;
+            offset = checkpoint.offset;
+            //the file is not truncated under a read, which happens outside the lock
+            fromFile = pixels == null && bytes == null;
+            if (fromFile)
+                readers++;
+        }
+        try {
+            if (pixels == null) {
+                if (bytes == null)
+                    bytes = read(offset, checkpoint.length);
+                pixels = new int[checkpoint.width * checkpoint.height];
+                ByteBuffer.wrap(inflate(bytes, checkpoint.rawLength)).asIntBuffer().get(pixels);
+            }
+        } catch (IOException | DataFormatException e) {
+            System.err.println("Could not read an undo checkpoint: " + e.getMessage());
+            remove(checkpoint);
+            return false;
+        } finally {
+            if (fromFile) {
+                synchronized (this) {
+                    readers--;
+                }
+            }
+        }
+        image.getRaster().setDataElements(0, 0, image.getWidth(), image.getHeight(), pixels);
+        return true;
+    }
+
+    /** Drops a checkpoint that is no longer needed */
+    public synchronized void remove(Checkpoint checkpoint){
+        if (checkpoint.removed)
+            return;
+        checkpoint.removed = true;
+        if (plain.remove(checkpoint))
+            plainBytes -= checkpoint.rawLength;
+        else if (compressed.remove(checkpoint))
+            compressedBytes -= checkpoint.length;
+        else if (spilled.remove(checkpoint))
+            spilledBytes -= checkpoint.length;
+        checkpoint.pixels = null;
+        checkpoint.bytes = null;
+    }
+
+    /** @return memory used by the checkpoints */
+    public synchronized long memoryBytes(){
+        return plainBytes + compressedBytes;
+    }
+
+    /** @return bytes of checkpoints kept in the temp file */
+    public synchronized long spilledBytes(){
+        return spilledBytes;
+    }
+
+    /** Waits for the background thread to finish compacting, eg before measuring the memory used */
+    public void awaitCompaction(){
+        try {
+            compactor.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //an empty task cannot fail
+        }
+    }
+
+    private void compactLater(){
+        if (!compacting && needsCompacting()) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    private boolean needsCompacting(){
+        return (plainBytes > budgetBytes / 2 && !plain.isEmpty())
+                || (plainBytes + compressedBytes > budgetBytes && !compressed.isEmpty());
+    }
+
+    /** Compresses and writes out the oldest checkpoints until they fit the budget. Runs on the background thread */
+    private void compact(){
+        while (true) {
+            Checkpoint oldest;
+            int[] pixels;
+            byte[] bytes;
+            synchronized (this) {
+                if (!needsCompacting()) {
+                    compacting = false;
+                    return;
+                }
+                if (plainBytes > budgetBytes / 2 && !plain.isEmpty()) {
+                    oldest = plain.iterator().next();
+                    pixels = oldest.pixels;
+                    bytes = null;
+                } else {
+                    oldest = compressed.iterator().next();
+                    pixels = null;
+                    bytes = oldest.bytes;
+                }
+            }
+            if (pixels != null)
+                compress(oldest, pixels);
+            else
+                spill(oldest, bytes);
+        }
+    }
+
+    /** Replaces a plain checkpoint's pixels with their compressed bytes */
+    private void compress(Checkpoint checkpoint, int[] pixels){
+        ByteBuffer raw = ByteBuffer.allocate(pixels.length * 4);
+        raw.asIntBuffer().put(pixels);
+        byte[] bytes = deflate(raw.array());
+        synchronized (this) {
+            if (checkpoint.removed)
+                return;
+            plain.remove(checkpoint);
+            plainBytes -= checkpoint.rawLength;
+            checkpoint.pixels = null;
+            checkpoint.bytes = bytes;
+            checkpoint.length = bytes.length;
+            compressed.add(checkpoint);
+            compressedBytes += bytes.length;
+        }
+    }
+
+    /** Moves a compressed checkpoint to the temp file, dropping the oldest there once it is over its limit */
+    private void spill(Checkpoint checkpoint, byte[] bytes){
+        long offset;
+        try {
+            synchronized (this) {
+                //nothing left in the file, so it starts again from the beginning
+                if (spilled.isEmpty() && spillEnd > 0 && spill != null && readers == 0) {
+                    spill.truncate(0);
+                    spillEnd = 0;
+                }
+            }
+            if (spill == null) {
+                Path file = Files.createTempFile("doily-history", ".bin");
+                file.toFile().deleteOnExit();
+                spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            offset = spillEnd;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                spill.write(buffer, offset + buffer.position());
+            spillEnd += bytes.length;
+        } catch (IOException e) {
+            if (checkpoint.kept) {
+                //a page of strokes is the only copy, so it stays in memory, outside the budget so it is not tried again
+                System.err.println("Could not write old strokes to disk, keeping them in memory: " + e.getMessage());
+                synchronized (this) {
+                    if (compressed.remove(checkpoint))
+                        compressedBytes -= checkpoint.length;
+                }
+                return;
+            }
+            System.err.println("Could not write an undo checkpoint to disk, dropping it: " + e.getMessage());
+            remove(checkpoint);
+            return;
+        }
+        synchronized (this) {
+            if (checkpoint.removed)
+                return;
+            compressed.remove(checkpoint);
+            compressedBytes -= checkpoint.length;
+            checkpoint.bytes = null;
+            checkpoint.offset = offset;
+            spilled.add(checkpoint);
+            spilledBytes += checkpoint.length;
+            for (Iterator<Checkpoint> it = spilled.iterator(); spilledBytes > spillLimit && it.hasNext(); ) {
+                Checkpoint dropped = it.next();
+                if (dropped.kept)
+                    continue;
+                it.remove();
+                dropped.removed = true;
+                spilledBytes -= dropped.length;
+            }
+        }
+    }
+
+    private byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (spill.read(buffer, offset + buffer.position()) < 0)
+                throw new IOException("history file ends early");
+        }
+        return buffer.array();
+    }
+
+    private static byte[] deflate(byte[] raw){
+        //the fastest level still shrinks canvas images many times over, as most of their pixels repeat
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteBuffer out = ByteBuffer.allocate(raw.length / 32 + 64);
+            while (!deflater.finished()) {
+                if (!out.hasRemaining())
+                    out = ByteBuffer.allocate(out.capacity() * 2).put(out.flip());
+                out.position(out.position() + deflater.deflate(out.array(), out.position(), out.remaining()));
+            }
+            byte[] bytes = new byte[out.position()];
+            System.arraycopy(out.array(), 0, bytes, 0, bytes.length);
+            return bytes;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int rawLength) throws DataFormatException {
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            int done = 0;
+            while (done < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, done, raw.length - done);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("undo checkpoint is cut short");
+                done += n;
+            }
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,220 @@
+import java.awt.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recording of what the user did to the canvas: every mouse press, drag and release, and every change of the
+ * controls, each with the time since the event before it. Traces are written while the user draws and replayed by
+ * TraceReplayer, to reproduce lag reports and as a load test.
+ *
+ * Trace files are the bytes "DTRC", the version, then the events. Each event is its kind, the microseconds since the
+ * event before as a varint, then its values. Mouse cords are design cords in 1/256ths of a pixel, stored as the
+ * zigzagged difference from the mouse event before, so a drag usually takes 4 to 6 bytes. Other values are varints,
+ * but for colors which are argb ints.
+ */
+public class InputTrace {
+    private static final int MAGIC = 0x44545243;                    //"DTRC", first bytes of a trace file
+    private static final int VERSION = 1;
+    private static final float FIXED = 256;                         //cords are stored in 1/256ths of a pixel
+
+    //kinds of event
+    public static final int PRESS = 0, DRAG = 1, RELEASE = 2;       //mouse events, with design cords
+    public static final int LINE_COUNT = 3, BRUSH_SIZE = 4, COLOR = 5, REFLECT = 6, ERASER = 7;//settings, with the new value
+    public static final int UNDO = 8, REDO = 9, CLEAR = 10;         //actions, with no value
+    public static final int ADD_LAYER = 11, REMOVE_LAYER = 12;      //layer actions, with no value
+    public static final int SELECT_LAYER = 13;                      //with the layer's position
+    public static final int LAYER_VISIBLE = 14, MOVE_LAYER = 15;    //with the layer's position and the visible flag or new position
+    private static final String[] NAMES = {"press", "drag", "release", "lineCount", "brushSize", "color", "reflect",
+            "eraser", "undo", "redo", "clear", "addLayer", "removeLayer", "selectLayer", "layerVisible", "moveLayer"};
+
+    /** An event read from a trace */
+    public static class Event {
+        public final int kind;
+        public final long timeNanos;                                //time since the trace started
+        public final double x, y;                                   //design cords of a mouse event
+        public final int value, value2;                             //values of other events
+
+        Event(int kind, long timeNanos, double x, double y, int value, int value2){
+            this.kind = kind;
+            this.timeNanos = timeNanos;
+            this.x = x;
+            this.y = y;
+            this.value = value;
+            this.value2 = value2;
+        }
+    }
+
+    /**
+     * Writes events to a trace file as they happen. It is used on the event thread only.
+     * If the file cannot be written, recording stops with a message and drawing carries on
+     */
+    public static class Recorder implements Closeable {
+        private DataOutputStream out;
+        private long lastNanos;                                     //time of the last event
+        private int lastX, lastY;                                   //fixed point cords of the last mouse event
+
+        /**
+         * Starts a trace, replacing the file
+         * @param file file to write
+         * @throws IOException if the file could not be created
+         */
+        public Recorder(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            lastNanos = System.nanoTime();
+        }
+
+        /**
+         * Records a mouse event
+         * @param kind PRESS, DRAG or RELEASE
+         * @param x design x cord
+         * @param y design y cord
+         */
+        public void mouse(int kind, double x, double y){
+            if (out == null)
+                return;
+            int fixedX = Math.round((float) x * FIXED), fixedY = Math.round((float) y * FIXED);
+            try {
+                begin(kind);
+                Varints.write(out, Varints.zigzag(fixedX - lastX));
+                Varints.write(out, Varints.zigzag(fixedY - lastY));
+            } catch (IOException e) {
+                fail(e);
+            }
+            lastX = fixedX;
+            lastY = fixedY;
+        }
+
+        /**
+         * Records a setting or action
+         * @param kind kind of event
+         * @param values values of the event, as many as its kind has
+         */
+        public void control(int kind, int... values){
+            if (out == null)
+                return;
+            try {
+                begin(kind);
+                if (kind == COLOR)
+                    out.writeInt(values[0]);
+                else
+                    for (int value : values)
+                        Varints.write(out, value);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void begin(int kind) throws IOException {
+            long now = System.nanoTime();
+            out.writeByte(kind);
+            Varints.write(out, (int) Math.min(Integer.MAX_VALUE, (now - lastNanos) / 1000));
+            lastNanos = now;
+        }
+
+        private void fail(IOException e){
+            System.err.println("Stopped recording the input trace: " + e.getMessage());
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                //already failing
+            }
+            out = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null)
+                out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Reads every event of a trace file
+     * @param file file to read
+     * @return the events in the order they happened
+     * @throws IOException if the file could not be read or is not a trace
+     */
+    public static List<Event> read(Path file) throws IOException {
+        ArrayList<Event> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not an input trace");
+            int version = in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException(file + " is input trace version " + version + ", which is not supported");
+            long time = 0;
+            int x = 0, y = 0;
+            int kind;
+            while ((kind = in.read()) >= 0) {
+                time += Varints.read(in) * 1000L;
+                switch (kind) {
+                    case PRESS: case DRAG: case RELEASE:
+                        x += Varints.unzigzag(Varints.read(in));
+                        y += Varints.unzigzag(Varints.read(in));
+                        events.add(new Event(kind, time, x / FIXED, y / FIXED, 0, 0));
+                        break;
+                    case COLOR:
+                        events.add(new Event(kind, time, 0, 0, in.readInt(), 0));
+                        break;
+                    case LINE_COUNT: case BRUSH_SIZE: case REFLECT: case ERASER: case SELECT_LAYER:
+                        events.add(new Event(kind, time, 0, 0, Varints.read(in), 0));
+                        break;
+                    case LAYER_VISIBLE: case MOVE_LAYER:
+                        events.add(new Event(kind, time, 0, 0, Varints.read(in), Varints.read(in)));
+                        break;
+                    case UNDO: case REDO: case CLEAR: case ADD_LAYER: case REMOVE_LAYER:
+                        events.add(new Event(kind, time, 0, 0, 0, 0));
+                        break;
+                    default:
+                        throw new IOException(file + " is damaged: unknown event kind " + kind);
+                }
+            }
+        } catch (EOFException e) {
+            //a trace cut off mid event, eg by the program being killed, is replayed up to that event
+        }
+        return events;
+    }
+
+    /**
+     * Does what an event did to a canvas, through the same methods the mouse and the UI use
+     * @param canvas canvas to change
+     * @param event event to apply
+     */
+    public static void apply(Canvas canvas, Event event){
+        switch (event.kind) {
+            case PRESS: case DRAG: case RELEASE:
+                canvas.replayMouse(event.kind, event.x, event.y);
+                break;
+            case LINE_COUNT: canvas.setLineCount(event.value); break;
+            case BRUSH_SIZE: canvas.setBrushSize(event.value); break;
+            case COLOR: canvas.setBrushColor(new Color(event.value, true)); break;
+            case REFLECT: canvas.setReflected(event.value != 0); break;
+            case ERASER: canvas.eraser(event.value != 0); break;
+            case UNDO: canvas.undo(); break;
+            case REDO: canvas.redo(); break;
+            case CLEAR: canvas.clear(); break;
+            case ADD_LAYER: canvas.addLayer(); break;
+            case REMOVE_LAYER: canvas.removeLayer(); break;
+            case SELECT_LAYER: canvas.selectLayer(Math.min(event.value, canvas.getLayerCount() - 1)); break;
+            case LAYER_VISIBLE: canvas.setLayerVisible(Math.min(event.value, canvas.getLayerCount() - 1), event.value2 != 0); break;
+            case MOVE_LAYER: canvas.moveLayer(Math.min(event.value, canvas.getLayerCount() - 1),
+                    Math.min(event.value2, canvas.getLayerCount() - 1)); break;
+        }
+    }
+
+    /** @return name of a kind of event, as used in reports */
+    public static String name(int kind){
+        return NAMES[kind];
+    }
+
+    /** @return number of kinds of event */
+    public static int kinds(){
+        return NAMES.length;
+    }
+}
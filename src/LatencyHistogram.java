@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts values, usually times in nanoseconds, in buckets that double in size, so recording is a few adds
+ * and the memory used is fixed however many values are recorded. Percentiles are estimated within a bucket.
+ * Values can be recorded from several threads at once.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;                          //bucket i holds values from 2^(i-1) up to 2^i - 1, bucket 0 holds 0
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS); //number of values in each bucket
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** @param value value to count, negative values count as 0 */
+    public void record(long value){
+        value = Math.max(0, value);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time since a start time
+     * @param startNanos System.nanoTime() when the timed work started
+     */
+    public void recordSince(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount(){
+        return count.sum();
+    }
+
+    public double getMean(){
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @param fraction fraction of values at or below the result, eg 0.99
+     * @return estimate of the value, spread evenly across its bucket
+     */
+    public double percentile(double fraction){
+        long n = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts[i] = buckets.get(i);
+        if (n == 0)
+            return 0;
+        double rank = fraction * n;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0 && seen + counts[i] >= rank) {
+                double low = i == 0 ? 0 : 1L << (i - 1), high = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(low + (high - low) * (rank - seen) / counts[i], getMax());
+            }
+            seen += counts[i];
+        }
+        return getMax();
+    }
+
+    /** Forgets every value recorded */
+    public void reset(){
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
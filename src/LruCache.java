@@ -0,0 +1,71 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least recently used cache that keeps values within a budget.
+ * Values are weighed, eg images by their bytes, so the budget bounds memory rather than the number of entries.
+ * It can be used from several threads.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LruCache<K, V> {
+    private LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);//values from least to most recently used
+    private ToLongFunction<V> weigher;                              //weight of a value
+    private long budget;                                            //most total weight held
+    private long weight;                                            //total weight held
+
+    /**
+     * @param budget most total weight to hold
+     * @param weigher gives the weight of a value
+     */
+    public LruCache(long budget, ToLongFunction<V> weigher){
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @param key key of the value
+     * @return the value, or null if it is not held
+     */
+    public synchronized V get(K key){
+        return map.get(key);
+    }
+
+    /**
+     * Adds a value, dropping the least recently used values until the cache is back within its budget.
+     * A value heavier than the whole budget is not kept
+     * @param key key of the value
+     * @param value value to hold
+     */
+    public synchronized void put(K key, V value){
+        remove(key);
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > budget)
+            return;
+        map.put(key, value);
+        weight += valueWeight;
+        Iterator<Map.Entry<K, V>> oldest = map.entrySet().iterator();
+        while (weight > budget) {
+            weight -= weigher.applyAsLong(oldest.next().getValue());
+            oldest.remove();
+        }
+    }
+
+    /** @param key key of the value to drop */
+    public synchronized void remove(K key){
+        V value = map.remove(key);
+        if (value != null)
+            weight -= weigher.applyAsLong(value);
+    }
+
+    public synchronized int size(){
+        return map.size();
+    }
+
+    /** @return total weight held */
+    public synchronized long weight(){
+        return weight;
+    }
+}
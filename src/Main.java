@@ -1,10 +1,35 @@
 /**
  *  Comp1206 CourseWork
  *  This is the Main class where the program window is created
+ *  Run with --batch to draw design files to images without a window
+ *  Run with --replay to play input traces back into a canvas without a window
+ *  Run with --timelapse to export how a design file was built as an animated GIF or PNG frames
+ *  Run with --serve to host a shared drawing session, and --session-load to load test one
  *  @author Phoebe Frere
  */
 public class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchRenderer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--replay")) {
+            TraceReplayer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--timelapse")) {
+            TimelapseExporter.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            SessionServer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--session-load")) {
+            SessionLoadTest.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        Metrics.start();
         new UI().init();
 
     }
@@ -0,0 +1,178 @@
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Timings of the slow parts of the program, kept in histograms so they can be looked at when drawing gets laggy.
+ * Recording costs a couple of nanoTime calls and adds, so it is always on. start() shows them over JMX,
+ * and every few seconds in the log when the doily.metrics.log property is set to a number of seconds
+ */
+public class Metrics implements MetricsMXBean {
+    public static final LatencyHistogram DRAW_SECTORS = new LatencyHistogram(); //nanoseconds per brush Circle drawn
+    public static final LatencyHistogram UPDATE_SECTORS = new LatencyHistogram();//nanoseconds per whole redraw
+    public static final LatencyHistogram ERASE = new LatencyHistogram();        //nanoseconds per eraser stroke
+    public static final LatencyHistogram UNDO = new LatencyHistogram();         //nanoseconds per undo
+    public static final LatencyHistogram REDO = new LatencyHistogram();         //nanoseconds per redo
+    public static final LatencyHistogram DABS_PER_STROKE = new LatencyHistogram();//Circles per stroke added
+    public static final LatencyHistogram SAMPLES_PER_FRAME = new LatencyHistogram();//mouse drags drawn together in a frame
+    public static final LatencyHistogram DRAW_FRAME = new LatencyHistogram();   //nanoseconds per frame of drags drawn
+
+    private static volatile LongSupplier storedDabs = () -> 0;       //counts the Circles stored by the canvas
+    private static volatile HistoryManager history;                 //holds the canvas's undo checkpoints, null until set
+    private static Metrics instance;                                //the registered MBean, null until started
+
+    /** Summary of a histogram, in microseconds for times */
+    public static class Summary {
+        private final long count;
+        private final double mean, p50, p90, p99, max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+        public Summary(long count, double mean, double p50, double p90, double p99, double max){
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        /**
+         * @param histogram histogram to summarise
+         * @param scale amount each value is divided by, eg 1000 for nanoseconds to microseconds
+         */
+        static Summary of(LatencyHistogram histogram, double scale){
+            return new Summary(histogram.getCount(), histogram.getMean() / scale, histogram.percentile(0.5) / scale,
+                    histogram.percentile(0.9) / scale, histogram.percentile(0.99) / scale, histogram.getMax() / scale);
+        }
+
+        public long getCount(){
+            return count;
+        }
+        public double getMean(){
+            return mean;
+        }
+        public double getP50(){
+            return p50;
+        }
+        public double getP90(){
+            return p90;
+        }
+        public double getP99(){
+            return p99;
+        }
+        public double getMax(){
+            return max;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f", count, mean, p50, p90, p99, max);
+        }
+    }
+
+    /** @param counter gives the number of Circles stored by the canvas */
+    public static void setStoredDabs(LongSupplier counter){
+        storedDabs = counter;
+    }
+
+    /** @param manager holds the undo checkpoints of the canvas */
+    public static void setHistory(HistoryManager manager){
+        history = manager;
+    }
+
+    /** Registers the MBean and starts logging if the doily.metrics.log property asks for it. Only the first call does anything */
+    public static synchronized void start(){
+        if (instance != null)
+            return;
+        instance = new Metrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("SpirographPaint:type=Metrics"));
+        } catch (Exception e) {
+            System.err.println("Could not register the metrics MBean: " + e);
+        }
+        long seconds = Long.getLong("doily.metrics.log", 0);
+        if (seconds > 0) {
+            ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Metrics log");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.scheduleAtFixedRate(() -> System.err.println(instance.report()), seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /** @return every metric on its own line */
+    public String report(){
+        return "metrics (times in us)"
+                + "\n  drawSectors    " + getDrawSectors()
+                + "\n  updateSectors  " + getUpdateSectors()
+                + "\n  erase          " + getErase()
+                + "\n  undo           " + getUndo()
+                + "\n  redo           " + getRedo()
+                + "\n  dabsPerStroke  " + getDabsPerStroke()
+                + "\n  samplesPerFrame " + getSamplesPerFrame()
+                + "\n  drawFrame      " + getDrawFrame()
+                + "\n  storedDabs     " + getStoredDabs()
+                + "\n  historyMemory  " + getHistoryMemoryBytes()
+                + "\n  historySpilled " + getHistorySpilledBytes();
+    }
+
+    @Override
+    public Summary getDrawSectors(){
+        return Summary.of(DRAW_SECTORS, 1000);
+    }
+    @Override
+    public Summary getUpdateSectors(){
+        return Summary.of(UPDATE_SECTORS, 1000);
+    }
+    @Override
+    public Summary getErase(){
+        return Summary.of(ERASE, 1000);
+    }
+    @Override
+    public Summary getUndo(){
+        return Summary.of(UNDO, 1000);
+    }
+    @Override
+    public Summary getRedo(){
+        return Summary.of(REDO, 1000);
+    }
+    @Override
+    public Summary getDabsPerStroke(){
+        return Summary.of(DABS_PER_STROKE, 1);
+    }
+    @Override
+    public Summary getSamplesPerFrame(){
+        return Summary.of(SAMPLES_PER_FRAME, 1);
+    }
+    @Override
+    public Summary getDrawFrame(){
+        return Summary.of(DRAW_FRAME, 1000);
+    }
+    @Override
+    public long getStoredDabs(){
+        return storedDabs.getAsLong();
+    }
+
+    @Override
+    public long getHistoryMemoryBytes(){
+        HistoryManager manager = history;
+        return manager == null ? 0 : manager.memoryBytes();
+    }
+    @Override
+    public long getHistorySpilledBytes(){
+        HistoryManager manager = history;
+        return manager == null ? 0 : manager.spilledBytes();
+    }
+
+    @Override
+    public void reset(){
+        for (LatencyHistogram histogram : new LatencyHistogram[]{DRAW_SECTORS, UPDATE_SECTORS, ERASE, UNDO, REDO, DABS_PER_STROKE,
+                SAMPLES_PER_FRAME, DRAW_FRAME})
+            histogram.reset();
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Timings and counts of the canvas, shown in JMX tools such as JConsole under SpirographPaint:type=Metrics.
+ * Times are in microseconds
+ */
+public interface MetricsMXBean {
+    /** @return time to draw one brush Circle over the sectors while painting */
+    Metrics.Summary getDrawSectors();
+
+    /** @return time to redraw the whole design, on the event thread or the render thread */
+    Metrics.Summary getUpdateSectors();
+
+    /** @return time to remove the Circles under an eraser stroke */
+    Metrics.Summary getErase();
+
+    Metrics.Summary getUndo();
+
+    Metrics.Summary getRedo();
+
+    /** @return number of Circles in each stroke added, in Circles rather than microseconds */
+    Metrics.Summary getDabsPerStroke();
+
+    /** @return number of mouse drags drawn together in each frame while painting, in drags rather than microseconds */
+    Metrics.Summary getSamplesPerFrame();
+
+    /** @return time to draw a frame of mouse drags over the sectors and ask for the repaint */
+    Metrics.Summary getDrawFrame();
+
+    /** @return Circles stored in the design, including undone strokes */
+    long getStoredDabs();
+
+    /** @return memory used by the undo checkpoints of every layer, plain and compressed, in bytes */
+    long getHistoryMemoryBytes();
+
+    /** @return bytes of undo checkpoints written out to the history file */
+    long getHistorySpilledBytes();
+
+    /** Forgets every timing and count so far */
+    void reset();
+}
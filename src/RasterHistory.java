@@ -0,0 +1,81 @@
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps copies of the canvas pixels taken every few strokes, so undo can go back to the nearest copy
+ * and only draw the strokes after it instead of the whole design.
+ * The copies are held by a HistoryManager, which keeps the copies of every layer under one memory budget
+ * by compressing the older ones and writing them to disk.
+ */
+public class RasterHistory {
+    private TreeMap<Integer, HistoryManager.Checkpoint> checkpoints = new TreeMap<>();//copies of the canvas keyed by the number of strokes drawn on it
+    private int interval;                                           //number of strokes between checkpoints
+    private HistoryManager manager;                                 //holds the copies under the memory budget
+
+    /**
+     * Creates an empty history
+     * @param interval number of strokes between checkpoints
+     * @param manager holds the copies under the memory budget, shared with other histories
+     */
+    public RasterHistory(int interval, HistoryManager manager){
+        this.interval = Math.max(1, interval);
+        this.manager = manager;
+    }
+
+    /**
+     * @param strokeCount number of strokes on the canvas
+     * @return true if a checkpoint should be taken now
+     */
+    public boolean isDue(int strokeCount){
+        return strokeCount > 0 && strokeCount % interval == 0 && !checkpoints.containsKey(strokeCount);
+    }
+
+    /**
+     * Takes a copy of the canvas pixels
+     * @param strokeCount number of strokes drawn on the image
+     * @param image canvas image to copy
+     */
+    public void capture(int strokeCount, BufferedImage image){
+        HistoryManager.Checkpoint checkpoint = manager.add(image);
+        if (checkpoint == null)
+            return;
+        HistoryManager.Checkpoint replaced = checkpoints.put(strokeCount, checkpoint);
+        if (replaced != null)
+            manager.remove(replaced);
+    }
+
+    /**
+     * Copies the nearest checkpoint at or before a stroke count back into the canvas image
+     * @param strokeCount number of strokes the image should show
+     * @param image canvas image to copy into
+     * @return number of strokes the restored image shows, or -1 if there was no checkpoint to use
+     */
+    public int restore(int strokeCount, BufferedImage image){
+        Map.Entry<Integer, HistoryManager.Checkpoint> checkpoint = checkpoints.floorEntry(strokeCount);
+        //checkpoints dropped by the manager to make room are passed over for earlier ones
+        while (checkpoint != null && !manager.restore(checkpoint.getValue(), image)) {
+            checkpoints.remove(checkpoint.getKey());
+            checkpoint = checkpoints.floorEntry(strokeCount);
+        }
+        return checkpoint == null ? -1 : checkpoint.getKey();
+    }
+
+    /**
+     * Drops the checkpoints taken after a stroke count, eg once the strokes after it have been replaced
+     * @param strokeCount number of strokes still valid
+     */
+    public void truncate(int strokeCount){
+        Map<Integer, HistoryManager.Checkpoint> stale = checkpoints.tailMap(strokeCount, false);
+        for (HistoryManager.Checkpoint checkpoint : stale.values())
+            manager.remove(checkpoint);
+        stale.clear();
+    }
+
+    /** Drops every checkpoint, eg when the sectors change and every stored image is out of date */
+    public void invalidate(){
+        for (HistoryManager.Checkpoint checkpoint : checkpoints.values())
+            manager.remove(checkpoint);
+        checkpoints.clear();
+    }
+}
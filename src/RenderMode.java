@@ -0,0 +1,9 @@
+/**
+ * The ways the canvas can redraw the whole design
+ */
+public enum RenderMode {
+    SERIAL,                                                         //draws every Circle one after another on the canvas
+    TILED,                                                          //splits the canvas into tiles drawn in parallel
+    STAMP,                                                          //copies cached Circle stamps straight into the pixels
+    WEDGE                                                           //draws only the first sector and copies it around the canvas
+}
@@ -0,0 +1,120 @@
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+/**
+ * Redraws whole designs into a back buffer on its own thread so the event thread stays free.
+ * Only the newest job is ever finished: a job submitted while another is drawing cancels it at its next stroke,
+ * and jobs submitted while the thread is busy replace each other. Finished images are handed back on the event thread.
+ */
+public class RenderWorker {
+    private Thread thread;                                          //thread the designs are drawn on
+    private Job waiting;                                            //newest job not yet started
+    private volatile long generation;                               //number of the newest job submitted
+
+    /** A request to draw a design, and the image drawn for it once done */
+    public static class Job {
+        private StrokeStore design;                                 //view of the design to draw
+        private int lineCount;
+        private RenderMode renderMode;
+        private int width, height;                                  //size of the image to draw
+        private int imageType = BufferedImage.TYPE_INT_RGB;         //TYPE_INT_RGB, or TYPE_INT_ARGB_PRE for a transparent image
+        private Consumer<Job> done;                                 //called on the event thread with the finished job
+        private long generation;
+        private BufferedImage image;
+
+        /**
+         * @param design view of the design to draw, which must not change while it is drawn
+         * @param lineCount number of sectors
+         * @param renderMode how to draw the design
+         * @param width width of the image
+         * @param height height of the image
+         * @param done called on the event thread once the image is drawn
+         */
+        public Job(StrokeStore design, int lineCount, RenderMode renderMode, int width, int height, Consumer<Job> done){
+            this.design = design;
+            this.lineCount = lineCount;
+            this.renderMode = renderMode;
+            this.width = width;
+            this.height = height;
+            this.done = done;
+        }
+
+        /**
+         * Draws the design on a transparent TYPE_INT_ARGB_PRE image rather than on white
+         * @return the job
+         */
+        public Job transparent(){
+            imageType = BufferedImage.TYPE_INT_ARGB_PRE;
+            return this;
+        }
+
+        public StrokeStore getDesign(){
+            return design;
+        }
+        public long getGeneration(){
+            return generation;
+        }
+        public BufferedImage getImage(){
+            return image;
+        }
+    }
+
+    /**
+     * Creates the worker and starts its thread
+     * @param name name of the thread
+     */
+    public RenderWorker(String name){
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks for a design to be drawn, replacing any job not yet finished
+     * @param job job to draw
+     * @return number given to the job, which newer jobs are greater than
+     */
+    public synchronized long submit(Job job){
+        job.generation = ++generation;
+        waiting = job;
+        notifyAll();
+        return job.generation;
+    }
+
+    /** Stops the thread once the job it is drawing ends */
+    public void shutdown(){
+        thread.interrupt();
+    }
+
+    private void run(){
+        SectorRenderer renderer = null;
+        try {
+            while (true) {
+                Job job;
+                synchronized (this) {
+                    while (waiting == null)
+                        wait();
+                    job = waiting;
+                    waiting = null;
+                }
+                BufferedImage image = new BufferedImage(job.width, job.height, job.imageType);
+                if (renderer == null)
+                    renderer = new SectorRenderer(image);
+                else
+                    renderer.setImage(image);
+                renderer.setRenderMode(job.renderMode);
+                renderer.setLineCount(job.lineCount);
+                //gives up as soon as a newer job comes in
+                long start = System.nanoTime();
+                if (renderer.render(job.design, () -> job.generation != generation)) {
+                    Metrics.UPDATE_SECTORS.recordSince(start);
+                    job.image = image;
+                    SwingUtilities.invokeLater(() -> job.done.accept(job));
+                }
+            }
+        } catch (InterruptedException e) {
+            //the worker has been shut down
+        }
+    }
+}
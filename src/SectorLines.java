@@ -2,21 +2,24 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
 
 /**
- * A panel that sits directly above the canvas
- * It is used to draw the sector lines
+ * A panel that sits directly above the canvas, the same size as it
+ * It is used to draw the sector lines out from the middle, where the canvas keeps the centre of the design
  */
 public class SectorLines extends JPanel{
     private Integer lineCount;           //How many lines are drawn on the panel eg 1 line divides the panel twice
-    private Integer centerX, centerY;
+    private HashMap<Integer, BufferedImage> overlays = new HashMap<>();  //lines already drawn for each line count, in screen pixels
+    private int overlayWidth, overlayHeight;                        //size of the overlays drawn so far
 
     /** Creates a new Panel to draw lines on */
     SectorLines(){
-        setSize(600,600);
+        setSize(Design.SIZE, Design.SIZE);
+        //Sets to transparent so canvas can be seen underneath
+        setOpaque(false);
         lineCount = 0;
-        centerX = getWidth()/2;
-        centerY = getHeight()/2;
         repaint();
     }
 
@@ -28,22 +31,43 @@ public class SectorLines extends JPanel{
 
     @Override
     protected void paintComponent(Graphics g) {
-        //Sets to transparent so canvas can be seen underneath
-        setOpaque(false);
         super.paintComponent(g);
-        removeAll();
-        Graphics2D g2 = (Graphics2D) g;
-
         if(lineCount > 1) {
-            double incrAngle = (2*Math.PI) / lineCount;
-            Line2D line = new Line2D.Double(300, -100, 300, 300);
-
-            //draw i lines then rotate them an increasing amount each time
-            for (int i = 1; i <= lineCount; i++) {
-                AffineTransform rotatedLine = AffineTransform.getRotateInstance((i * incrAngle), centerX, centerY);
-                g2.draw(((rotatedLine.createTransformedShape(line))));
+            //drawn in screen pixels so the lines stay sharp on HiDPI screens
+            Graphics2D g2d = (Graphics2D) g.create();
+            AffineTransform screen = g2d.getTransform();
+            int width = (int) Math.round(getWidth() * screen.getScaleX()), height = (int) Math.round(getHeight() * screen.getScaleY());
+            if (width != overlayWidth || height != overlayHeight) {
+                overlays.clear();
+                overlayWidth = width;
+                overlayHeight = height;
             }
+            g2d.setTransform(AffineTransform.getTranslateInstance(screen.getTranslateX(), screen.getTranslateY()));
+            g2d.drawImage(overlays.computeIfAbsent(lineCount, this::drawOverlay), 0, 0, null);
+            g2d.dispose();
         }
     }
-}
 
+    /**
+     * Draws the lines for a line count onto a transparent image, drawn once and reused on every paint
+     * @param lineCount number of lines
+     * @return image of the lines
+     */
+    private BufferedImage drawOverlay(Integer lineCount){
+        BufferedImage overlay = new BufferedImage(overlayWidth, overlayHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = overlay.createGraphics();
+        g2.setColor(getForeground());
+        double incrAngle = (2*Math.PI) / lineCount;
+        double centerX = overlayWidth / 2.0, centerY = overlayHeight / 2.0;
+        //long enough to reach the corners
+        Line2D line = new Line2D.Double(centerX, centerY - Math.hypot(centerX, centerY), centerX, centerY);
+
+        //draw i lines then rotate them an increasing amount each time
+        for (int i = 1; i <= lineCount; i++) {
+            AffineTransform rotatedLine = AffineTransform.getRotateInstance((i * incrAngle), centerX, centerY);
+            g2.draw(((rotatedLine.createTransformedShape(line))));
+        }
+        g2.dispose();
+        return overlay;
+    }
+}
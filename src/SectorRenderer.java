@@ -0,0 +1,495 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Draws the Circles of a design repeated and reflected over the sectors onto an image.
+ * It only needs a TYPE_INT_RGB image, so it can draw away from the canvas and off the event thread.
+ * Cords are measured in the design's Design.SIZE square and scaled to fit the image, which must be square.
+ * A TYPE_INT_ARGB_PRE image is cleared to transparent rather than white, so it can be laid over other images.
+ * A renderer is not thread safe; each thread drawing needs its own.
+ */
+public class SectorRenderer {
+    private BufferedImage image;                                    //image drawn on
+    private Graphics2D g2;                                          //used to draw with
+    private int[] pixels;                                           //pixels of the image written to in STAMP and WEDGE mode
+    private boolean premultiplied;                                  //flags if the image is TYPE_INT_ARGB_PRE, cleared to transparent
+    private int centerX, centerY;                                   //point the sectors are rotated around, in design cords
+    private double scale;                                           //image pixels per design cord
+    private int lineCount;                                          //how many Lines there are dividing the image into sectors
+    private SectorTransforms sectors = SectorTransforms.forLineCount(0);//rotation and reflection of each sector
+    private RenderMode renderMode = RenderMode.SERIAL;              //how Circles are drawn
+    private TiledRenderer tiledRenderer;                            //draws the design in parallel tiles in TILED mode
+    private StampRasterizer stampRasterizer;                        //copies cached Circle stamps into the pixels in STAMP mode
+    private WedgeRenderer wedgeRenderer;                            //draws one sector and copies it around in WEDGE mode
+    private boolean rendering;                                      //flags if the whole design is being drawn, so copying the wedge waits for the end
+    private int imageVersion;                                       //counts changes to the image other than Circles and segments drawn live
+    private DabShape dabShape = new DabShape();                     //reused to draw each Circle or polyline
+    private AffineTransform sectorTransform = new AffineTransform(); //reused to rotate and reflect each Circle
+    private float[] copyX = new float[256], copyY = new float[256], copyR = new float[256];//Circles copied over every sector
+
+    /**
+     * Creates a renderer drawing on an image
+     * @param image TYPE_INT_RGB or TYPE_INT_ARGB_PRE image to draw on
+     */
+    public SectorRenderer(BufferedImage image){
+        setImage(image);
+    }
+
+    /**
+     * Moves the renderer to a new image, keeping its settings
+     * @param image TYPE_INT_RGB or TYPE_INT_ARGB_PRE image to draw on
+     */
+    public void setImage(BufferedImage image){
+        Color color = g2 == null ? Color.black : g2.getColor();
+        this.image = image;
+        imageVersion++;
+        centerX = Design.SIZE/2;
+        centerY = Design.SIZE/2;
+        scale = image.getWidth() / (double) Design.SIZE;
+        premultiplied = image.getType() == BufferedImage.TYPE_INT_ARGB_PRE;
+        g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setBackground(background(image));
+        g2.setColor(color);
+        pixels = renderMode == RenderMode.STAMP || renderMode == RenderMode.WEDGE ? StampRasterizer.pixels(image) : null;
+        if (wedgeRenderer != null && !wedgeRenderer.fits(image.getWidth(), image.getHeight(), premultiplied))
+            wedgeRenderer = null;
+        if (renderMode == RenderMode.WEDGE)
+            wedgeRenderer().invalidate();
+    }
+
+    /** Notes that the image has been drawn on other than through this renderer, eg restored from a checkpoint */
+    public void imageChanged(){
+        imageVersion++;
+        if (wedgeRenderer != null)
+            wedgeRenderer.invalidate();
+    }
+
+    /**
+     * @return number that changes whenever the image is changed other than by drawing Circles, segments or polylines,
+     * eg by a redraw, a stored stroke or a restore
+     */
+    public int imageVersion(){
+        return imageVersion;
+    }
+
+    /** @return the image drawn on */
+    public BufferedImage getImage(){
+        return image;
+    }
+
+    /** @return graphics of the image, holding the color Circles are drawn in */
+    public Graphics2D getGraphics(){
+        return g2;
+    }
+
+    /** @param lineCount number of sectors */
+    public void setLineCount(int lineCount){
+        this.lineCount = lineCount;
+        sectors = SectorTransforms.forLineCount(lineCount);
+        if (wedgeRenderer != null)
+            wedgeRenderer.setLineCount(lineCount);
+    }
+
+    public int getLineCount(){
+        return lineCount;
+    }
+
+    /** @return rotation and reflection of each sector */
+    public SectorTransforms getSectors(){
+        return sectors;
+    }
+
+    /**
+     * Sets how Circles are drawn
+     * @param renderMode SERIAL to draw on this thread, TILED to draw tiles in parallel, STAMP to copy cached stamps
+     *                   or WEDGE to draw one sector and copy it around
+     */
+    public void setRenderMode(RenderMode renderMode){
+        this.renderMode = renderMode;
+        if (renderMode == RenderMode.TILED && tiledRenderer == null)
+            tiledRenderer = new TiledRenderer(ForkJoinPool.commonPool(), 64);
+        if (renderMode == RenderMode.STAMP && stampRasterizer == null)
+            stampRasterizer = new StampRasterizer(1024);
+        pixels = renderMode == RenderMode.STAMP || renderMode == RenderMode.WEDGE ? StampRasterizer.pixels(image) : null;
+        if (renderMode == RenderMode.WEDGE)
+            wedgeRenderer().invalidate();
+    }
+
+    /** @return the wedge renderer, made for the image and line count if there is none yet */
+    private WedgeRenderer wedgeRenderer(){
+        if (wedgeRenderer == null) {
+            wedgeRenderer = new WedgeRenderer(image.getWidth(), image.getHeight(), premultiplied);
+            wedgeRenderer.setLineCount(lineCount);
+        }
+        return wedgeRenderer;
+    }
+
+    public RenderMode getRenderMode(){
+        return renderMode;
+    }
+
+    /**
+     * Draws a circle repeated and reflected over sectors in the current color
+     * @param x centre x cord
+     * @param y centre y cord
+     * @param radius radius of the circle
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void drawSectors(double x, double y, double radius, boolean reflected){
+        if (renderMode == RenderMode.STAMP) {
+            stampRasterizer.drawSectors(pixels, premultiplied, image.getWidth(), image.getHeight(), sectors, centerX * scale,
+                    centerY * scale, x * scale, y * scale, radius * scale, g2.getColor().getRGB(), reflected);
+            return;
+        }
+        dabShape.setCircle(x, y, radius);
+        drawSectors(dabShape, reflected);
+    }
+
+    /**
+     * Draws a capsule, a segment with round caps, repeated and reflected over sectors in the current color
+     * @param fromX x cord of the start of the segment
+     * @param fromY y cord of the start of the segment
+     * @param toX x cord of the end of the segment
+     * @param toY y cord of the end of the segment
+     * @param radius half the width of the segment
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void drawSegment(double fromX, double fromY, double toX, double toY, double radius, boolean reflected){
+        dabShape.setSegment(fromX, fromY, toX, toY, radius);
+        drawSectors(dabShape, reflected);
+    }
+
+    /**
+     * Draws many Circles of one radius repeated and reflected over sectors in the current color, in the order given,
+     * eg every Circle placed by the mouse over a frame. The sector transforms are worked out once for the lot
+     * rather than for every Circle, and the image comes out the same as drawing them one by one
+     * @param xs centre x cords
+     * @param ys centre y cords
+     * @param count number of Circles
+     * @param radius radius of the Circles
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void drawDabs(double[] xs, double[] ys, int count, double radius, boolean reflected){
+        if (renderMode == RenderMode.STAMP || renderMode == RenderMode.WEDGE) {
+            for (int i = 0; i < count; i++)
+                drawSectors(xs[i], ys[i], radius, reflected);
+            return;
+        }
+        AffineTransform[] transforms = sectorTransforms(reflected);
+        for (int i = 0; i < count; i++) {
+            dabShape.setCircle(xs[i], ys[i], radius);
+            paint(dabShape, transforms);
+        }
+        sectorTransform.setToIdentity();
+        g2.setTransform(sectorTransform);
+    }
+
+    /**
+     * Draws a polyline repeated and reflected over sectors in the current color, in one pass like drawDabs
+     * @param fromX x cord the polyline starts from
+     * @param fromY y cord the polyline starts from
+     * @param xs x cords of the points it goes on through
+     * @param ys y cords of the points it goes on through
+     * @param count number of points
+     * @param radius half the width of the polyline
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void drawPolyline(double fromX, double fromY, double[] xs, double[] ys, int count, double radius, boolean reflected){
+        AffineTransform[] transforms = renderMode == RenderMode.WEDGE ? null : sectorTransforms(reflected);
+        for (int i = 0; i < count; i++) {
+            if (transforms == null) {
+                drawSegment(fromX, fromY, xs[i], ys[i], radius, reflected);
+            } else {
+                dabShape.setSegment(fromX, fromY, xs[i], ys[i], radius);
+                paint(dabShape, transforms);
+            }
+            fromX = xs[i];
+            fromY = ys[i];
+        }
+        sectorTransform.setToIdentity();
+        g2.setTransform(sectorTransform);
+    }
+
+    /** @return the transform of each copy over the sectors, in the order drawSectors draws them */
+    private AffineTransform[] sectorTransforms(boolean reflected){
+        AffineTransform[] transforms = new AffineTransform[reflected ? lineCount * 2 : lineCount];
+        double incrAngle = lineCount == 0 ? 0 : Math.PI*2 / lineCount;
+        for (int i = 1, copy = 0; i <= lineCount; i++) {
+            AffineTransform transform = AffineTransform.getScaleInstance(scale, scale);
+            transform.rotate(i * incrAngle, centerX, centerY);
+            transforms[copy++] = transform;
+            if (reflected) {
+                transform = new AffineTransform(transform);
+                transform.translate(centerX, 0);
+                transform.scale(-1, 1);
+                transform.translate(-centerX, 0);
+                transforms[copy++] = transform;
+            }
+        }
+        return transforms;
+    }
+
+    /** Paints a shape with each transform in turn, leaving the last one set */
+    private void paint(DabShape shape, AffineTransform[] transforms){
+        for (AffineTransform transform : transforms) {
+            g2.setTransform(transform);
+            shape.paint(g2);
+        }
+    }
+
+    /** Draws a shape repeated and reflected over sectors in the current color */
+    private void drawSectors(DabShape shape, boolean reflected){
+        if (renderMode == RenderMode.WEDGE) {
+            wedgeRenderer.draw(pixels, shape, reflected, g2.getColor());
+            if (!rendering)
+                wedgeRenderer.composite(pixels, shape, reflected);
+            return;
+        }
+        if(lineCount != 0) {
+            //rotates each item around each sector
+            double incrAngle = (Math.PI*2 / lineCount);
+            for (int i = 1; i <= lineCount; i++) {
+                sectorTransform.setToScale(scale, scale);
+                sectorTransform.rotate(i * incrAngle, centerX, centerY);
+                g2.setTransform(sectorTransform);
+                shape.paint(g2);
+
+                if (reflected) {
+                    //Translates to the x-axis, reflects over the x-axis and translates back
+                    sectorTransform.translate(centerX, 0);
+                    sectorTransform.scale(-1, 1);
+                    sectorTransform.translate(-centerX, 0);
+                    g2.setTransform(sectorTransform);
+                    shape.paint(g2);
+                }
+            }
+            sectorTransform.setToIdentity();
+            g2.setTransform(sectorTransform);
+        }
+    }
+
+    /**
+     * Draws every stored Circle or polyline of a stroke over the sectors in its own color
+     * @param design stored Circles
+     * @param stroke index of the stroke
+     */
+    public void drawStroke(StrokeStore design, int stroke){
+        imageVersion++;
+        Color color = g2.getColor();
+        int colorIndex = -1;
+        for (int dab = design.strokeStart(stroke), end = design.strokeEnd(stroke); dab < end; dab++){
+            if (design.isErased(dab) || design.hasSegmentBefore(dab))
+                continue;
+            //...draw the their shape in their assigned color and size
+            if (design.colorIndex(dab) != colorIndex) {
+                colorIndex = design.colorIndex(dab);
+                g2.setColor(design.paletteColor(colorIndex));
+            }
+            if (design.isPolyline(dab)) {
+                //polylines are drawn whole from their first point, stamps only come in Circles
+                dabShape.set(design, dab);
+                drawSectors(dabShape, design.isReflected(dab));
+            } else {
+                drawSectors(design.x(dab), design.y(dab), design.radius(dab), design.isReflected(dab));
+            }
+        }
+        g2.setColor(color);
+    }
+
+    /**
+     * Instead of drawing the same line many times but rotated and reflected, this method copies
+     * the centres and radii of the rotations and reflections of a group of Circles into arrays
+     * @param design stored Circles
+     * @param from first circle of the group to be duplicated
+     * @param to index one past the last circle of the group
+     * @return number of circles copied, read back with copyX(i), copyY(i) and copyRadius(i)
+     */
+    public int duplicateSectors(StrokeStore design, int from, int to){
+        int count = 0;
+        if (lineCount != 0) {
+            int needed = (to - from) * lineCount * 2;
+            if (needed > copyX.length) {
+                copyX = Arrays.copyOf(copyX, needed);
+                copyY = Arrays.copyOf(copyY, needed);
+                copyR = Arrays.copyOf(copyR, needed);
+            }
+            //rotates each item around each sector
+            for (int dab = from; dab < to; dab++) {
+                double x = design.x(dab) - centerX, y = design.y(dab) - centerY;
+                for (int i = 1; i <= lineCount; i++) {
+                    copyX[count] = (float) (centerX + sectors.rotateX(i, x, y));
+                    copyY[count] = (float) (centerY + sectors.rotateY(i, x, y));
+                    copyR[count++] = design.radius(dab);
+                    if (design.isReflected(dab)) {
+                        //reflects over the y-axis through the centre before rotating
+                        copyX[count] = (float) (centerX + sectors.reflectX(i, x, y));
+                        copyY[count] = (float) (centerY + sectors.reflectY(i, x, y));
+                        copyR[count++] = design.radius(dab);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    //Circles copied by the last call to duplicateSectors
+    public float copyX(int i){
+        return copyX[i];
+    }
+    public float copyY(int i){
+        return copyY[i];
+    }
+    public float copyRadius(int i){
+        return copyR[i];
+    }
+
+    /**
+     * @return true if renderArea draws the same pixels as the render mode, so a redrawn area leaves no seams.
+     * Stamps and the wedge come out a little different from Java2D, so areas are not redrawn in those modes
+     */
+    public boolean canRenderArea(){
+        return renderMode == RenderMode.SERIAL || renderMode == RenderMode.TILED;
+    }
+
+    /**
+     * Clears every copy of an area of the design over the sectors and draws dabs over them, so the rest of the image
+     * is untouched. Each copy is redrawn in turn clipped to its bounds, drawing only the copies of dabs that reach it.
+     * Dabs are drawn with Java2D whatever the render mode, as stamps and the wedge are not clipped, so the area only
+     * matches the rest of the image when canRenderArea() is true
+     * @param design stored Circles
+     * @param dabs indexes of the dabs with a copy that may touch the area, in drawing order. A polyline point has to start its run
+     * @param count number of indexes used
+     * @param source area in the design
+     * @param reflected true to redraw the reflected copies of the area too
+     * @return bounds of the image redrawn in image pixels, empty if none
+     */
+    public Rectangle renderArea(StrokeStore design, int[] dabs, int count, Rectangle2D source, boolean reflected){
+        Rectangle redrawn = new Rectangle(0, 0, -1, -1);
+        if (lineCount == 0)
+            return redrawn;
+        RenderMode mode = renderMode;
+        Color color = g2.getColor();
+        renderMode = RenderMode.SERIAL;
+        double incrAngle = (Math.PI*2 / lineCount);
+        Rectangle imageBounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        try {
+            for (int copy = 0; copy < lineCount * 2; copy++) {
+                if (copy % 2 == 1 && !reflected)
+                    continue;
+                sectorTransform.setToScale(scale, scale);
+                sectorTransform.rotate((copy / 2 + 1) * incrAngle, centerX, centerY);
+                if (copy % 2 == 1) {
+                    sectorTransform.translate(centerX, 0);
+                    sectorTransform.scale(-1, 1);
+                    sectorTransform.translate(-centerX, 0);
+                }
+                Rectangle area = sectorTransform.createTransformedShape(source).getBounds().intersection(imageBounds);
+                if (area.isEmpty())
+                    continue;
+                redrawn.add(area);
+                renderCopy(design, dabs, count, area, incrAngle);
+            }
+        } finally {
+            renderMode = mode;
+            sectorTransform.setToIdentity();
+            g2.setTransform(sectorTransform);
+            g2.setClip(null);
+            g2.setColor(color);
+        }
+        imageChanged();
+        return redrawn;
+    }
+
+    /** Clears a rectangle of the image and draws the copies of dabs that reach it, clipped to it */
+    private void renderCopy(StrokeStore design, int[] dabs, int count, Rectangle area, double incrAngle){
+        sectorTransform.setToIdentity();
+        g2.setTransform(sectorTransform);
+        g2.setClip(area);
+        g2.clearRect(area.x, area.y, area.width, area.height);
+        int colorIndex = -1;
+        for (int d = 0; d < count; d++) {
+            int dab = dabs[d];
+            if (!dabShape.set(design, dab))
+                continue;
+            if (design.colorIndex(dab) != colorIndex) {
+                colorIndex = design.colorIndex(dab);
+                g2.setColor(design.paletteColor(colorIndex));
+            }
+            double x = dabShape.centerX() - centerX, y = dabShape.centerY() - centerY;
+            //leaves a pixel either side for antialiasing
+            double reach = dabShape.reach() * scale + 2;
+            for (int i = 1; i <= lineCount; i++) {
+                if (reaches(area, (centerX + sectors.rotateX(i, x, y)) * scale, (centerY + sectors.rotateY(i, x, y)) * scale, reach)) {
+                    //same transform as drawSectors so the pixels match
+                    sectorTransform.setToScale(scale, scale);
+                    sectorTransform.rotate(i * incrAngle, centerX, centerY);
+                    g2.setTransform(sectorTransform);
+                    dabShape.paint(g2);
+                }
+                if (design.isReflected(dab) && reaches(area, (centerX + sectors.reflectX(i, x, y)) * scale,
+                        (centerY + sectors.reflectY(i, x, y)) * scale, reach)) {
+                    sectorTransform.setToScale(scale, scale);
+                    sectorTransform.rotate(i * incrAngle, centerX, centerY);
+                    sectorTransform.translate(centerX, 0);
+                    sectorTransform.scale(-1, 1);
+                    sectorTransform.translate(-centerX, 0);
+                    g2.setTransform(sectorTransform);
+                    dabShape.paint(g2);
+                }
+            }
+        }
+    }
+
+    /** @return true if a circle reaches into a rectangle */
+    private static boolean reaches(Rectangle area, double x, double y, double reach){
+        return x + reach >= area.x && x - reach <= area.x + area.width && y + reach >= area.y && y - reach <= area.y + area.height;
+    }
+
+    /** Clears the image of paint */
+    public void clear(){
+        imageVersion++;
+        g2.clearRect(0, 0, image.getWidth(), image.getHeight());
+        if (wedgeRenderer != null)
+            wedgeRenderer.clear();
+    }
+
+    /** @return color an image is cleared to, transparent for a TYPE_INT_ARGB_PRE image and white otherwise */
+    public static Color background(BufferedImage image){
+        return image.getType() == BufferedImage.TYPE_INT_ARGB_PRE ? new Color(0, true) : Color.white;
+    }
+
+    /**
+     * Clears the image and draws every stroke of the design
+     * @param design stored Circles
+     * @param cancelled checked between strokes, drawing stops early once it returns true
+     * @return false if drawing was cancelled before the end
+     */
+    public boolean render(StrokeStore design, BooleanSupplier cancelled){
+        imageVersion++;
+        if (renderMode == RenderMode.TILED && tiledRenderer.render(design, lineCount, centerX, centerY, image))
+            return !cancelled.getAsBoolean();
+        clear();
+        //in WEDGE mode the strokes are drawn into the wedge and it is copied around once at the end
+        rendering = renderMode == RenderMode.WEDGE;
+        try {
+            for (int stroke = 0; stroke < design.strokeCount(); stroke++) {
+                if (cancelled.getAsBoolean()) {
+                    imageChanged();
+                    return false;
+                }
+                drawStroke(design, stroke);
+            }
+        } finally {
+            rendering = false;
+        }
+        if (renderMode == RenderMode.WEDGE)
+            wedgeRenderer.compositeAll(pixels);
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Table of the rotation and reflection used for each sector for a number of sectors.
+ * Copy i rotates a point by i sectors around the centre, and its reflected copy first reflects
+ * the point over the vertical line through the centre. Tables are built once per line count and shared.
+ */
+public class SectorTransforms {
+    private static SectorTransforms[] tables = new SectorTransforms[32];//built tables by line count
+
+    private int lineCount;
+    private double[] cos, sin;                                      //rotation of each sector, indexed from 1 to lineCount
+
+    /**
+     * @param lineCount number of sectors
+     * @return shared table for that many sectors
+     */
+    public static synchronized SectorTransforms forLineCount(int lineCount){
+        if (lineCount >= tables.length) {
+            SectorTransforms[] grown = new SectorTransforms[lineCount + 1];
+            System.arraycopy(tables, 0, grown, 0, tables.length);
+            tables = grown;
+        }
+        if (tables[lineCount] == null)
+            tables[lineCount] = new SectorTransforms(lineCount);
+        return tables[lineCount];
+    }
+
+    private SectorTransforms(int lineCount){
+        this.lineCount = lineCount;
+        cos = new double[lineCount + 1];
+        sin = new double[lineCount + 1];
+        if (lineCount != 0) {
+            double incrAngle = (Math.PI * 2 / lineCount);
+            for (int i = 1; i <= lineCount; i++) {
+                cos[i] = Math.cos(i * incrAngle);
+                sin[i] = Math.sin(i * incrAngle);
+            }
+        }
+    }
+
+    /** @return number of sectors */
+    public int lineCount(){
+        return lineCount;
+    }
+
+    /** @return x cord of a point rotated by sector i around the centre, given relative to the centre */
+    public double rotateX(int i, double x, double y){
+        return x * cos[i] - y * sin[i];
+    }
+    /** @return y cord of a point rotated by sector i around the centre, given relative to the centre */
+    public double rotateY(int i, double x, double y){
+        return x * sin[i] + y * cos[i];
+    }
+    /** @return x cord of a point reflected then rotated by sector i around the centre, given relative to the centre */
+    public double reflectX(int i, double x, double y){
+        return -x * cos[i] - y * sin[i];
+    }
+    /** @return y cord of a point reflected then rotated by sector i around the centre, given relative to the centre */
+    public double reflectY(int i, double x, double y){
+        return -x * sin[i] + y * cos[i];
+    }
+}
@@ -0,0 +1,272 @@
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One canvas's connection to a SessionServer. The stroke being drawn is sent as it grows: its records are gathered
+ * for a few milliseconds and sent as one frame, and frames from the other clients are handed to a listener as they
+ * arrive, including the frames ending this client's own strokes once the server passes them back.
+ * The socket is non blocking and served by the client's own thread, so drawing never waits on the network.
+ */
+public class SessionClient implements Closeable {
+    private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(8);//default time records are gathered before sending
+    private static final int MAX_QUEUED = 8 << 20;                  //most bytes waiting to be sent before the session is dropped
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+    private Thread thread;
+    private Listener listener;
+    private long flushNanos = FLUSH_NANOS;
+    private final SessionProtocol.Writer pending = new SessionProtocol.Writer();//records not yet sent, guarded by itself
+    private ByteBuffer out = ByteBuffer.allocate(1 << 16);          //frames being written, used on the client's thread
+    private ByteBuffer in = ByteBuffer.allocate(1 << 16);           //bytes read but not yet handed on
+    private int stroke;                                             //number of the stroke being sent
+    private boolean strokeOpen;
+    private volatile boolean closed;
+    private volatile long framesSent, bytesSent;
+
+    /** Told about what comes from the session, on the client's thread */
+    public interface Listener {
+        /**
+         * Called with each frame sent by another client, and each frame of this client's ending a stroke or setting
+         * the line count, in the order the server passed them on
+         * @param batch the frame's records
+         */
+        void received(SessionProtocol.Batch batch);
+
+        /**
+         * Called once if the session ends other than by close()
+         * @param cause why it ended
+         */
+        void disconnected(IOException cause);
+    }
+
+    /**
+     * Connects to a session server and starts the client's thread
+     * @param host name or address of the server
+     * @param port port of the server
+     * @param listener told about strokes from other clients
+     * @throws IOException if the server could not be reached
+     */
+    public SessionClient(String host, int port, Listener listener) throws IOException {
+        this.listener = listener;
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::run, "Session client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @param flushNanos time records are gathered before being sent, 0 to send each as soon as it is made */
+    public void setFlushInterval(long flushNanos){
+        this.flushNanos = flushNanos;
+    }
+
+    /**
+     * Starts sending a new stroke
+     * @param color color of the stroke
+     * @param radius radius of the brush
+     * @param flags REFLECTED, POLYLINE and ERASER flags from SessionProtocol
+     * @param x first brush centre x cord
+     * @param y first brush centre y cord
+     * @return number of the stroke, which its END passed back from the server has
+     */
+    public int begin(Color color, double radius, int flags, double x, double y){
+        synchronized (pending) {
+            boolean wasEmpty = pending.isEmpty();
+            stroke++;
+            strokeOpen = true;
+            pending.begin(stroke, color, radius, flags, x, y);
+            sent(wasEmpty);
+            return stroke;
+        }
+    }
+
+    /** Adds a brush centre to the stroke being sent */
+    public void moveTo(double x, double y){
+        synchronized (pending) {
+            if (!strokeOpen)
+                return;
+            boolean wasEmpty = pending.isEmpty();
+            pending.moveTo(stroke, x, y);
+            sent(wasEmpty);
+        }
+    }
+
+    /** Ends the stroke being sent */
+    public void end(){
+        synchronized (pending) {
+            if (!strokeOpen)
+                return;
+            boolean wasEmpty = pending.isEmpty();
+            strokeOpen = false;
+            pending.end(stroke);
+            sent(wasEmpty);
+        }
+    }
+
+    /**
+     * Sends the line count the selected layer was set to. It comes back from the server like the end of a stroke,
+     * in the order every client gets it
+     * @param lineCount number of sectors
+     */
+    public void setLineCount(int lineCount){
+        synchronized (pending) {
+            boolean wasEmpty = pending.isEmpty();
+            pending.lineCount(lineCount);
+            sent(wasEmpty);
+        }
+    }
+
+    /** Wakes the client's thread when the first record of a frame is made, so it knows when to send it */
+    private void sent(boolean wasEmpty){
+        if (wasEmpty || pending.size() > SessionProtocol.MAX_FRAME / 2)
+            selector.wakeup();
+    }
+
+    /** @return number of frames sent */
+    public long framesSent(){
+        return framesSent;
+    }
+
+    /** @return number of bytes sent */
+    public long bytesSent(){
+        return bytesSent;
+    }
+
+    /** Sends gathered records when they are due and hands on frames as they arrive, until closed */
+    private void run(){
+        try {
+            while (!closed) {
+                long wait;
+                synchronized (pending) {
+                    wait = pending.isEmpty() ? 0 : pending.firstNanos() + flushNanos - System.nanoTime();
+                    if (!pending.isEmpty() && (wait <= 0 || pending.size() > SessionProtocol.MAX_FRAME / 2)) {
+                        frame();
+                        wait = 0;
+                    }
+                }
+                if (out.position() > 0)
+                    write();
+                if (wait > 0)
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                else if (pending.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey selected = it.next();
+                    it.remove();
+                    if (selected.isValid() && selected.isReadable())
+                        read();
+                    if (selected.isValid() && selected.isWritable())
+                        write();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                closed = true;
+                closeQuietly();
+                listener.disconnected(e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e));
+            }
+        }
+    }
+
+    /** Moves the gathered records into a frame waiting to be written */
+    private void frame() throws IOException {
+        int needed = 13 + pending.size();
+        if (out.remaining() < needed) {
+            if (out.position() + needed > MAX_QUEUED)
+                throw new IOException("the server is not keeping up");
+            int capacity = out.capacity();
+            while (capacity < out.position() + needed)
+                capacity *= 2;
+            out = ByteBuffer.allocate(capacity).put(out.flip());
+        }
+        bytesSent += needed;
+        framesSent++;
+        pending.writeFrame(out);
+    }
+
+    private void write() throws IOException {
+        out.flip();
+        channel.write(out);
+        out.compact();
+        key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /** Reads what the server has sent and hands on every whole frame */
+    private void read() throws IOException {
+        if (channel.read(in) < 0)
+            throw new IOException("the server closed the session");
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 13 || length > SessionProtocol.MAX_FRAME + 4)
+                throw new IOException("bad frame length " + length);
+            if (in.remaining() < 4 + length) {
+                if (in.capacity() < 4 + length) {
+                    in = ByteBuffer.allocate(4 + length).put(in);
+                    return;
+                }
+                break;
+            }
+            int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            ByteBuffer frame = in.duplicate();
+            frame.limit(end);
+            listener.received(SessionProtocol.readBatch(frame));
+            in.position(end);
+        }
+        in.compact();
+    }
+
+    private void closeQuietly(){
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+    }
+
+    /** Sends what has been gathered and leaves the session */
+    @Override
+    public void close(){
+        if (closed)
+            return;
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            //the last records are sent before going, blocking once the selector has let go of the socket
+            selector.close();
+            channel.configureBlocking(true);
+            synchronized (pending) {
+                if (!pending.isEmpty())
+                    frame();
+            }
+            out.flip();
+            while (out.hasRemaining())
+                channel.write(out);
+        } catch (IOException e) {
+            //leaving anyway
+        }
+        closeQuietly();
+    }
+}
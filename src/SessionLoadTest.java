@@ -0,0 +1,251 @@
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of shared drawing sessions. Starts a session server on the loopback address, or uses a running one,
+ * and connects many simulated clients that each draw strokes at the rate of a mouse being dragged. Every client
+ * receives every other client's strokes, and the test reports how many brush centres got through each second and
+ * how long they took from being drawn to being received. With -canvas one more client feeds what it receives
+ * into a headless Canvas, and the time to the stroke being on that canvas is reported too.
+ *
+ * Usage: --session-load [-clients n] [-seconds s] [-rate points per second] [-points points per stroke]
+ *                       [-flush ms] [-host address -port n] [-canvas]
+ */
+public class SessionLoadTest {
+    private static final String USAGE = "Usage: --session-load [-clients n] [-seconds s] [-rate points per second] "
+            + "[-points points per stroke] [-flush ms] [-host address -port n] [-canvas]";
+
+    private int clients = 32;                                       //number of simulated clients drawing
+    private int seconds = 10;                                       //how long they draw for
+    private int rate = 125;                                         //brush centres each client sends a second
+    private int strokePoints = 100;                                 //brush centres in each stroke
+    private double flushMillis = 8;                                 //time each client gathers records before sending
+    private String host;                                            //server to use, null to start one on the loopback address
+    private int port;
+    private boolean withCanvas;                                     //flags if a headless canvas also receives everything
+    private AtomicLong pointsReceived = new AtomicLong(), batchesReceived = new AtomicLong();
+    private LatencyHistogram latency = new LatencyHistogram();      //from the oldest record of a batch being made to its receipt
+    private LatencyHistogram canvasLatency = new LatencyHistogram();//from the oldest record of a batch being made to it being on the canvas
+    private LatencyHistogram canvasApply = new LatencyHistogram();  //time the canvas took over each batch
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        SessionLoadTest test = new SessionLoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            test.run();
+        } catch (IOException e) {
+            System.err.println("Session load test failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /** Reads the command line options */
+    private void parse(String[] args){
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-clients":
+                    clients = Integer.parseInt(value(args, ++i));
+                    if (clients < 2)
+                        throw new IllegalArgumentException("-clients must be at least 2");
+                    break;
+                case "-seconds":
+                    seconds = Integer.parseInt(value(args, ++i));
+                    break;
+                case "-rate":
+                    rate = Integer.parseInt(value(args, ++i));
+                    if (rate < 1)
+                        throw new IllegalArgumentException("-rate must be at least 1");
+                    break;
+                case "-points":
+                    strokePoints = Integer.parseInt(value(args, ++i));
+                    if (strokePoints < 1)
+                        throw new IllegalArgumentException("-points must be at least 1");
+                    break;
+                case "-flush":
+                    flushMillis = Double.parseDouble(value(args, ++i));
+                    break;
+                case "-host":
+                    host = value(args, ++i);
+                    break;
+                case "-port":
+                    port = Integer.parseInt(value(args, ++i));
+                    break;
+                case "-canvas":
+                    withCanvas = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private static String value(String[] args, int i){
+        if (i >= args.length)
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    /** A simulated client, drawing strokes around a circle of its own */
+    private class Drawer {
+        private SessionClient client;
+        private double centreX, centreY, angle;
+        private int point;                                          //brush centres sent of the current stroke
+        private long sent;                                          //brush centres sent
+
+        Drawer(int number) throws IOException {
+            client = new SessionClient(host, port, new Counter());
+            client.setFlushInterval((long) (flushMillis * 1e6));
+            centreX = 100 + (number * 37) % 400;
+            centreY = 100 + (number * 53) % 400;
+            angle = number;
+        }
+
+        /** Sends the next brush centre, starting or ending a stroke as needed */
+        void step(){
+            angle += 0.05;
+            double x = centreX + Math.cos(angle) * 80, y = centreY + Math.sin(angle * 1.3) * 80;
+            if (point == 0)
+                client.begin(Color.getHSBColor((float) (angle / 10 % 1), 1, 1), 4, SessionProtocol.POLYLINE, x, y);
+            else
+                client.moveTo(x, y);
+            sent++;
+            if (++point == strokePoints) {
+                client.end();
+                point = 0;
+            }
+        }
+    }
+
+    /** Counts what a simulated client receives */
+    private class Counter implements SessionClient.Listener, SessionProtocol.Receiver {
+        public void received(SessionProtocol.Batch batch){
+            //only other clients' strokes are counted, not the ends of its own passed back
+            if (batch.getClient() == SessionProtocol.OWN)
+                return;
+            latency.recordSince(batch.getSentNanos());
+            batchesReceived.incrementAndGet();
+            batch.read(this);
+        }
+        public void disconnected(IOException cause){
+            System.err.println("A client lost the session: " + cause.getMessage());
+        }
+        public void begun(int stroke, Color color, double radius, int flags, double x, double y){
+            pointsReceived.incrementAndGet();
+        }
+        public void moved(int stroke, double x, double y){
+            pointsReceived.incrementAndGet();
+        }
+        public void ended(int stroke){
+        }
+        public void left(){
+        }
+        public void lineCountSet(int lineCount){
+        }
+    }
+
+    /** Runs the clients for the time given and prints the report */
+    private void run() throws IOException, InterruptedException {
+        SessionServer server = null;
+        if (host == null) {
+            server = new SessionServer(new InetSocketAddress("127.0.0.1", 0));
+            server.start();
+            host = "127.0.0.1";
+            port = server.getPort();
+        }
+        SessionClient canvasClient = null;
+        if (withCanvas)
+            canvasClient = joinWithCanvas();
+        ArrayList<Drawer> drawers = new ArrayList<>();
+        for (int i = 0; i < clients; i++)
+            drawers.add(new Drawer(i));
+        //a client only receives strokes drawn after it joined, so drawing starts once every client is in
+        while (server != null && server.clientCount() < clients + (withCanvas ? 1 : 0))
+            Thread.sleep(10);
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        long period = 1_000_000_000L / rate;
+        for (int i = 0; i < drawers.size(); i++) {
+            Drawer drawer = drawers.get(i);
+            //spreads the clients over the period so they do not all send at once
+            scheduler.scheduleAtFixedRate(drawer::step, period * i / drawers.size(), period, TimeUnit.NANOSECONDS);
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long sent = 0, frames = 0, bytes = 0;
+        for (Drawer drawer : drawers) {
+            drawer.client.end();
+            sent += drawer.sent;
+        }
+        //lets the last frames arrive
+        Thread.sleep(200 + (long) flushMillis * 2);
+        for (Drawer drawer : drawers) {
+            drawer.client.close();
+            frames += drawer.client.framesSent();
+            bytes += drawer.client.bytesSent();
+        }
+
+        long expected = sent * (clients - 1);
+        System.out.printf("%d clients sent %d brush centres in %d frames over %.1f s, %.1f bytes each, %.0f sent/sec%n",
+                clients, sent, frames, elapsed, bytes / (double) sent, sent / elapsed);
+        System.out.printf("Received %d of %d brush centres in %d batches, %.0f received/sec%n",
+                pointsReceived.get(), expected, batchesReceived.get(), pointsReceived.get() / elapsed);
+        System.out.println("Time from drawn to received, in ms:   " + report(latency));
+        if (withCanvas) {
+            System.out.println("Time from drawn to on the canvas, ms: " + report(canvasLatency));
+            System.out.println("Time the canvas took per batch, ms:   " + report(canvasApply)
+                    + String.format(" total=%.2f s", canvasApply.getMean() * canvasApply.getCount() / 1e9));
+            canvasClient.close();
+        }
+        if (server != null)
+            server.close();
+    }
+
+    /** Connects a headless canvas that draws everything the other clients send */
+    private SessionClient joinWithCanvas() throws IOException {
+        Canvas[] canvas = new Canvas[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> canvas[0] = new Canvas(null));
+        } catch (Exception e) {
+            throw new IOException("could not make the canvas: " + e.getMessage(), e);
+        }
+        return new SessionClient(host, port, new SessionClient.Listener() {
+            public void received(SessionProtocol.Batch batch){
+                SwingUtilities.invokeLater(() -> {
+                    long start = System.nanoTime();
+                    canvas[0].applyBatch(batch);
+                    canvasApply.recordSince(start);
+                    canvasLatency.recordSince(batch.getSentNanos());
+                });
+            }
+            public void disconnected(IOException cause){
+                System.err.println("The canvas lost the session: " + cause.getMessage());
+            }
+        });
+    }
+
+    private static String report(LatencyHistogram histogram){
+        return String.format("n=%-8d p50=%-8.3f p90=%-8.3f p99=%-8.3f max=%.3f", histogram.getCount(), histogram.percentile(0.5) / 1e6,
+                histogram.percentile(0.9) / 1e6, histogram.percentile(0.99) / 1e6, histogram.getMax() / 1e6);
+    }
+}
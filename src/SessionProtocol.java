@@ -0,0 +1,241 @@
+import java.awt.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages sent between the canvases of a shared drawing session and the SessionServer.
+ *
+ * Clients send frames of an int length, the nanoTime the first record of the frame was made, a flags byte, then the records.
+ * The server passes every frame on to the other clients with the sender's id put in after the length.
+ * A frame holding an END or a LINE_COUNT has the ECHO flag, and the server passes it back to its sender too, with the id OWN.
+ * Every client gets the frames in the order the server read them, so each canvas stores the strokes in the order
+ * they ended at the server, its own included, and takes the line counts in that order too, so they all end up with
+ * the same design.
+ * A client gathers the records made over a few milliseconds into one frame, and the server writes every frame waiting
+ * for a client in one go, so a fast drag costs a frame every few milliseconds rather than a message per mouse event.
+ *
+ * Records are a kind byte followed by:
+ * BEGIN, the sender's number for the stroke, its argb color, its radius in 1/256ths, its flags and the first brush centre.
+ * POINTS, the stroke number, a 2 byte count, then brush centres. The first is stored whole and the rest as the
+ * zigzagged difference from the one before, so each point usually takes 2 to 4 bytes.
+ * END, the stroke number.
+ * LEFT, sent by the server for a client that has gone, so its open stroke can be finished.
+ * LINE_COUNT, the line count the sender's selected layer was set to.
+ * Numbers other than the color and count are varints. Cords are in design cords, in 1/256ths of a pixel.
+ *
+ * Every canvas builds the stored stroke from the same brush centres with its own StrokeBuilder, so they all store
+ * the same Circles without the stroke being sent twice.
+ */
+public class SessionProtocol {
+    public static final int BEGIN = 1, POINTS = 2, END = 3, LEFT = 4, LINE_COUNT = 5;//kinds of record
+    public static final int REFLECTED = 1, POLYLINE = 2, ERASER = 4;//flags of a stroke
+    public static final int ECHO = 1;                               //flag of a frame to be passed back to its sender
+    public static final int OWN = 0;                                //client id of frames passed back to their sender
+    public static final int MAX_FRAME = 1 << 20;                    //longest frame allowed, past which the sender is cut off
+    private static final float FIXED = 256;                         //cords are sent in 1/256ths of a pixel
+    private static final int MAX_RUN = 0xFFFF;                      //most points in a POINTS record
+
+    /** Told about the records of a frame received from another client, in order */
+    public interface Receiver {
+        void begun(int stroke, Color color, double radius, int flags, double x, double y);
+        void moved(int stroke, double x, double y);
+        void ended(int stroke);
+        /** The client left, so any stroke it had open will not be ended */
+        void left();
+        /** The client set the line count of its selected layer */
+        void lineCountSet(int lineCount);
+    }
+
+    /** A frame received from another client, holding its records still encoded until read */
+    public static class Batch {
+        private final int client;
+        private final long sentNanos;
+        private final byte[] records;
+
+        Batch(int client, long sentNanos, byte[] records){
+            this.client = client;
+            this.sentNanos = sentNanos;
+            this.records = records;
+        }
+
+        /** @return id the server gave the client that sent the batch, OWN if it was sent by the client receiving it */
+        public int getClient(){
+            return client;
+        }
+
+        /** @return System.nanoTime() on the sender when the first record was made, only comparable on the same machine */
+        public long getSentNanos(){
+            return sentNanos;
+        }
+
+        /**
+         * Decodes every record, telling a receiver about each
+         * @param receiver receiver told about the records
+         * @throws IllegalArgumentException if the records are damaged
+         */
+        public void read(Receiver receiver){
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            try {
+                while (buffer.hasRemaining()) {
+                    int kind = buffer.get();
+                    switch (kind) {
+                        case BEGIN: {
+                            int stroke = Varints.get(buffer);
+                            Color color = new Color(buffer.getInt(), true);
+                            double radius = Varints.get(buffer) / FIXED;
+                            int flags = buffer.get();
+                            double x = Varints.unzigzag(Varints.get(buffer)) / FIXED;
+                            receiver.begun(stroke, color, radius, flags, x, Varints.unzigzag(Varints.get(buffer)) / FIXED);
+                            break;
+                        }
+                        case POINTS: {
+                            int stroke = Varints.get(buffer);
+                            int count = buffer.getShort() & 0xFFFF;
+                            int x = 0, y = 0;
+                            for (int i = 0; i < count; i++) {
+                                x += Varints.unzigzag(Varints.get(buffer));
+                                y += Varints.unzigzag(Varints.get(buffer));
+                                receiver.moved(stroke, x / FIXED, y / FIXED);
+                            }
+                            break;
+                        }
+                        case END:
+                            receiver.ended(Varints.get(buffer));
+                            break;
+                        case LEFT:
+                            receiver.left();
+                            break;
+                        case LINE_COUNT:
+                            receiver.lineCountSet(Varints.get(buffer));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown record kind " + kind);
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("record cut short");
+            }
+        }
+    }
+
+    /** Gathers the records of the next frame to send. Not thread safe */
+    static class Writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+        private long firstNanos;                                    //when the first record was made
+        private int runCount = -1;                                  //place of the open POINTS record's count, -1 if none
+        private int runStroke;                                      //stroke the open POINTS record belongs to
+        private int lastX, lastY;                                   //last point written to the open POINTS record
+        private boolean echo;                                       //flags if the frame holds an END or LINE_COUNT, so is passed back
+
+        void begin(int stroke, Color color, double radius, int flags, double x, double y){
+            start();
+            buffer.put((byte) BEGIN);
+            Varints.put(buffer, stroke);
+            buffer.putInt(color.getRGB());
+            Varints.put(buffer, Math.round((float) radius * FIXED));
+            buffer.put((byte) flags);
+            Varints.put(buffer, Varints.zigzag(fixed(x)));
+            Varints.put(buffer, Varints.zigzag(fixed(y)));
+        }
+
+        void moveTo(int stroke, double x, double y){
+            int fixedX = fixed(x), fixedY = fixed(y);
+            if (runCount < 0 || runStroke != stroke || buffer.getShort(runCount) == (short) MAX_RUN) {
+                start();
+                buffer.put((byte) POINTS);
+                Varints.put(buffer, stroke);
+                runCount = buffer.position();
+                runStroke = stroke;
+                buffer.putShort((short) 0);
+                lastX = lastY = 0;
+            }
+            ensure(10);
+            Varints.put(buffer, Varints.zigzag(fixedX - lastX));
+            Varints.put(buffer, Varints.zigzag(fixedY - lastY));
+            buffer.putShort(runCount, (short) (buffer.getShort(runCount) + 1));
+            lastX = fixedX;
+            lastY = fixedY;
+        }
+
+        void end(int stroke){
+            start();
+            buffer.put((byte) END);
+            Varints.put(buffer, stroke);
+            echo = true;
+        }
+
+        void lineCount(int lineCount){
+            start();
+            buffer.put((byte) LINE_COUNT);
+            Varints.put(buffer, lineCount);
+            echo = true;
+        }
+
+        /** Starts a record other than the next point of the open POINTS record */
+        private void start(){
+            if (buffer.position() == 0)
+                firstNanos = System.nanoTime();
+            ensure(32);
+            runCount = -1;
+        }
+
+        boolean isEmpty(){
+            return buffer.position() == 0;
+        }
+
+        /** @return when the first record was made */
+        long firstNanos(){
+            return firstNanos;
+        }
+
+        /** @return bytes of records gathered */
+        int size(){
+            return buffer.position();
+        }
+
+        /** Appends the records as a frame to a buffer with room for them, and starts the next frame */
+        void writeFrame(ByteBuffer out){
+            out.putInt(9 + buffer.position());
+            out.putLong(firstNanos);
+            out.put((byte) (echo ? ECHO : 0));
+            buffer.flip();
+            out.put(buffer);
+            buffer.clear();
+            runCount = -1;
+            echo = false;
+        }
+
+        private void ensure(int bytes){
+            if (buffer.remaining() < bytes)
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+        }
+    }
+
+    /**
+     * Reads a frame passed on by the server, ie after its length
+     * @param frame the frame's client id, sent time, flags and records
+     * @return the batch
+     */
+    static Batch readBatch(ByteBuffer frame){
+        int client = frame.getInt();
+        long sentNanos = frame.getLong();
+        frame.get();
+        byte[] records = new byte[frame.remaining()];
+        frame.get(records);
+        return new Batch(client, sentNanos, records);
+    }
+
+    /**
+     * Rounds a cord to what the other canvases of a session receive, so the drawer's canvas builds its strokes from
+     * the same brush centres as theirs
+     * @param cord design cord
+     * @return the cord rounded to 1/256ths
+     */
+    public static double quantize(double cord){
+        return fixed(cord) / FIXED;
+    }
+
+    private static int fixed(double cord){
+        return Math.round((float) cord * FIXED);
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Passes the strokes of a shared drawing session between its canvases. Every frame a client sends is passed on
+ * to every other client, with the sender's id, in the order frames arrive. Frames ending a stroke go back to their
+ * sender too, so it stores its strokes in that same order. Everything runs on one thread over
+ * non blocking sockets, and the frames waiting for a client are written to it in one go.
+ * A client that falls too far behind is cut off rather than letting its frames pile up.
+ * Only strokes drawn while a client is connected reach it.
+ *
+ * Usage: --serve [-host address] [-port n]
+ */
+public class SessionServer implements Closeable {
+    public static final int DEFAULT_PORT = 7400;
+    private static final int MAX_QUEUED = 8 << 20;                  //most bytes waiting for a client before it is cut off
+
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread thread;
+    private ArrayList<Connection> connections = new ArrayList<>();
+    private ArrayList<Connection> written = new ArrayList<>();      //connections given frames since they were last written to
+    private int nextId = 1;
+    private volatile int clientCount;
+    private volatile boolean closed;
+
+    /** A connected client */
+    private static class Connection {
+        private final int id;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(1 << 16);       //bytes read but not yet passed on
+        private ByteBuffer out = ByteBuffer.allocate(1 << 16);      //frames waiting to be written
+        private boolean queued;                                     //flags if it is in the written list
+        private boolean behind;                                     //flags if it fell too far behind and is to be cut off
+
+        Connection(int id, SocketChannel channel){
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) {
+        String host = "0.0.0.0";
+        int port = DEFAULT_PORT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-host") && i + 1 < args.length)
+                    host = args[++i];
+                else if (args[i].equals("-port") && i + 1 < args.length)
+                    port = Integer.parseInt(args[++i]);
+                else
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: --serve [-host address] [-port n]");
+            System.exit(2);
+        }
+        try {
+            SessionServer server = new SessionServer(new InetSocketAddress(host, port));
+            System.out.println("Drawing session on port " + server.getPort());
+            server.run();
+        } catch (IOException e) {
+            System.err.println("Could not run the session server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Opens the server socket, ready to run
+     * @param address address to listen on, port 0 for any free port
+     * @throws IOException if the socket could not be opened
+     */
+    public SessionServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /** @return port the server listens on */
+    public int getPort(){
+        return server.socket().getLocalPort();
+    }
+
+    /** Runs the server on its own daemon thread */
+    public void start(){
+        thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Session server stopped: " + e.getMessage());
+            }
+        }, "Session server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Passes frames between clients until closed
+     * @throws IOException if the server socket fails
+     */
+    public void run() throws IOException {
+        while (!closed) {
+            selector.select();
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable())
+                        read(connection);
+                    if (key.isValid() && key.isWritable())
+                        write(connection);
+                } catch (IOException e) {
+                    disconnect(connection);
+                }
+            }
+            //each client gets everything passed to it this round in one write
+            for (int i = 0; i < written.size(); i++) {
+                Connection connection = written.get(i);
+                connection.queued = false;
+                if (connection.behind) {
+                    System.err.println("Session client " + connection.id + " is too far behind, cutting it off");
+                    disconnect(connection);
+                } else if (connection.key.isValid()) {
+                    try {
+                        write(connection);
+                    } catch (IOException e) {
+                        disconnect(connection);
+                    }
+                }
+            }
+            written.clear();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(nextId++, channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+        clientCount = connections.size();
+    }
+
+    /** Reads what a client has sent and passes on every whole frame */
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0)
+            throw new IOException("client closed the connection");
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 9 || length > SessionProtocol.MAX_FRAME)
+                throw new IOException("bad frame length " + length);
+            if (in.remaining() < 4 + length) {
+                if (in.capacity() < 4 + length) {
+                    connection.in = ByteBuffer.allocate(4 + length).put(in);
+                    return;
+                }
+                break;
+            }
+            int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            ByteBuffer frame = in.duplicate();
+            frame.limit(end);
+            pass(connection, frame);
+            in.position(end);
+        }
+        in.compact();
+    }
+
+    /** Queues a frame from one client for every other client with the sender's id, and for the sender if it asks for it back */
+    private void pass(Connection from, ByteBuffer frame){
+        int length = frame.remaining();
+        boolean echo = (frame.get(frame.position() + 8) & SessionProtocol.ECHO) != 0;
+        for (int i = 0; i < connections.size(); i++) {
+            Connection to = connections.get(i);
+            if (to == from && !echo || to.behind)
+                continue;
+            if (to.out.remaining() < 8 + length) {
+                if (to.out.position() + 8 + length > MAX_QUEUED) {
+                    //cut off once this round is done, as the list of clients is being walked
+                    to.behind = true;
+                    if (!to.queued) {
+                        to.queued = true;
+                        written.add(to);
+                    }
+                    continue;
+                }
+                int capacity = to.out.capacity();
+                while (capacity < to.out.position() + 8 + length)
+                    capacity *= 2;
+                to.out = ByteBuffer.allocate(capacity).put(to.out.flip());
+            }
+            to.out.putInt(4 + length);
+            to.out.putInt(to == from ? SessionProtocol.OWN : from.id);
+            to.out.put(frame.duplicate());
+            if (!to.queued) {
+                to.queued = true;
+                written.add(to);
+            }
+        }
+    }
+
+    /** Writes as much of a client's waiting frames as its socket takes, and waits to write the rest */
+    private void write(Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+        connection.key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /** Drops a client and tells the others it has gone */
+    private void disconnect(Connection connection){
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            //already going
+        }
+        if (!connections.remove(connection))
+            return;
+        clientCount = connections.size();
+        ByteBuffer left = ByteBuffer.allocate(10);
+        left.putLong(System.nanoTime()).put((byte) 0).put((byte) SessionProtocol.LEFT).flip();
+        pass(connection, left);
+    }
+
+    /** @return number of clients connected */
+    public int clientCount(){
+        return clientCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Connection connection : connections)
+            connection.channel.close();
+        server.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * A least recently used cache of brush stamps keyed by an int.
+ * Keys are kept in primitive arrays so looking up a stamp does not allocate.
+ */
+public class StampCache {
+    private int capacity;                                           //most stamps held
+    private int[] keys;                                             //key of each slot
+    private StampRasterizer.Stamp[] stamps;                         //stamp of each slot
+    private int[] older, newer;                                     //links between slots from least to most recently used
+    private int oldest = -1, newest = -1;
+    private int[] table;                                            //open addressing hash table of slot numbers, -1 if empty
+    private int size;
+
+    /** @param capacity most stamps to hold */
+    public StampCache(int capacity){
+        this.capacity = capacity;
+        keys = new int[capacity];
+        stamps = new StampRasterizer.Stamp[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2) * 2];
+        Arrays.fill(table, -1);
+    }
+
+    /**
+     * @param key key of the stamp
+     * @return the stamp, or null if it is not held
+     */
+    public StampRasterizer.Stamp get(int key){
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        moveToNewest(slot);
+        return stamps[slot];
+    }
+
+    /**
+     * Adds a stamp, dropping the least recently used one if the cache is full
+     * @param key key of the stamp
+     * @param stamp stamp to hold
+     */
+    public void put(int key, StampRasterizer.Stamp stamp){
+        int slot = find(key);
+        if (slot < 0) {
+            if (size < capacity) {
+                slot = size++;
+            } else {
+                slot = oldest;
+                removeFromTable(keys[slot]);
+                unlink(slot);
+            }
+            keys[slot] = key;
+            table[freeIndex(key)] = slot;
+            link(slot);
+        } else {
+            moveToNewest(slot);
+        }
+        stamps[slot] = stamp;
+    }
+
+    /** @return number of stamps held */
+    public int size(){
+        return size;
+    }
+
+    private int find(int key){
+        int mask = table.length - 1;
+        for (int i = hash(key) & mask; table[i] >= 0; i = (i + 1) & mask) {
+            if (keys[table[i]] == key)
+                return table[i];
+        }
+        return -1;
+    }
+
+    private int freeIndex(int key){
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (table[i] >= 0)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /** Removes a key from the hash table, moving back any keys that probed past it */
+    private void removeFromTable(int key){
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (keys[table[i]] != key)
+            i = (i + 1) & mask;
+        table[i] = -1;
+        for (int j = (i + 1) & mask; table[j] >= 0; j = (j + 1) & mask) {
+            int slot = table[j];
+            table[j] = -1;
+            table[freeIndex(keys[slot])] = slot;
+        }
+    }
+
+    private void moveToNewest(int slot){
+        if (slot != newest) {
+            unlink(slot);
+            link(slot);
+        }
+    }
+
+    private void link(int slot){
+        older[slot] = newest;
+        newer[slot] = -1;
+        if (newest >= 0)
+            newer[newest] = slot;
+        newest = slot;
+        if (oldest < 0)
+            oldest = slot;
+    }
+
+    private void unlink(int slot){
+        if (older[slot] >= 0)
+            newer[older[slot]] = newer[slot];
+        else
+            oldest = newer[slot];
+        if (newer[slot] >= 0)
+            older[newer[slot]] = older[slot];
+        else
+            newest = older[slot];
+    }
+
+    private static int hash(int key){
+        key *= 0x9E3779B9;
+        return key ^ (key >>> 16);
+    }
+}
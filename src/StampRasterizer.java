@@ -0,0 +1,130 @@
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Draws Circles over sectors by copying pre-drawn antialiased stamps straight into the pixels of the canvas image.
+ * Brush Circles only come in a few sizes, so each size is drawn once for every quarter pixel offset and kept
+ * in a least recently used cache. Rotated copies of a Circle are still Circles, so only their centres are transformed,
+ * using the shared table for the line count. Once the cache holds the stamps in use nothing is allocated per Circle.
+ * The image must be a TYPE_INT_RGB image, or a TYPE_INT_ARGB_PRE image that may be transparent.
+ */
+public class StampRasterizer {
+    private static final int STEPS = 4;                             //sub pixel offsets a stamp is drawn at in each direction
+
+    private StampCache stamps;                                      //stamps drawn so far
+
+    /** Coverage of a Circle drawn at a sub pixel offset */
+    public static class Stamp {
+        final int size;                                             //width and height of the stamp
+        final int half;                                             //pixels from the stamp's corner to the pixel holding the centre
+        final byte[] coverage;                                      //how much of each pixel the Circle covers, 0 to 255
+
+        Stamp(int size, int half, byte[] coverage){
+            this.size = size;
+            this.half = half;
+            this.coverage = coverage;
+        }
+    }
+
+    /** @param cacheSize most stamps to keep */
+    public StampRasterizer(int cacheSize){
+        stamps = new StampCache(cacheSize);
+    }
+
+    /**
+     * Draws a Circle repeated and reflected over sectors
+     * @param pixels pixels of a TYPE_INT_RGB or TYPE_INT_ARGB_PRE image
+     * @param premultiplied true if the pixels are TYPE_INT_ARGB_PRE
+     * @param width width of the image
+     * @param height height of the image
+     * @param sectors transform table for the line count
+     * @param centerX x cord the sectors are rotated around
+     * @param centerY y cord the sectors are rotated around
+     * @param x centre x cord of the Circle
+     * @param y centre y cord of the Circle
+     * @param radius radius of the Circle
+     * @param argb color of the Circle
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void drawSectors(int[] pixels, boolean premultiplied, int width, int height, SectorTransforms sectors,
+                            double centerX, double centerY, double x, double y, double radius, int argb, boolean reflected){
+        x -= centerX;
+        y -= centerY;
+        for (int i = 1; i <= sectors.lineCount(); i++) {
+            blit(pixels, premultiplied, width, height, centerX + sectors.rotateX(i, x, y), centerY + sectors.rotateY(i, x, y), radius, argb);
+            if (reflected)
+                blit(pixels, premultiplied, width, height, centerX + sectors.reflectX(i, x, y), centerY + sectors.reflectY(i, x, y), radius, argb);
+        }
+    }
+
+    /**
+     * @param image TYPE_INT_RGB or TYPE_INT_ARGB_PRE image
+     * @return the array holding the image's pixels
+     */
+    public static int[] pixels(BufferedImage image){
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Blends the stamp for a Circle into the pixels with its centre at a point */
+    private void blit(int[] pixels, boolean premultiplied, int width, int height, double x, double y, double radius, int argb){
+        //splits the centre into a whole pixel and a quarter pixel offset
+        int steppedX = (int) Math.floor(x * STEPS + 0.5), steppedY = (int) Math.floor(y * STEPS + 0.5);
+        int pixelX = Math.floorDiv(steppedX, STEPS), pixelY = Math.floorDiv(steppedY, STEPS);
+        int offsetX = steppedX - pixelX * STEPS, offsetY = steppedY - pixelY * STEPS;
+        int quarterRadius = (int) Math.round(radius * STEPS);
+        int key = (quarterRadius << 4) | (offsetX << 2) | offsetY;
+        Stamp stamp = stamps.get(key);
+        if (stamp == null) {
+            stamp = drawStamp(quarterRadius / (double) STEPS, offsetX / (double) STEPS, offsetY / (double) STEPS);
+            stamps.put(key, stamp);
+        }
+
+        int left = pixelX - stamp.half, top = pixelY - stamp.half;
+        int fromX = Math.max(0, -left), toX = Math.min(stamp.size, width - left);
+        int fromY = Math.max(0, -top), toY = Math.min(stamp.size, height - top);
+        int alpha = argb >>> 24;
+        int red = (argb >> 16) & 0xFF, green = (argb >> 8) & 0xFF, blue = argb & 0xFF;
+        for (int row = fromY; row < toY; row++) {
+            int source = row * stamp.size, target = (top + row) * width + left;
+            for (int column = fromX; column < toX; column++) {
+                int cover = stamp.coverage[source + column] & 0xFF;
+                if (cover == 0)
+                    continue;
+                int a = cover * alpha / 255;
+                if (premultiplied) {
+                    //the premultiplied color is laid over what is there, alpha included
+                    int pixel = pixels[target + column], keep = 255 - a;
+                    pixels[target + column] = (a + ((pixel >>> 24) * keep + 127) / 255) << 24
+                            | (red * a + ((pixel >> 16) & 0xFF) * keep + 127) / 255 << 16
+                            | (green * a + ((pixel >> 8) & 0xFF) * keep + 127) / 255 << 8
+                            | (blue * a + (pixel & 0xFF) * keep + 127) / 255;
+                } else if (a == 255) {
+                    pixels[target + column] = argb & 0xFFFFFF;
+                } else {
+                    int pixel = pixels[target + column];
+                    int r = (pixel >> 16) & 0xFF, g = (pixel >> 8) & 0xFF, b = pixel & 0xFF;
+                    r += ((red - r) * a + 127) / 255;
+                    g += ((green - g) * a + 127) / 255;
+                    b += ((blue - b) * a + 127) / 255;
+                    pixels[target + column] = (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+    }
+
+    /** Draws the coverage of a Circle with Java2D's antialiasing so stamps look like normal fills */
+    private static Stamp drawStamp(double radius, double offsetX, double offsetY){
+        int half = (int) Math.ceil(radius) + 1;
+        int size = half * 2 + 2;
+        BufferedImage mask = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = mask.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.white);
+        g.fill(new Ellipse2D.Double(half + offsetX - radius, half + offsetY - radius, radius * 2, radius * 2));
+        g.dispose();
+        return new Stamp(size, half, ((DataBufferByte) mask.getRaster().getDataBuffer()).getData());
+    }
+}
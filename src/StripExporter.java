@@ -0,0 +1,377 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Exports designs as PNG images far larger than the canvas, eg 16000 pixels across, without holding the whole image.
+ * The image is drawn in horizontal strips from the stored Circles, scaled up, and each strip is filtered and
+ * compressed as soon as it is drawn, so memory is bounded by the strips in flight whatever the image size.
+ *
+ * Strips are drawn and compressed in parallel. Every strip is deflated on its own and ended on a byte boundary with a
+ * sync flush, so the compressed strips joined in order make one zlib stream, written to the file as they arrive.
+ * Only a few strips per thread are in flight at once, so a slow disk holds the threads back rather than filling the memory.
+ * Each copy of a Circle or polyline is sorted into the strips it touches first, so a strip only draws what lands on it.
+ */
+public class StripExporter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int ADLER_BASE = 65521;                    //largest prime below 2^16, the adler32 modulus
+
+    private int threads;                                            //number of strips drawn at once
+    private int stripPixels;                                        //about how many pixels each strip holds
+    private int level = Deflater.DEFAULT_COMPRESSION;               //zlib compression level
+
+    /** A strip drawn, filtered and compressed */
+    private static class Strip {
+        private byte[] compressed;
+        private int length;                                         //bytes of compressed used
+        private int adler;                                          //adler32 of the filtered rows
+        private int rawLength;                                      //number of filtered bytes
+    }
+
+    /**
+     * @param threads number of strips drawn at once
+     * @param stripPixels about how many pixels each strip holds, which bounds the memory used
+     */
+    public StripExporter(int threads, int stripPixels){
+        this.threads = threads;
+        this.stripPixels = stripPixels;
+    }
+
+    /** Creates an exporter using every processor with strips of about 2 million pixels */
+    public StripExporter(){
+        this(Runtime.getRuntime().availableProcessors(), 1 << 21);
+    }
+
+    /** @param level zlib compression level from 0 to 9, or Deflater.DEFAULT_COMPRESSION */
+    public void setLevel(int level){
+        this.level = level;
+    }
+
+    /**
+     * Draws designs on top of each other over white and writes them to a PNG file. The file is written next to the
+     * old one and moved over it once done, so a failed export does not lose the old file
+     * @param designs designs to draw from the bottom up, which must not change while they are drawn
+     * @param size width and height of the image
+     * @param file file to write
+     * @throws IOException if the file could not be written
+     */
+    public void export(List<Design> designs, int size, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            write(designs, size, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Draws designs on top of each other over white and writes them to a stream as a PNG image
+     * @param designs designs to draw from the bottom up, which must not change while they are drawn
+     * @param size width and height of the image
+     * @param out stream to write to, left open
+     * @throws IOException if the stream could not be written
+     */
+    public void write(List<Design> designs, int size, OutputStream out) throws IOException {
+        int stripHeight = Math.max(1, Math.min(size, stripPixels / size));
+        int strips = (size + stripHeight - 1) / stripHeight;
+        double scale = (double) size / Design.SIZE;
+        int[][][] sorted = new int[designs.size()][][];
+        int[][] counts = new int[designs.size()][];
+        for (int d = 0; d < designs.size(); d++) {
+            sorted[d] = new int[strips][];
+            counts[d] = new int[strips];
+            sortIntoStrips(designs.get(d), scale, stripHeight, sorted[d], counts[d]);
+        }
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, size);
+        putInt(header, 4, size);
+        header[8] = 8;                                              //bits per channel
+        header[9] = 2;                                              //RGB
+        writeChunk(out, "IHDR", header, 0, header.length);
+        //zlib header for deflate with a 32K window, the compression level only being a hint
+        writeChunk(out, "IDAT", new byte[]{0x78, (byte) 0x9C}, 0, 2);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Strip export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<Strip>> inFlight = new ArrayDeque<>();
+        int adler = 1;
+        try {
+            int next = 0;
+            for (int written = 0; written < strips; written++) {
+                //keeps a few strips per thread on their way, in the order they are written
+                for (; next < strips && inFlight.size() < threads * 2; next++) {
+                    int strip = next;
+                    inFlight.add(pool.submit(() -> drawStrip(designs, sorted, counts, strip, strips, stripHeight, size, scale)));
+                }
+                Strip done = inFlight.remove().get();
+                writeChunk(out, "IDAT", done.compressed, 0, done.length);
+                adler = combineAdler(adler, done.adler, done.rawLength);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not draw a strip: " + e.getCause(), e.getCause());
+        } finally {
+            for (Future<Strip> left : inFlight)
+                left.cancel(true);
+            pool.shutdown();
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, adler);
+        writeChunk(out, "IDAT", trailer, 0, 4);
+        writeChunk(out, "IEND", trailer, 0, 0);
+        out.flush();
+    }
+
+    /** Places the number of every copy of every Circle into the strips its bounds touch, in drawing order */
+    private static void sortIntoStrips(Design design, double scale, int stripHeight, int[][] strips, int[] counts){
+        int lineCount = design.getLineCount();
+        if (lineCount == 0)
+            return;
+        StrokeStore strokes = design.getStrokes();
+        int copies = lineCount * 2;
+        double center = Design.SIZE / 2;
+        SectorTransforms sectors = SectorTransforms.forLineCount(lineCount);
+        DabShape shape = new DabShape();
+        for (int stroke = 0; stroke < strokes.strokeCount(); stroke++) {
+            for (int dab = strokes.strokeStart(stroke), end = strokes.strokeEnd(stroke); dab < end; dab++) {
+                if (!shape.set(strokes, dab))
+                    continue;
+                if ((long) dab * copies + copies > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("Design has too many Circles to export");
+                double x = shape.centerX() - center, y = shape.centerY() - center;
+                //leaves a pixel either side for antialiasing
+                double reach = shape.reach() * scale + 2;
+                for (int i = 1; i <= lineCount; i++) {
+                    int copy = dab * copies + (i - 1) * 2;
+                    addToStrips(copy, (center + sectors.rotateY(i, x, y)) * scale, reach, stripHeight, strips, counts);
+                    if (strokes.isReflected(dab))
+                        addToStrips(copy + 1, (center + sectors.reflectY(i, x, y)) * scale, reach, stripHeight, strips, counts);
+                }
+            }
+        }
+    }
+
+    private static void addToStrips(int copy, double y, double reach, int stripHeight, int[][] strips, int[] counts){
+        int first = Math.max(0, (int) Math.floor((y - reach) / stripHeight));
+        int last = Math.min(strips.length - 1, (int) Math.floor((y + reach) / stripHeight));
+        for (int strip = first; strip <= last; strip++) {
+            int[] slots = strips[strip];
+            if (slots == null)
+                slots = strips[strip] = new int[256];
+            else if (counts[strip] == slots.length)
+                slots = strips[strip] = Arrays.copyOf(slots, slots.length * 2);
+            slots[counts[strip]++] = copy;
+        }
+    }
+
+    /** Draws a strip, one row taller at the top so the first row can be filtered against the row above, and compresses it */
+    private Strip drawStrip(List<Design> designs, int[][][] sorted, int[][] counts, int strip, int strips,
+                            int stripHeight, int size, double scale){
+        int top = strip * stripHeight, rows = Math.min(stripHeight, size - top);
+        int above = top > 0 ? 1 : 0;
+        BufferedImage image = new BufferedImage(size, rows + above, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, size, rows + above);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        AffineTransform base = AffineTransform.getTranslateInstance(0, above - top);
+        base.scale(scale, scale);
+        AffineTransform transform = new AffineTransform();
+        DabShape shape = new DabShape();
+        double center = Design.SIZE / 2;
+        for (int d = 0; d < designs.size(); d++) {
+            StrokeStore strokes = designs.get(d).getStrokes();
+            int lineCount = designs.get(d).getLineCount();
+            int copies = lineCount * 2, colorIndex = -1;
+            double incrAngle = lineCount == 0 ? 0 : Math.PI * 2 / lineCount;
+            int[] slots = sorted[d][strip];
+            for (int s = 0, count = counts[d][strip]; s < count; s++) {
+                int dab = slots[s] / copies, copy = slots[s] % copies;
+                if (strokes.colorIndex(dab) != colorIndex) {
+                    colorIndex = strokes.colorIndex(dab);
+                    g.setColor(strokes.paletteColor(colorIndex));
+                }
+                //same transform as SectorRenderer.drawSectors, scaled up
+                shape.set(strokes, dab);
+                transform.setTransform(base);
+                transform.rotate((copy / 2 + 1) * incrAngle, center, center);
+                if (copy % 2 == 1) {
+                    transform.translate(center, 0);
+                    transform.scale(-1, 1);
+                    transform.translate(-center, 0);
+                }
+                g.setTransform(transform);
+                shape.paint(g);
+            }
+        }
+        g.dispose();
+
+        byte[] filtered = filter(StampRasterizer.pixels(image), size, rows, above);
+        Strip done = new Strip();
+        done.rawLength = filtered.length;
+        done.adler = adler(filtered);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(filtered);
+            //the last strip ends the stream, the others end on a byte boundary so the next strip can follow on
+            boolean last = strip == strips - 1;
+            if (last)
+                deflater.finish();
+            done.compressed = new byte[filtered.length / 4 + 64];
+            while (true) {
+                if (done.length == done.compressed.length)
+                    done.compressed = Arrays.copyOf(done.compressed, done.compressed.length * 2);
+                int space = done.compressed.length - done.length;
+                int n = deflater.deflate(done.compressed, done.length, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                done.length += n;
+                //a flush that fills the space given may have more to write
+                if (last ? deflater.finished() : n < space)
+                    break;
+            }
+        } finally {
+            deflater.end();
+        }
+        return done;
+    }
+
+    /**
+     * Turns rows of pixels into PNG scanlines, each a filter type byte and the RGB bytes filtered by it.
+     * Each row uses the filter giving the smallest sum of bytes taken as signed, the usual choice of PNG encoders
+     * @param pixels pixels of the strip
+     * @param width width of the strip
+     * @param rows number of rows to filter
+     * @param above 1 if the pixels start with the row above the strip, 0 if the strip is the top of the image
+     * @return the scanlines
+     */
+    private static byte[] filter(int[] pixels, int width, int rows, int above){
+        int stride = width * 3;
+        byte[] out = new byte[rows * (stride + 1)];
+        byte[] previous = new byte[stride], current = new byte[stride], trial = new byte[stride], best = new byte[stride];
+        if (above == 1)
+            toBytes(pixels, 0, width, previous);
+        for (int row = 0; row < rows; row++) {
+            toBytes(pixels, (row + above) * width, width, current);
+            int bestType = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int type = 0; type <= 4; type++) {
+                long sum = 0;
+                for (int i = 0; i < stride; i++) {
+                    int a = i >= 3 ? current[i - 3] & 0xFF : 0, b = previous[i] & 0xFF, c = i >= 3 ? previous[i - 3] & 0xFF : 0;
+                    int predicted;
+                    switch (type) {
+                        case 1: predicted = a; break;
+                        case 2: predicted = b; break;
+                        case 3: predicted = (a + b) >> 1; break;
+                        case 4: predicted = paeth(a, b, c); break;
+                        default: predicted = 0;
+                    }
+                    trial[i] = (byte) (current[i] - predicted);
+                    sum += Math.abs(trial[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    bestType = type;
+                    byte[] swap = best;
+                    best = trial;
+                    trial = swap;
+                }
+            }
+            int at = row * (stride + 1);
+            out[at] = (byte) bestType;
+            System.arraycopy(best, 0, out, at + 1, stride);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return out;
+    }
+
+    private static void toBytes(int[] pixels, int from, int width, byte[] rgb){
+        for (int x = 0, i = 0; x < width; x++) {
+            int pixel = pixels[from + x];
+            rgb[i++] = (byte) (pixel >> 16);
+            rgb[i++] = (byte) (pixel >> 8);
+            rgb[i++] = (byte) pixel;
+        }
+    }
+
+    /** @return whichever of the left, above and above left bytes is nearest to left + above - above left */
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static int adler(byte[] bytes){
+        Adler32 adler = new Adler32();
+        adler.update(bytes);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * Works out the adler32 of two runs of bytes joined from the adler32 of each, as zlib's adler32_combine does
+     * @param first adler32 of the first run
+     * @param second adler32 of the second run
+     * @param secondLength length of the second run
+     * @return adler32 of both runs
+     */
+    static int combineAdler(int first, int second, long secondLength){
+        long remainder = secondLength % ADLER_BASE;
+        long sum1 = first & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (second & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += (first >>> 16) + (second >>> 16) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (long) ADLER_BASE << 1) sum2 -= (long) ADLER_BASE << 1;
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return (int) (sum1 | sum2 << 16);
+    }
+
+    /** Writes a PNG chunk: its length, type, data and the CRC32 of the type and data */
+    private static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+        for (int i = 0; i < 4; i++)
+            head[4 + i] = (byte) type.charAt(i);
+        CRC32 crc = new CRC32();
+        crc.update(head, 4, 4);
+        crc.update(data, offset, length);
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        out.write(head);
+        out.write(data, offset, length);
+        out.write(tail);
+    }
+
+    private static void putInt(byte[] bytes, int at, int value){
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,95 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Keeps the pixels under the stroke being drawn, so once it is stored they can be put back and the stored stroke drawn
+ * over them, rather than going back to a checkpoint and drawing every stroke since. The image is split into tiles and
+ * each tile is copied the first time the stroke is about to draw on it.
+ */
+public class StrokeBackup {
+    private static final int TILE = 32;                             //width and height of a tile in pixels
+
+    private BufferedImage backup;                                   //copies of the tiles saved, the size of the image
+    private BufferedImage image;                                    //image the stroke is drawn on, null if not started
+    private int version;                                            //renderer's image version when started
+    private int columns, rows;
+    private boolean[] saved;                                        //flags the tiles copied since starting
+    private int[] savedTiles = new int[64];                         //indexes of the tiles copied, to put back
+    private int savedCount;
+    private int[] tilePixels = new int[TILE * TILE];
+
+    /**
+     * Starts keeping the pixels of an image under a new stroke
+     * @param image image the stroke is drawn on
+     * @param version the renderer's image version, see SectorRenderer.imageVersion()
+     */
+    public void start(BufferedImage image, int version){
+        if (backup == null || backup.getWidth() != image.getWidth() || backup.getHeight() != image.getHeight()
+                || backup.getType() != image.getType()) {
+            backup = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+            columns = (image.getWidth() + TILE - 1) / TILE;
+            rows = (image.getHeight() + TILE - 1) / TILE;
+            saved = new boolean[columns * rows];
+        } else {
+            for (int i = 0; i < savedCount; i++)
+                saved[savedTiles[i]] = false;
+        }
+        savedCount = 0;
+        this.image = image;
+        this.version = version;
+    }
+
+    /** Stops keeping pixels until the next start */
+    public void stop(){
+        image = null;
+    }
+
+    /**
+     * Copies the tiles under a square of the image that are not copied yet. Called before the stroke draws there
+     * @param left left edge in image pixels
+     * @param top top edge in image pixels
+     * @param right right edge in image pixels, inclusive
+     * @param bottom bottom edge in image pixels, inclusive
+     */
+    public void save(int left, int top, int right, int bottom){
+        if (image == null)
+            return;
+        int firstColumn = Math.max(0, left / TILE), lastColumn = Math.min(columns - 1, right / TILE);
+        int firstRow = Math.max(0, top / TILE), lastRow = Math.min(rows - 1, bottom / TILE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int tile = row * columns + column;
+                if (saved[tile])
+                    continue;
+                saved[tile] = true;
+                if (savedCount == savedTiles.length)
+                    savedTiles = Arrays.copyOf(savedTiles, savedCount * 2);
+                savedTiles[savedCount++] = tile;
+                copyTile(image, backup, tile);
+            }
+        }
+    }
+
+    /**
+     * Puts back the pixels under the stroke and stops keeping them
+     * @param image image the stroke was drawn on
+     * @param version the renderer's image version now
+     * @return false if nothing was put back, as the image was drawn on other than by the stroke or changed since starting
+     */
+    public boolean restore(BufferedImage image, int version){
+        boolean same = image == this.image && version == this.version;
+        this.image = null;
+        if (!same)
+            return false;
+        for (int i = 0; i < savedCount; i++)
+            copyTile(backup, image, savedTiles[i]);
+        return true;
+    }
+
+    private void copyTile(BufferedImage from, BufferedImage to, int tile){
+        int x = tile % columns * TILE, y = tile / columns * TILE;
+        int width = Math.min(TILE, from.getWidth() - x), height = Math.min(TILE, from.getHeight() - y);
+        from.getRaster().getDataElements(x, y, width, height, tilePixels);
+        to.getRaster().setDataElements(x, y, width, height, tilePixels);
+    }
+}
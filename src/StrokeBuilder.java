@@ -0,0 +1,235 @@
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Turns the mouse positions of a stroke into evenly spaced Circles.
+ * While drawing, Circles are placed along the path at a spacing based on the brush radius so fast drags have no gaps
+ * and slow drags do not pile up Circles. When the stroke is finished the path is simplified with a
+ * Ramer-Douglas-Peucker pass, using a tolerance based on the brush radius, and spaced out again before it is stored,
+ * so a stroke's size follows its length rather than how many mouse events it had.
+ * A stroke can instead be committed as a polyline, keeping only the points left by the simplification.
+ */
+public class StrokeBuilder {
+    private static final double SPACING = 0.5;                      //gap between Circles as a fraction of the radius
+    private static final double TOLERANCE = 0.1;                    //how far the simplified path may stray, as a fraction of the radius
+    private static final double SEGMENT = 8;                        //longest polyline segment as a multiple of the radius, so erasing stays fine grained
+    private static final double MIN_SEGMENT = 32;                   //longest polyline segment allowed however small the radius
+
+    private float[] pathX = new float[256], pathY = new float[256]; //mouse positions of the stroke
+    private int pathCount;
+    private double radius, spacing;
+    private double along;                                           //distance along the last segment to the next Circle
+    private double placedX, placedY;                                //centre of the last Circle placed while drawing
+    private float[] dabX = new float[64], dabY = new float[64];     //Circles placed by the last call
+    private int dabCount;
+    private boolean[] keep = new boolean[256];                      //points kept by the simplification
+    private int[] ranges = new int[64];                             //stack of ranges still to simplify
+    private int kept;                                               //points kept by the last simplification
+
+    /**
+     * Starts a stroke and places its first Circle
+     * @param x centre x cord of the brush
+     * @param y centre y cord of the brush
+     * @param radius radius of the brush
+     * @return number of Circles placed, read back with dabX(i) and dabY(i)
+     */
+    public int begin(double x, double y, double radius){
+        this.radius = radius;
+        spacing = Math.max(1, radius * SPACING);
+        pathCount = 0;
+        addPoint(x, y);
+        along = spacing;
+        dabCount = 0;
+        addDab(pathX[0], pathY[0]);
+        placedX = pathX[0];
+        placedY = pathY[0];
+        return dabCount;
+    }
+
+    /**
+     * Extends the stroke to a new brush position, placing Circles every spacing along the way
+     * @param x centre x cord of the brush
+     * @param y centre y cord of the brush
+     * @return number of Circles placed, read back with dabX(i) and dabY(i)
+     */
+    public int moveTo(double x, double y){
+        dabCount = 0;
+        double fromX = pathX[pathCount - 1], fromY = pathY[pathCount - 1];
+        double toX = (float) x, toY = (float) y;
+        double length = Math.hypot(toX - fromX, toY - fromY);
+        if (length == 0)
+            return 0;
+        addPoint(toX, toY);
+        //walks along the new segment placing a Circle each time another spacing has been covered
+        while (along <= length) {
+            placedX = fromX + (toX - fromX) * along / length;
+            placedY = fromY + (toY - fromY) * along / length;
+            addDab(placedX, placedY);
+            along += spacing;
+        }
+        along -= length;
+        return dabCount;
+    }
+
+    /**
+     * Places a last Circle at the end of the stroke unless one is already close to it
+     * @return number of Circles placed, read back with dabX(i) and dabY(i)
+     */
+    public int finish(){
+        dabCount = 0;
+        double endX = pathX[pathCount - 1], endY = pathY[pathCount - 1];
+        if (pathCount > 1 && Math.hypot(endX - placedX, endY - placedY) > spacing / 4)
+            addDab(endX, endY);
+        return dabCount;
+    }
+
+    /**
+     * Simplifies the finished stroke, spaces it out and adds its Circles to the open stroke of the design.
+     * If nothing was simplified away the Circles are the same ones placed while drawing
+     * @param design store to add the Circles to
+     * @param color color of the stroke
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void commit(StrokeStore design, Color color, boolean reflected){
+        kept = simplify();
+        double fromX = pathX[0], fromY = pathY[0];
+        design.addDab(fromX, fromY, radius, color, reflected);
+        double along = spacing;
+        double placedX = fromX, placedY = fromY;
+        for (int i = 1; i < pathCount; i++) {
+            if (!keep[i])
+                continue;
+            double toX = pathX[i], toY = pathY[i];
+            double length = Math.hypot(toX - fromX, toY - fromY);
+            while (along <= length) {
+                placedX = fromX + (toX - fromX) * along / length;
+                placedY = fromY + (toY - fromY) * along / length;
+                design.addDab(placedX, placedY, radius, color, reflected);
+                along += spacing;
+            }
+            along -= length;
+            fromX = toX;
+            fromY = toY;
+        }
+        //finishes at the end of the path unless a Circle is already close to it
+        if (kept > 1 && Math.hypot(fromX - placedX, fromY - placedY) > spacing / 4)
+            design.addDab(fromX, fromY, radius, color, reflected);
+    }
+
+    /**
+     * Simplifies the finished stroke and adds the points left to the open stroke of the design as a polyline.
+     * Long segments are split into equal pieces so the eraser can take out part of a long straight line
+     * @param design store to add the points to
+     * @param color color of the stroke
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void commitPolyline(StrokeStore design, Color color, boolean reflected){
+        kept = simplify();
+        int flags = StrokeStore.POLYLINE | (reflected ? StrokeStore.REFLECTED : 0);
+        double longest = Math.max(MIN_SEGMENT, radius * SEGMENT);
+        double fromX = pathX[0], fromY = pathY[0];
+        for (int i = 1; i < pathCount; i++) {
+            if (!keep[i])
+                continue;
+            double toX = pathX[i], toY = pathY[i];
+            int pieces = (int) Math.ceil(Math.hypot(toX - fromX, toY - fromY) / longest);
+            for (int piece = 0; piece < pieces; piece++)
+                design.addDab(fromX + (toX - fromX) * piece / pieces, fromY + (toY - fromY) * piece / pieces, radius, color, flags);
+            fromX = toX;
+            fromY = toY;
+        }
+        //the last point joins to nothing, which also makes a stroke of one point a dot
+        design.addDab(fromX, fromY, radius, color, flags | StrokeStore.BROKEN);
+    }
+
+    /** @return true if the last commit dropped points, so its Circles differ slightly from the ones drawn */
+    public boolean isSimplified(){
+        return kept < pathCount;
+    }
+
+    /** @return number of mouse positions in the stroke */
+    public int pathCount(){
+        return pathCount;
+    }
+
+    //Circles placed by the last call to begin or moveTo
+    public float dabX(int i){
+        return dabX[i];
+    }
+    public float dabY(int i){
+        return dabY[i];
+    }
+
+    /**
+     * Marks the points of the path kept by a Ramer-Douglas-Peucker simplification
+     * @return number of points kept
+     */
+    private int simplify(){
+        if (keep.length < pathCount)
+            keep = new boolean[pathCount];
+        Arrays.fill(keep, 0, pathCount, false);
+        keep[0] = true;
+        keep[pathCount - 1] = true;
+        double tolerance = Math.max(0.25, radius * TOLERANCE);
+        int kept = pathCount > 1 ? 2 : 1;
+        int stack = 0;
+        ranges = push(ranges, stack, 0, pathCount - 1);
+        stack += 2;
+        while (stack > 0) {
+            int last = ranges[--stack], first = ranges[--stack];
+            //finds the point furthest from the line between the ends of the range
+            double furthest = tolerance;
+            int split = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = distanceToSegment(pathX[i], pathY[i], pathX[first], pathY[first], pathX[last], pathY[last]);
+                if (distance > furthest) {
+                    furthest = distance;
+                    split = i;
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                kept++;
+                ranges = push(ranges, stack, first, split);
+                stack += 2;
+                ranges = push(ranges, stack, split, last);
+                stack += 2;
+            }
+        }
+        return kept;
+    }
+
+    private static int[] push(int[] stack, int size, int first, int last){
+        if (size + 2 > stack.length)
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[size] = first;
+        stack[size + 1] = last;
+        return stack;
+    }
+
+    /** @return distance from a point to the segment between two others */
+    public static double distanceToSegment(double x, double y, double x1, double y1, double x2, double y2){
+        double dx = x2 - x1, dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        return Math.hypot(x - (x1 + t * dx), y - (y1 + t * dy));
+    }
+
+    private void addPoint(double x, double y){
+        if (pathCount == pathX.length) {
+            pathX = Arrays.copyOf(pathX, pathCount * 2);
+            pathY = Arrays.copyOf(pathY, pathCount * 2);
+        }
+        pathX[pathCount] = (float) x;
+        pathY[pathCount++] = (float) y;
+    }
+
+    private void addDab(double x, double y){
+        if (dabCount == dabX.length) {
+            dabX = Arrays.copyOf(dabX, dabCount * 2);
+            dabY = Arrays.copyOf(dabY, dabCount * 2);
+        }
+        dabX[dabCount] = (float) x;
+        dabY[dabCount++] = (float) y;
+    }
+}
@@ -0,0 +1,550 @@
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Stores every Circle (dab) of a design in primitive arrays instead of as objects.
+ * Dabs are kept in the order they were drawn and strokes are marked by offsets into the arrays.
+ * Strokes past the stroke count are undone strokes that are kept for redo.
+ *
+ * A stroke can also be a polyline, whose dabs are flagged POLYLINE and are the points of a line drawn with
+ * round caps and joins, as wide as the dabs. Each point joins to the next one unless it is flagged BROKEN,
+ * which the last point of every polyline is. The eraser breaks segments rather than erasing points,
+ * and a point left joined to nothing is erased. A polyline point with no segments that was never erased,
+ * like a stroke of a single click, is drawn as a Circle.
+ *
+ * A snapshot shares the arrays with the store it was taken from, copy on write: whichever side first changes a dab
+ * or stroke the other can see copies the arrays, while the store it was taken from can keep adding strokes to the
+ * end of them without copying.
+ *
+ * Once a design holds more Circles than its share of the history budget, its oldest strokes are paged out: packed into
+ * bytes a page at a time and handed to a HistoryManager, which compresses them and writes them to disk past its budget.
+ * Reading a paged out dab reads its page back into a small window, so a full render streams the old strokes back in
+ * page by page. Changing one, or undoing back into them, pages the strokes back into the arrays for good.
+ */
+public class StrokeStore {
+    public static final byte REFLECTED = 1;                        //dab is repeated reflected in each sector
+    public static final byte ERASED = 2;                           //dab has been removed by the eraser
+    public static final byte POLYLINE = 4;                         //dab is a point of a polyline stroke
+    public static final byte BROKEN = 8;                           //polyline point does not join to the next point
+    public static final int DAB_BYTES = 17;                         //memory each dab held in the arrays uses
+    private static final int PAGE_DABS = 1 << 14;                  //fewest dabs paged out together
+    private static final Cleaner CLEANER = Cleaner.create();       //removes pages from their manager once no store can read them
+
+    private float[] xs, ys, radii;                                  //centre and radius of each dab held, from base on
+    private int[] colors;                                           //palette index of each dab
+    private byte[] flags;                                           //REFLECTED, ERASED, POLYLINE and BROKEN bits of each dab
+    private int dabCount;                                           //dabs stored, including undone strokes and the open stroke
+
+    private int[] strokeEnds;                                       //offset one past the last dab of each stroke
+    private int strokeCount;                                        //strokes currently in the design
+    private int storedStrokes;                                      //strokes stored, including ones that can be redone
+    private int openStart = -1;                                     //first dab of the stroke being drawn, -1 if none
+    private int editCount;                                          //counts changes other than adding strokes to the end
+    private int sharedDabs, sharedStrokes;                          //dabs and stroke ends below these are seen by snapshots, so are copied before being changed
+    private int base;                                               //first dab held in the arrays, the ones before it are paged out
+    private int pagedStrokes;                                       //strokes paged out, which end at base
+    private ArrayList<Page> pages = new ArrayList<>();              //paged out strokes, oldest first
+    private Dabs window;                                            //page last read back, null if none
+    private Dabs[] windows = new Dabs[4];                           //pages read back lately, so reads jumping between a few pages do not read them again
+    private int nextWindow;                                         //place in windows the next page read back goes
+
+    private ArrayList<Color> palette = new ArrayList<>();           //every color used in the design
+    private HashMap<Integer, Integer> paletteIndex = new HashMap<>();//maps an rgb value to its place in the palette
+    private int lastRgb, lastPaletteIndex = -1;                     //color last looked up and its place, -1 if none
+
+    /** A run of old strokes paged out to a HistoryManager */
+    private static class Page {
+        private final int firstStroke;                              //first stroke in the page
+        private final int first, end;                               //first dab in the page and one past the last
+        private final HistoryManager manager;
+        private final HistoryManager.Checkpoint bytes;              //the dabs packed column by column
+
+        private Page(int firstStroke, int first, int end, HistoryManager manager, HistoryManager.Checkpoint bytes){
+            this.firstStroke = firstStroke;
+            this.first = first;
+            this.end = end;
+            this.manager = manager;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The dabs of a page read back */
+    private static class Dabs {
+        private final Page page;
+        private final int first;
+        private final float[] xs, ys, radii;
+        private final int[] colors;
+        private final byte[] flags;
+
+        private Dabs(Page page, ByteBuffer buffer){
+            this.page = page;
+            first = page.first;
+            int count = page.end - page.first;
+            xs = new float[count];
+            ys = new float[count];
+            radii = new float[count];
+            colors = new int[count];
+            flags = new byte[count];
+            buffer.asFloatBuffer().get(xs);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asFloatBuffer().get(ys);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asFloatBuffer().get(radii);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().get(colors);
+            buffer.position(buffer.position() + count * 4);
+            buffer.get(flags);
+        }
+    }
+
+    /** Creates an empty store */
+    public StrokeStore(){
+        this(1024);
+    }
+
+    /**
+     * Creates an empty store
+     * @param capacity number of dabs to make room for
+     */
+    public StrokeStore(int capacity){
+        capacity = Math.max(capacity, 16);
+        xs = new float[capacity];
+        ys = new float[capacity];
+        radii = new float[capacity];
+        colors = new int[capacity];
+        flags = new byte[capacity];
+        strokeEnds = new int[64];
+    }
+
+    /**
+     * Creates a read only view of the strokes in another store's design, sharing its arrays.
+     * The view stays valid until the store is edited other than by adding strokes, which editCount() shows
+     * @param source store to view
+     */
+    private StrokeStore(StrokeStore source){
+        xs = source.xs;
+        ys = source.ys;
+        radii = source.radii;
+        colors = source.colors;
+        flags = source.flags;
+        strokeEnds = source.strokeEnds;
+        strokeCount = storedStrokes = source.strokeCount;
+        dabCount = source.designEnd();
+        editCount = source.editCount;
+        palette = new ArrayList<>(source.palette);
+        base = source.base;
+        pagedStrokes = source.pagedStrokes;
+        pages = new ArrayList<>(source.pages);
+    }
+
+    /** @return a read only view of the design as it is now, that does not copy any dabs */
+    public StrokeStore view(){
+        return new StrokeStore(this);
+    }
+
+    /**
+     * Takes a copy on write snapshot of the design as it is now, without copying any dabs.
+     * The snapshot can be changed like any store, and neither side sees the other's changes; the arrays are only
+     * copied once either side changes a dab or stroke the other can see
+     * @return the snapshot
+     */
+    public StrokeStore snapshot(){
+        StrokeStore snapshot = new StrokeStore(this);
+        snapshot.paletteIndex = new HashMap<>(paletteIndex);
+        //the arrays are not the snapshot's to add to, as this store adds to them
+        snapshot.sharedDabs = snapshot.sharedStrokes = Integer.MAX_VALUE;
+        sharedDabs = Math.max(sharedDabs, snapshot.dabCount);
+        sharedStrokes = Math.max(sharedStrokes, snapshot.strokeCount);
+        return snapshot;
+    }
+
+    /** Starts a new stroke, dropping any strokes that could have been redone */
+    public void beginStroke(){
+        clearRedo();
+        if (openStart >= 0)
+            dabCount = openStart;
+        openStart = dabCount;
+    }
+
+    /**
+     * Adds a dab to the open stroke
+     * @param x centre x cord
+     * @param y centre y cord
+     * @param radius radius of the dab
+     * @param color color of the dab
+     * @param reflected reflected flag for reflecting in a sector
+     * @return index of the new dab
+     */
+    public int addDab(double x, double y, double radius, Color color, boolean reflected){
+        return addDab(x, y, radius, color, reflected ? REFLECTED : 0);
+    }
+
+    /**
+     * Adds a dab to the open stroke
+     * @param x centre x cord
+     * @param y centre y cord
+     * @param radius radius of the dab
+     * @param color color of the dab
+     * @param flags REFLECTED, POLYLINE and BROKEN bits of the dab
+     * @return index of the new dab
+     */
+    public int addDab(double x, double y, double radius, Color color, int flags){
+        if (openStart < 0)
+            beginStroke();
+        int held = dabCount - base;
+        if (held == xs.length)
+            grow(held * 2);
+        else if (dabCount < sharedDabs)
+            grow(xs.length);
+        xs[held] = (float) x;
+        ys[held] = (float) y;
+        radii[held] = (float) radius;
+        colors[held] = paletteIndexOf(color);
+        this.flags[held] = (byte) (flags & ~ERASED);
+        return dabCount++;
+    }
+
+    /** Marks the end of the open stroke and adds it to the design */
+    public void endStroke(){
+        if (openStart < 0)
+            return;
+        if (strokeCount == strokeEnds.length || strokeCount < sharedStrokes) {
+            strokeEnds = Arrays.copyOf(strokeEnds, Math.max(strokeEnds.length, strokeCount * 2));
+            sharedStrokes = 0;
+        }
+        strokeEnds[strokeCount++] = dabCount;
+        storedStrokes = strokeCount;
+        openStart = -1;
+    }
+
+    /** Throws away the open stroke without adding it to the design, eg once the eraser is done with it */
+    public void discardStroke(){
+        if (openStart < 0)
+            return;
+        dabCount = openStart;
+        openStart = -1;
+    }
+
+    /** @return true if the last stroke was moved to the redo side, paging it back in if it was paged out */
+    public boolean undo(){
+        if (strokeCount == 0)
+            return false;
+        strokeCount--;
+        editCount++;
+        while (strokeCount < pagedStrokes)
+            pageIn();
+        return true;
+    }
+
+    /** @return true if an undone stroke was moved back into the design */
+    public boolean redo(){
+        if (strokeCount == storedStrokes)
+            return false;
+        strokeCount++;
+        return true;
+    }
+
+    /** Drops every stroke that could be redone */
+    public void clearRedo(){
+        if (storedStrokes == strokeCount)
+            return;
+        storedStrokes = strokeCount;
+        if (openStart < 0)
+            dabCount = designEnd();
+    }
+
+    /** Removes every stroke and dab */
+    public void clear(){
+        editCount++;
+        base = pagedStrokes = 0;
+        pages.clear();
+        window = null;
+        Arrays.fill(windows, null);
+        dabCount = 0;
+        strokeCount = 0;
+        storedStrokes = 0;
+        openStart = -1;
+    }
+
+    /** @return number of strokes in the design */
+    public int strokeCount(){
+        return strokeCount;
+    }
+
+    /** @return number of strokes that can be redone */
+    public int redoCount(){
+        return storedStrokes - strokeCount;
+    }
+
+    /** @return index of the first dab of a stroke */
+    public int strokeStart(int stroke){
+        return stroke == 0 ? 0 : strokeEnds[stroke - 1];
+    }
+
+    /** @return index one past the last dab of a stroke */
+    public int strokeEnd(int stroke){
+        return strokeEnds[stroke];
+    }
+
+    /** @return index one past the last dab in the design. Undone strokes and the open stroke lie after this */
+    public int designEnd(){
+        return strokeCount == 0 ? 0 : strokeEnds[strokeCount - 1];
+    }
+
+    /** @return index of the first dab of the open stroke */
+    public int openStart(){
+        return openStart < 0 ? dabCount : openStart;
+    }
+
+    /** @return index one past the last dab stored */
+    public int dabCount(){
+        return dabCount;
+    }
+
+    //dab accessors, which read paged out dabs back through the window
+    public float x(int dab){
+        if (dab < base)
+            return window(dab).xs[dab - window.first];
+        return xs[dab - base];
+    }
+    public float y(int dab){
+        if (dab < base)
+            return window(dab).ys[dab - window.first];
+        return ys[dab - base];
+    }
+    public float radius(int dab){
+        if (dab < base)
+            return window(dab).radii[dab - window.first];
+        return radii[dab - base];
+    }
+    public int colorIndex(int dab){
+        if (dab < base)
+            return window(dab).colors[dab - window.first];
+        return colors[dab - base];
+    }
+    public Color color(int dab){
+        return palette.get(colorIndex(dab));
+    }
+    public boolean isReflected(int dab){
+        return (flags(dab) & REFLECTED) != 0;
+    }
+    public boolean isErased(int dab){
+        return (flags(dab) & ERASED) != 0;
+    }
+    public boolean isPolyline(int dab){
+        return (flags(dab) & POLYLINE) != 0;
+    }
+    public int flags(int dab){
+        if (dab < base)
+            return window(dab).flags[dab - window.first];
+        return flags[dab - base];
+    }
+
+    /** @return true if a dab is a polyline point joined to the next point */
+    public boolean hasSegment(int dab){
+        return (flags(dab) & (POLYLINE | BROKEN)) == POLYLINE;
+    }
+
+    /** @return true if a dab is a polyline point that the point before it joins to */
+    public boolean hasSegmentBefore(int dab){
+        return dab > 0 && hasSegment(dab - 1) && isPolyline(dab);
+    }
+
+    /**
+     * Removes the segment from a polyline point to the next, erasing either point if it is left joined to nothing
+     * @param dab point the segment starts at
+     */
+    public void breakSegment(int dab){
+        while (dab < base)
+            pageIn();
+        if (dab < sharedDabs)
+            grow(xs.length);
+        flags[dab - base] |= BROKEN;
+        editCount++;
+        if (!hasSegmentBefore(dab))
+            flags[dab - base] |= ERASED;
+        if (!hasSegment(dab + 1))
+            flags[dab + 1 - base] |= ERASED;
+    }
+
+    /** Marks a dab as removed by the eraser */
+    public void erase(int dab){
+        while (dab < base)
+            pageIn();
+        if (dab < sharedDabs)
+            grow(xs.length);
+        flags[dab - base] |= ERASED;
+        editCount++;
+    }
+
+    /** @return number of changes made other than adding strokes, so views taken before a change can be told apart */
+    public int editCount(){
+        return editCount;
+    }
+
+    /** @return color stored at a place in the palette */
+    public Color paletteColor(int index){
+        return palette.get(index);
+    }
+
+    /** @return number of colors in the palette */
+    public int paletteSize(){
+        return palette.size();
+    }
+
+    /**
+     * Returns a Circle holding a copy of a dab, for code that still works on Circle objects
+     * @param dab index of the dab
+     * @return new circle object
+     */
+    public Circle getCircle(int dab){
+        float r = radius(dab);
+        return new Circle(new Ellipse2D.Double(x(dab) - r, y(dab) - r, r * 2, r * 2), color(dab), isReflected(dab));
+    }
+
+    /** @return memory used by the dabs held in the arrays, which does not count those paged out */
+    public long heldBytes(){
+        return (long) (dabCount - base) * DAB_BYTES;
+    }
+
+    /**
+     * Pages out the oldest strokes of the design a page at a time, until the dabs held after them fit in a number of bytes.
+     * Strokes that would not fill a page, and those that can be redone, are kept
+     * @param manager holds the pages, compressing them and writing them to disk past its budget
+     * @param keepBytes most memory the dabs left held should use
+     */
+    public void pageOut(HistoryManager manager, long keepBytes){
+        int paged = pagedStrokes, first = base;
+        for (int stroke = pagedStrokes; stroke < strokeCount && (long) (dabCount - strokeEnd(stroke)) * DAB_BYTES > keepBytes; stroke++) {
+            if (strokeEnd(stroke) - strokeStart(paged) < PAGE_DABS)
+                continue;
+            pages.add(newPage(paged, strokeStart(paged), strokeEnd(stroke), manager));
+            paged = stroke + 1;
+        }
+        if (paged == pagedStrokes)
+            return;
+        int newBase = strokeStart(paged), held = dabCount - newBase;
+        //the held dabs are moved to the start of new arrays, leaving any snapshot the old ones
+        float[] oldXs = xs, oldYs = ys, oldRadii = radii;
+        int[] oldColors = colors;
+        byte[] oldFlags = flags;
+        int capacity = Math.max(16, held + held / 2);
+        xs = Arrays.copyOfRange(oldXs, newBase - first, newBase - first + capacity);
+        ys = Arrays.copyOfRange(oldYs, newBase - first, newBase - first + capacity);
+        radii = Arrays.copyOfRange(oldRadii, newBase - first, newBase - first + capacity);
+        colors = Arrays.copyOfRange(oldColors, newBase - first, newBase - first + capacity);
+        flags = Arrays.copyOfRange(oldFlags, newBase - first, newBase - first + capacity);
+        sharedDabs = 0;
+        base = newBase;
+        pagedStrokes = paged;
+    }
+
+    /** @return a page of the dabs of some strokes held in the arrays */
+    private Page newPage(int firstStroke, int first, int end, HistoryManager manager){
+        int count = end - first, from = first - base;
+        ByteBuffer buffer = ByteBuffer.allocate(count * DAB_BYTES);
+        //each column is packed on its own, so the runs of equal radii, colors and flags compress well
+        buffer.asFloatBuffer().put(xs, from, count);
+        buffer.position(buffer.position() + count * 4);
+        buffer.asFloatBuffer().put(ys, from, count);
+        buffer.position(buffer.position() + count * 4);
+        buffer.asFloatBuffer().put(radii, from, count);
+        buffer.position(buffer.position() + count * 4);
+        buffer.asIntBuffer().put(colors, from, count);
+        buffer.position(buffer.position() + count * 4);
+        buffer.put(flags, from, count);
+        HistoryManager.Checkpoint bytes = manager.addPage(buffer.array());
+        Page page = new Page(firstStroke, first, end, manager, bytes);
+        //a page can be shared by snapshots and views, so it stays with the manager until none of them can read it
+        CLEANER.register(page, () -> manager.remove(bytes));
+        return page;
+    }
+
+    /** @return the dabs of the page holding a paged out dab, reading it back if it is not one read lately */
+    private Dabs window(int dab){
+        if (window != null && dab >= window.first && dab < window.page.end)
+            return window;
+        for (Dabs each : windows) {
+            if (each != null && dab >= each.first && dab < each.page.end)
+                return window = each;
+        }
+        int low = 0, high = pages.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (pages.get(middle).first <= dab)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        Page page = pages.get(low);
+        try {
+            window = windows[nextWindow] = new Dabs(page, ByteBuffer.wrap(page.manager.readPage(page.bytes)));
+            nextWindow = (nextWindow + 1) % windows.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read back old strokes", e);
+        }
+        return window;
+    }
+
+    /** Moves the newest page back into the arrays, for good */
+    private void pageIn(){
+        Page page = pages.get(pages.size() - 1);
+        Dabs dabs = window(page.first);
+        pages.remove(pages.size() - 1);
+        window = null;
+        Arrays.fill(windows, null);
+        int count = page.end - page.first, held = dabCount - base;
+        float[] oldXs = xs, oldYs = ys, oldRadii = radii;
+        int[] oldColors = colors;
+        byte[] oldFlags = flags;
+        int capacity = Math.max(oldXs.length, held) + count;
+        xs = Arrays.copyOf(dabs.xs, capacity);
+        ys = Arrays.copyOf(dabs.ys, capacity);
+        radii = Arrays.copyOf(dabs.radii, capacity);
+        colors = Arrays.copyOf(dabs.colors, capacity);
+        flags = Arrays.copyOf(dabs.flags, capacity);
+        System.arraycopy(oldXs, 0, xs, count, held);
+        System.arraycopy(oldYs, 0, ys, count, held);
+        System.arraycopy(oldRadii, 0, radii, count, held);
+        System.arraycopy(oldColors, 0, colors, count, held);
+        System.arraycopy(oldFlags, 0, flags, count, held);
+        sharedDabs = 0;
+        base = page.first;
+        pagedStrokes = page.firstStroke;
+    }
+
+    /** @return place of a color in the palette, adding it if it is new */
+    private int paletteIndexOf(Color color){
+        int rgb = color.getRGB();
+        //a stroke is all one color, so most dabs find it here without boxing the rgb for the map
+        if (lastPaletteIndex >= 0 && rgb == lastRgb)
+            return lastPaletteIndex;
+        Integer index = paletteIndex.get(rgb);
+        if (index == null) {
+            index = palette.size();
+            palette.add(color);
+            paletteIndex.put(rgb, index);
+        }
+        lastRgb = rgb;
+        lastPaletteIndex = index;
+        return index;
+    }
+
+    /** Makes room for more dabs, or copies the arrays at the same size so they are no longer shared with snapshots */
+    private void grow(int capacity){
+        capacity = Math.max(capacity, 16);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        radii = Arrays.copyOf(radii, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        sharedDabs = 0;
+    }
+}
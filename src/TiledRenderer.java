@@ -0,0 +1,165 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Redraws a whole design by splitting the image into tiles that are drawn in parallel on a fork join pool.
+ * Every rotated and reflected copy of a Circle or polyline is first sorted into the tiles its bounds touch,
+ * so each tile only draws the Circles that land on it. Tiles draw straight into their own area of the image
+ * with the same transforms as SectorRenderer.drawSectors, so the result matches drawing serially pixel for pixel.
+ * Cords are in design cords, scaled to fit the square image like SectorRenderer does.
+ */
+public class TiledRenderer {
+    private ForkJoinPool pool;                                      //threads the tiles are drawn on
+    private int tileSize;                                           //width and height of a tile in pixels
+    private int columns, rows;
+    private int[][] tiles;                                          //copies of Circles that touch each tile, in drawing order
+    private int[] tileCounts;                                       //how many of each tile's slots are used
+
+    /**
+     * Creates a renderer
+     * @param pool threads to draw tiles on
+     * @param tileSize width and height of a tile
+     */
+    public TiledRenderer(ForkJoinPool pool, int tileSize){
+        this.pool = pool;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Clears the image and draws every Circle in the design over the sectors
+     * @param design stored Circles to draw
+     * @param lineCount number of sectors
+     * @param centerX x cord the sectors are rotated around, in design cords
+     * @param centerY y cord the sectors are rotated around, in design cords
+     * @param image square image to draw on
+     * @return false if the design has too many copies to sort into tiles, leaving the image untouched
+     */
+    public boolean render(StrokeStore design, int lineCount, int centerX, int centerY, BufferedImage image){
+        int copies = Math.max(1, lineCount) * 2;
+        if ((long) design.designEnd() * copies > Integer.MAX_VALUE)
+            return false;
+        sortIntoTiles(design, lineCount, centerX, centerY, image.getWidth(), image.getHeight(), image.getWidth() / (double) Design.SIZE);
+        pool.invoke(new TileTask(0, columns * rows, design, lineCount, centerX, centerY, image));
+        return true;
+    }
+
+    /** Places the number of every copy of every Circle into the tiles its bounds touch */
+    private void sortIntoTiles(StrokeStore design, int lineCount, int centerX, int centerY, int width, int height, double scale){
+        columns = (width + tileSize - 1) / tileSize;
+        rows = (height + tileSize - 1) / tileSize;
+        if (tiles == null || tiles.length != columns * rows) {
+            tiles = new int[columns * rows][];
+            tileCounts = new int[columns * rows];
+        }
+        Arrays.fill(tileCounts, 0);
+        if (lineCount == 0)
+            return;
+
+        int copies = lineCount * 2;
+        SectorTransforms sectors = SectorTransforms.forLineCount(lineCount);
+        DabShape shape = new DabShape();
+        for (int dab = 0, end = design.designEnd(); dab < end; dab++) {
+            if (!shape.set(design, dab))
+                continue;
+            double x = shape.centerX() - centerX, y = shape.centerY() - centerY;
+            //leaves a pixel either side for antialiasing
+            double reach = shape.reach() * scale + 2;
+            for (int i = 1; i <= lineCount; i++) {
+                int copy = dab * copies + (i - 1) * 2;
+                addToTiles(copy, (centerX + sectors.rotateX(i, x, y)) * scale, (centerY + sectors.rotateY(i, x, y)) * scale, reach);
+                if (design.isReflected(dab))
+                    addToTiles(copy + 1, (centerX + sectors.reflectX(i, x, y)) * scale, (centerY + sectors.reflectY(i, x, y)) * scale, reach);
+            }
+        }
+    }
+
+    /** Adds a copy of a Circle to every tile its bounds touch */
+    private void addToTiles(int copy, double x, double y, double reach){
+        int firstColumn = Math.max(0, (int) Math.floor((x - reach) / tileSize));
+        int lastColumn = Math.min(columns - 1, (int) Math.floor((x + reach) / tileSize));
+        int firstRow = Math.max(0, (int) Math.floor((y - reach) / tileSize));
+        int lastRow = Math.min(rows - 1, (int) Math.floor((y + reach) / tileSize));
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int tile = row * columns + column;
+                int[] slots = tiles[tile];
+                if (slots == null)
+                    slots = tiles[tile] = new int[256];
+                else if (tileCounts[tile] == slots.length)
+                    slots = tiles[tile] = Arrays.copyOf(slots, slots.length * 2);
+                slots[tileCounts[tile]++] = copy;
+            }
+        }
+    }
+
+    /** Draws a range of tiles, splitting the range in half until each task has a single tile */
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;                //tasks are only ever run, never serialized
+        private int from, to;
+        private StrokeStore design;
+        private int lineCount, centerX, centerY;
+        private BufferedImage image;
+
+        TileTask(int from, int to, StrokeStore design, int lineCount, int centerX, int centerY, BufferedImage image){
+            this.from = from;
+            this.to = to;
+            this.design = design;
+            this.lineCount = lineCount;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.image = image;
+        }
+
+        @Override
+        protected void compute(){
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(from, middle, design, lineCount, centerX, centerY, image),
+                        new TileTask(middle, to, design, lineCount, centerX, centerY, image));
+            } else {
+                drawTile(from);
+            }
+        }
+
+        /** Clears a tile and draws the copies of Circles sorted into it */
+        private void drawTile(int tile){
+            int tileX = (tile % columns) * tileSize, tileY = (tile / columns) * tileSize;
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.clipRect(tileX, tileY, tileSize, tileSize);
+            g.setBackground(SectorRenderer.background(image));
+            g.clearRect(tileX, tileY, tileSize, tileSize);
+
+            int copies = lineCount * 2;
+            double scale = image.getWidth() / (double) Design.SIZE;
+            double incrAngle = lineCount == 0 ? 0 : (Math.PI * 2 / lineCount);
+            DabShape dabShape = new DabShape();
+            AffineTransform sectorTransform = new AffineTransform();
+            int[] slots = tiles[tile];
+            int colorIndex = -1;
+            for (int s = 0, count = tileCounts[tile]; s < count; s++) {
+                int dab = slots[s] / copies, copy = slots[s] % copies;
+                if (design.colorIndex(dab) != colorIndex) {
+                    colorIndex = design.colorIndex(dab);
+                    g.setColor(design.paletteColor(colorIndex));
+                }
+                //same transform as SectorRenderer.drawSectors so the pixels match
+                dabShape.set(design, dab);
+                sectorTransform.setToScale(scale, scale);
+                sectorTransform.rotate((copy / 2 + 1) * incrAngle, centerX, centerY);
+                if (copy % 2 == 1) {
+                    sectorTransform.translate(centerX, 0);
+                    sectorTransform.scale(-1, 1);
+                    sectorTransform.translate(-centerX, 0);
+                }
+                g.setTransform(sectorTransform);
+                dabShape.paint(g);
+            }
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,472 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Exports a timelapse of a design being built, as an animated GIF or a folder of numbered PNG frames.
+ * The strokes are walked in the order they were drawn, layer by layer from the bottom up, and each frame is drawn
+ * on top of the last one, so the whole export draws every Circle once however many frames there are.
+ *
+ * Frames are encoded on worker threads while the next ones are drawn. Only a few frames per thread are in flight at
+ * once, so memory stays the same however many frames there are, and a slow disk holds the drawing back rather than
+ * filling the memory. GIF frames only hold the rectangle that changed since the frame before, each with its own palette
+ * of the colors used most in it; frames are written to the file in order as they are done.
+ * Erased Circles and undone strokes are left out, as they are from saved designs.
+ *
+ * Usage: --timelapse [-every strokes] [-size pixels] [-delay ms] [-threads n] design output.gif|folder
+ */
+public class TimelapseExporter {
+    private static final String USAGE = "Usage: --timelapse [-every strokes] [-size pixels] [-delay ms] [-threads n] design output.gif|folder";
+    private static final int LAST_FRAME_MILLIS = 2000;              //time the finished design shows before the GIF loops
+    private static final int MAX_CODES = 4096;                      //most LZW codes a GIF allows
+
+    private int threads;                                            //number of frames encoded at once
+    private int strokesPerFrame = 1;                                //strokes drawn between frames
+    private int frameMillis = 100;                                  //time each GIF frame shows
+
+    /** Turns a frame into what is written, made on the drawing thread and run on a worker */
+    private interface FrameEncoder {
+        /**
+         * Copies what the frame needs from the image, which is drawn on again as soon as this returns
+         * @param image the frame as drawn
+         * @param frame number of the frame from 0
+         * @param last flags if it is the last frame
+         * @return work that encodes the copy, returning bytes to write to the output in order or null if none
+         */
+        Callable<byte[]> frame(BufferedImage image, int frame, boolean last);
+    }
+
+    /** @param threads number of frames encoded at once while the next ones are drawn */
+    public TimelapseExporter(int threads){
+        this.threads = threads;
+    }
+
+    /** Creates an exporter encoding on every processor */
+    public TimelapseExporter(){
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @param strokesPerFrame strokes drawn between frames */
+    public void setStrokesPerFrame(int strokesPerFrame){
+        this.strokesPerFrame = strokesPerFrame;
+    }
+
+    /** @param frameMillis time each GIF frame shows, in steps of 10ms */
+    public void setFrameDelay(int frameMillis){
+        this.frameMillis = frameMillis;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        TimelapseExporter exporter = new TimelapseExporter();
+        int size = Design.SIZE;
+        ArrayList<Path> paths = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-every":
+                        exporter.strokesPerFrame = Integer.parseInt(value(args, ++i));
+                        if (exporter.strokesPerFrame < 1)
+                            throw new IllegalArgumentException("-every must be at least 1");
+                        break;
+                    case "-size":
+                        size = Integer.parseInt(value(args, ++i));
+                        if (size < 1 || size > 0xFFFF)
+                            throw new IllegalArgumentException("-size must be from 1 to 65535");
+                        break;
+                    case "-delay":
+                        exporter.frameMillis = Integer.parseInt(value(args, ++i));
+                        if (exporter.frameMillis < 0)
+                            throw new IllegalArgumentException("-delay must not be negative");
+                        break;
+                    case "-threads":
+                        exporter.threads = Integer.parseInt(value(args, ++i));
+                        if (exporter.threads < 1)
+                            throw new IllegalArgumentException("-threads must be at least 1");
+                        break;
+                    default:
+                        paths.add(Paths.get(args[i]));
+                }
+            }
+            if (paths.size() != 2)
+                throw new IllegalArgumentException("Give one design file and where to write the timelapse");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            List<Design> designs = DesignFile.read(paths.get(0)).getVisibleDesigns();
+            Path out = paths.get(1);
+            long start = System.nanoTime();
+            int frames = out.toString().endsWith(".gif") ? exporter.exportGif(designs, size, out)
+                    : exporter.exportFrames(designs, size, out);
+            System.out.printf("Wrote %d frames to %s in %.2f s%n", frames, out, (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.err.println("Could not export the timelapse: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static String value(String[] args, int i){
+        if (i >= args.length)
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    /**
+     * Writes the timelapse to an animated GIF file. The file is written next to the old one and moved over it once
+     * done, so a failed export does not lose the old file
+     * @param designs designs to draw from the bottom up, which must not change while they are drawn
+     * @param size width and height of the frames
+     * @param file file to write
+     * @return number of frames written
+     * @throws IOException if the file could not be written
+     */
+    public int exportGif(List<Design> designs, int size, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int frames;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+            frames = writeGif(designs, size, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        return frames;
+    }
+
+    /**
+     * Writes the timelapse to a stream as an animated GIF, looping forever
+     * @param designs designs to draw from the bottom up, which must not change while they are drawn
+     * @param size width and height of the frames
+     * @param out stream to write to, left open
+     * @return number of frames written
+     * @throws IOException if the stream could not be written
+     */
+    public int writeGif(List<Design> designs, int size, OutputStream out) throws IOException {
+        if (size > 0xFFFF)
+            throw new IllegalArgumentException("GIF images are at most 65535 pixels across");
+        byte[] header = {'G', 'I', 'F', '8', '9', 'a', 0, 0, 0, 0, 0, 0, 0};
+        putShort(header, 6, size);
+        putShort(header, 8, size);
+        out.write(header);
+        //NETSCAPE2.0 extension, looping forever
+        out.write(new byte[]{0x21, (byte) 0xFF, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1, 0, 0, 0});
+
+        //the last frame as encoded, so the next only needs the rectangle that changed since
+        int[] previous = new int[size * size];
+        int frames = walk(designs, size, out, (image, frame, last) -> {
+            int[] pixels = StampRasterizer.pixels(image);
+            int left = size, top = size, right = -1, bottom = -1;
+            for (int y = 0; y < size; y++) {
+                for (int x = 0, at = y * size; x < size; x++, at++) {
+                    if (frame == 0 || pixels[at] != previous[at]) {
+                        if (x < left) left = x;
+                        if (x > right) right = x;
+                        top = Math.min(top, y);
+                        bottom = y;
+                    }
+                }
+            }
+            //a frame with nothing new still shows for its time, as a pixel of the last one
+            if (right < 0)
+                left = right = top = bottom = 0;
+            int width = right - left + 1, height = bottom - top + 1;
+            int[] changed = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                int from = (top + y) * size + left;
+                System.arraycopy(pixels, from, changed, y * width, width);
+                System.arraycopy(pixels, from, previous, from, width);
+            }
+            int x = left, y = top, millis = last ? Math.max(frameMillis, LAST_FRAME_MILLIS) : frameMillis;
+            return () -> encodeGifFrame(changed, x, y, width, height, millis);
+        });
+        out.write(0x3B);
+        out.flush();
+        return frames;
+    }
+
+    /**
+     * Writes the timelapse to a folder as PNG images named frame00000.png, frame00001.png and so on
+     * @param designs designs to draw from the bottom up, which must not change while they are drawn
+     * @param size width and height of the frames
+     * @param dir folder to write to, made if it is missing
+     * @return number of frames written
+     * @throws IOException if a frame could not be written
+     */
+    public int exportFrames(List<Design> designs, int size, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return walk(designs, size, null, (image, frame, last) -> {
+            BufferedImage copy = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = StampRasterizer.pixels(image);
+            System.arraycopy(pixels, 0, StampRasterizer.pixels(copy), 0, pixels.length);
+            Path file = dir.resolve(String.format("frame%05d.png", frame));
+            return () -> {
+                ImageIO.write(copy, "png", file.toFile());
+                return null;
+            };
+        });
+    }
+
+    /**
+     * Draws the strokes in order, handing the image to the encoder every few strokes and after the last,
+     * and writes what the encoders return in frame order
+     * @return number of frames
+     */
+    private int walk(List<Design> designs, int size, OutputStream out, FrameEncoder encoder) throws IOException {
+        int total = 0;
+        for (Design design : designs)
+            total += design.getStrokes().strokeCount();
+        int frames = Math.max(1, (total + strokesPerFrame - 1) / strokesPerFrame);
+
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        SectorRenderer renderer = new SectorRenderer(image);
+        renderer.clear();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Timelapse export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        try {
+            int frame = 0, drawn = 0;
+            for (Design design : designs) {
+                StrokeStore strokes = design.getStrokes();
+                renderer.setLineCount(design.getLineCount());
+                for (int stroke = 0; stroke < strokes.strokeCount(); stroke++) {
+                    renderer.drawStroke(strokes, stroke);
+                    if (++drawn % strokesPerFrame == 0 && drawn < total)
+                        submit(pool, inFlight, encoder.frame(image, frame++, false), out);
+                }
+            }
+            submit(pool, inFlight, encoder.frame(image, frame, true), out);
+            while (!inFlight.isEmpty())
+                write(inFlight.remove().get(), out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Could not encode a frame: " + e.getCause(), e.getCause());
+        } finally {
+            for (Future<byte[]> left : inFlight)
+                left.cancel(true);
+            pool.shutdown();
+        }
+        return frames;
+    }
+
+    /** Starts encoding a frame, first writing out the oldest frames while a few per thread are already in flight */
+    private void submit(ExecutorService pool, ArrayDeque<Future<byte[]>> inFlight, Callable<byte[]> work, OutputStream out)
+            throws IOException, InterruptedException, ExecutionException {
+        while (inFlight.size() >= threads * 2)
+            write(inFlight.remove().get(), out);
+        inFlight.add(pool.submit(work));
+    }
+
+    private static void write(byte[] bytes, OutputStream out) throws IOException {
+        if (bytes != null)
+            out.write(bytes);
+    }
+
+    /**
+     * Encodes a GIF frame: its graphic control extension, image descriptor, color table and LZW compressed pixels.
+     * The palette is the colors used most, each channel cut to 5 bits, and other colors take the nearest of them
+     * @param pixels RGB pixels of the rectangle
+     * @return the bytes of the frame
+     */
+    private static byte[] encodeGifFrame(int[] pixels, int left, int top, int width, int height, int millis){
+        //counts each 15 bit color, adding up the full colors so each palette entry is the average of its pixels
+        int[] counts = new int[1 << 15];
+        long[] sums = new long[(1 << 15) * 3];
+        for (int pixel : pixels) {
+            int bin = bin(pixel);
+            counts[bin]++;
+            sums[bin * 3] += pixel >> 16 & 0xFF;
+            sums[bin * 3 + 1] += pixel >> 8 & 0xFF;
+            sums[bin * 3 + 2] += pixel & 0xFF;
+        }
+        int used = 0;
+        long[] byCount = new long[1 << 15];
+        for (int bin = 0; bin < counts.length; bin++) {
+            if (counts[bin] > 0)
+                byCount[used++] = (long) counts[bin] << 15 | bin;
+        }
+        Arrays.sort(byCount, 0, used);
+        int colors = Math.min(used, 256);
+        int bits = 1;
+        while (1 << bits < colors)
+            bits++;
+        byte[] table = new byte[3 << bits];
+        int[] index = new int[1 << 15];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < colors; i++) {
+            int bin = (int) (byCount[used - 1 - i] & 0x7FFF);
+            index[bin] = i;
+            for (int channel = 0; channel < 3; channel++)
+                table[i * 3 + channel] = (byte) (sums[bin * 3 + channel] / counts[bin]);
+        }
+        //the rarer colors take the nearest entry
+        for (int i = colors; i < used; i++) {
+            int bin = (int) (byCount[used - 1 - i] & 0x7FFF), best = 0;
+            int r = (bin >> 10) << 3, g = (bin >> 5 & 0x1F) << 3, b = (bin & 0x1F) << 3;
+            long bestDistance = Long.MAX_VALUE;
+            for (int entry = 0; entry < colors; entry++) {
+                int dr = r - (table[entry * 3] & 0xFF), dg = g - (table[entry * 3 + 1] & 0xFF), db = b - (table[entry * 3 + 2] & 0xFF);
+                long distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = entry;
+                }
+            }
+            index[bin] = best;
+        }
+
+        ByteArrayBuilder out = new ByteArrayBuilder(pixels.length / 2 + table.length + 64);
+        int delay = Math.min(0xFFFF, (millis + 5) / 10);
+        //graphic control extension, leaving the frame in place for the next to be drawn over
+        out.add(0x21).add(0xF9).add(4).add(1 << 2).add(delay & 0xFF).add(delay >> 8).add(0).add(0);
+        out.add(0x2C).addShort(left).addShort(top).addShort(width).addShort(height).add(0x80 | (bits - 1));
+        out.add(table, 0, table.length);
+        int minCodeSize = Math.max(2, bits);
+        out.add(minCodeSize);
+        compress(pixels, index, minCodeSize, out);
+        return out.toArray();
+    }
+
+    /** LZW compresses the palette indices of the pixels into GIF data sub-blocks, ended by an empty one */
+    private static void compress(int[] pixels, int[] index, int minCodeSize, ByteArrayBuilder out){
+        int clear = 1 << minCodeSize, end = clear + 1;
+        //codes of the strings seen, keyed by the code of the string less its last index and that index
+        int hashSize = 5003;
+        int[] keys = new int[hashSize], codes = new int[hashSize];
+        Arrays.fill(keys, -1);
+        int next = clear + 2, codeSize = minCodeSize + 1;
+        BitWriter bits = new BitWriter(out);
+        bits.write(clear, codeSize);
+        int prefix = index[bin(pixels[0])];
+        for (int i = 1; i < pixels.length; i++) {
+            int k = index[bin(pixels[i])];
+            int key = prefix << 8 | k;
+            int slot = (key * 31 + k) % hashSize;
+            while (keys[slot] != -1 && keys[slot] != key)
+                slot = slot + 1 == hashSize ? 0 : slot + 1;
+            if (keys[slot] == key) {
+                prefix = codes[slot];
+                continue;
+            }
+            bits.write(prefix, codeSize);
+            if (next < MAX_CODES) {
+                keys[slot] = key;
+                codes[slot] = next++;
+                //the decoder widens its codes one code later than the encoder adds them
+                if (next > 1 << codeSize)
+                    codeSize++;
+            } else {
+                bits.write(clear, codeSize);
+                Arrays.fill(keys, -1);
+                next = clear + 2;
+                codeSize = minCodeSize + 1;
+            }
+            prefix = k;
+        }
+        bits.write(prefix, codeSize);
+        bits.write(end, codeSize);
+        bits.finish();
+    }
+
+    /** @return the 15 bit color of a pixel, 5 bits a channel */
+    private static int bin(int pixel){
+        return (pixel >> 9 & 0x7C00) | (pixel >> 6 & 0x3E0) | (pixel >> 3 & 0x1F);
+    }
+
+    /** Packs codes least significant bit first into sub-blocks of up to 255 bytes */
+    private static class BitWriter {
+        private final ByteArrayBuilder out;
+        private final byte[] block = new byte[255];
+        private int blockLength;
+        private int bits, bitCount;
+
+        BitWriter(ByteArrayBuilder out){
+            this.out = out;
+        }
+
+        void write(int code, int size){
+            bits |= code << bitCount;
+            bitCount += size;
+            while (bitCount >= 8) {
+                put(bits);
+                bits >>>= 8;
+                bitCount -= 8;
+            }
+        }
+
+        private void put(int b){
+            block[blockLength++] = (byte) b;
+            if (blockLength == block.length) {
+                out.add(blockLength).add(block, 0, blockLength);
+                blockLength = 0;
+            }
+        }
+
+        void finish(){
+            if (bitCount > 0)
+                put(bits);
+            if (blockLength > 0)
+                out.add(blockLength).add(block, 0, blockLength);
+            out.add(0);
+        }
+    }
+
+    /** A growing array of bytes */
+    private static class ByteArrayBuilder {
+        private byte[] bytes;
+        private int length;
+
+        ByteArrayBuilder(int capacity){
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        ByteArrayBuilder add(int b){
+            if (length == bytes.length)
+                bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) b;
+            return this;
+        }
+
+        ByteArrayBuilder addShort(int value){
+            return add(value & 0xFF).add(value >> 8 & 0xFF);
+        }
+
+        ByteArrayBuilder add(byte[] from, int offset, int count){
+            if (length + count > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            System.arraycopy(from, offset, bytes, length, count);
+            length += count;
+            return this;
+        }
+
+        byte[] toArray(){
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static void putShort(byte[] bytes, int at, int value){
+        bytes[at] = (byte) value;
+        bytes[at + 1] = (byte) (value >> 8);
+    }
+}
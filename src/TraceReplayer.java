@@ -0,0 +1,179 @@
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays input traces recorded by InputTrace back into a Canvas without a window, and reports how long the canvas took
+ * over each kind of event. Events are handed to the event thread one at a time, like the mouse and controls hand them,
+ * either at the times they were recorded or each as soon as the last is done.
+ * At the recorded times the report also shows how far behind the recording each event was handled, which is the lag
+ * the user would have seen. Drags are drawn together once a frame like the mouse's, -fps frames a second, and the report
+ * shows how long each frame took and how many drags it drew. Played as fast as possible each drag is drawn as it comes,
+ * unless -fps is given. Every trace starts on a new canvas.
+ *
+ * Usage: --replay [-fast] [-fps n] [-repeat n] [-size pixels] [-mode serial|tiled|stamp|wedge] [-out image.png] traces...
+ */
+public class TraceReplayer {
+    private static final String USAGE = "Usage: --replay [-fast] [-fps n] [-repeat n] [-size pixels] [-mode serial|tiled|stamp|wedge] [-out image.png] traces...";
+
+    private boolean fast;                                           //flags if events are played as fast as possible rather than at their times
+    private int fps = -1;                                           //times a second drags are drawn, 0 for each as it comes, -1 until chosen
+    private int repeat = 1;                                         //number of times each trace is played
+    private int size = Design.SIZE;                                 //width and height of the canvas
+    private RenderMode renderMode = RenderMode.SERIAL;
+    private Path out;                                               //image the last canvas is written to, null if none
+    private ArrayList<Path> traces = new ArrayList<>();
+    private LatencyHistogram[] handling = new LatencyHistogram[InputTrace.kinds()];//time the canvas took over each kind of event
+    private LatencyHistogram lag = new LatencyHistogram();          //time from when each event was recorded to when it was handled
+    private Canvas canvas;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        TraceReplayer replayer = new TraceReplayer();
+        try {
+            replayer.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            replayer.run();
+        } catch (IOException | InvocationTargetException e) {
+            System.err.println("Replay failed: " + (e instanceof InvocationTargetException ? e.getCause() : e.getMessage()));
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /** Reads the command line options */
+    private void parse(String[] args){
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-fast":
+                    fast = true;
+                    break;
+                case "-fps":
+                    fps = Integer.parseInt(value(args, ++i));
+                    if (fps < 0)
+                        throw new IllegalArgumentException("-fps must be at least 0");
+                    break;
+                case "-repeat":
+                    repeat = Integer.parseInt(value(args, ++i));
+                    if (repeat < 1)
+                        throw new IllegalArgumentException("-repeat must be at least 1");
+                    break;
+                case "-size":
+                    size = Integer.parseInt(value(args, ++i));
+                    if (size < 1)
+                        throw new IllegalArgumentException("-size must be at least 1");
+                    break;
+                case "-mode":
+                    renderMode = RenderMode.valueOf(value(args, ++i).toUpperCase());
+                    break;
+                case "-out":
+                    out = Paths.get(value(args, ++i));
+                    break;
+                default:
+                    traces.add(Paths.get(args[i]));
+            }
+        }
+        if (traces.isEmpty())
+            throw new IllegalArgumentException("No traces given");
+        //drawn as they come, a trace played as fast as possible draws the same each time rather than as the timer fires
+        if (fps < 0)
+            fps = fast ? 0 : Integer.getInteger("doily.fps", 60);
+    }
+
+    private static String value(String[] args, int i){
+        if (i >= args.length)
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    /** Plays every trace and prints the report */
+    private void run() throws IOException, InvocationTargetException, InterruptedException {
+        for (int kind = 0; kind < handling.length; kind++)
+            handling[kind] = new LatencyHistogram();
+        Metrics.DRAW_FRAME.reset();
+        Metrics.SAMPLES_PER_FRAME.reset();
+        long events = 0, start = System.nanoTime();
+        for (Path trace : traces) {
+            List<InputTrace.Event> read = InputTrace.read(trace);
+            for (int i = 0; i < repeat; i++) {
+                play(read);
+                events += read.size();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Replayed %d events from %d traces in %.2f s%s, %.0f events/sec%n", events, traces.size(), seconds,
+                fast ? " as fast as possible" : " at the recorded times", events / seconds);
+        System.out.println("Time taken per event, in ms:");
+        LatencyHistogram all = new LatencyHistogram();
+        for (int kind = 0; kind < handling.length; kind++) {
+            if (handling[kind].getCount() > 0)
+                System.out.println(String.format("  %-13s", InputTrace.name(kind)) + report(handling[kind], 1e6));
+        }
+        if (Metrics.DRAW_FRAME.getCount() > 0) {
+            System.out.println("Frames of drags drawn at " + fps + " a second:");
+            System.out.println(String.format("  %-13s", "ms") + report(Metrics.DRAW_FRAME, 1e6));
+            System.out.println(String.format("  %-13s", "drags") + report(Metrics.SAMPLES_PER_FRAME, 1));
+        }
+        if (!fast)
+            System.out.println("Time behind the recording, in ms:\n  " + String.format("%-13s", "all") + report(lag, 1e6));
+
+        if (out != null) {
+            SwingUtilities.invokeAndWait(() -> {
+                try {
+                    ImageIO.write(canvas.snapshot(), "png", out.toFile());
+                } catch (IOException e) {
+                    System.err.println("Could not write " + out + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /** Plays one trace on a new canvas */
+    private void play(List<InputTrace.Event> events) throws InvocationTargetException, InterruptedException {
+        SwingUtilities.invokeAndWait(() -> {
+            canvas = new Canvas(null);
+            canvas.setRenderMode(renderMode);
+            canvas.setFrameRate(fps);
+            //the canvas fits the design to its new size when the resize event comes round, before the first event is played
+            canvas.setSize(size, size);
+        });
+        long start = System.nanoTime();
+        for (InputTrace.Event event : events) {
+            long due = start + event.timeNanos;
+            if (!fast) {
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime())
+                    LockSupport.parkNanos(wait);
+            }
+            SwingUtilities.invokeAndWait(() -> {
+                long handled = System.nanoTime();
+                InputTrace.apply(canvas, event);
+                long done = System.nanoTime();
+                handling[event.kind].record(done - handled);
+                if (!fast)
+                    lag.record(done - due);
+            });
+        }
+        //a redraw still running on the render thread would otherwise be lost with the canvas, or missing from the image
+        SwingUtilities.invokeAndWait(() -> canvas.updateSectors());
+    }
+
+    /** @return the count and percentiles of a histogram, its values divided by a scale */
+    private static String report(LatencyHistogram histogram, double scale){
+        return String.format("n=%-7d p50=%-8.3f p90=%-8.3f p99=%-8.3f max=%.3f", histogram.getCount(), histogram.percentile(0.5) / scale,
+                histogram.percentile(0.9) / scale, histogram.percentile(0.99) / scale, histogram.getMax() / scale);
+    }
+}
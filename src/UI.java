@@ -1,14 +1,26 @@
 import javax.swing.*;
 import javax.swing.border.LineBorder;
 import javax.swing.colorchooser.AbstractColorChooserPanel;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.ItemEvent;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Hashtable;
+import java.util.List;
 
 public class UI extends JFrame{
     private Gallery gallery;
     private Canvas canvas;
+    private JComboBox<String> layerList;                            //names of the layers from the top down, to select one
+    private JCheckBox layerVisibleBox;                              //shows or hides the selected layer
+    private JToggleButton reflectPointsBtn;                         //reflect setting of the selected layer
+    private JSlider sectorCount;                                    //number of sectors of the selected layer
+    private boolean listingLayers;                                  //flags if the layer list is being filled, not changed by the user
+    private InputTrace.Recorder recorder;                           //trace being recorded, null if none
 
     public void init() {
         //create main frame
@@ -34,7 +46,59 @@ public class UI extends JFrame{
         JButton redoBtn = new JButton("Redo");
         redoBtn.addActionListener(e ->  canvas.redo());
 
-        JToggleButton reflectPointsBtn = new JToggleButton("Reflect Points");
+        JFileChooser designChooser = new JFileChooser();
+        designChooser.setFileFilter(new FileNameExtensionFilter("Doily designs", DesignFile.EXTENSION.substring(1)));
+        JButton saveDesignBtn = new JButton("Save Design");
+        saveDesignBtn.addActionListener(e -> {
+            if (designChooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+                return;
+            Path file = designChooser.getSelectedFile().toPath();
+            if (!file.toString().endsWith(DesignFile.EXTENSION))
+                file = file.resolveSibling(file.getFileName() + DesignFile.EXTENSION);
+            try {
+                canvas.saveDesign(file);
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(frame, "Could not save the design: " + ex.getMessage());
+            }
+        });
+
+        JFileChooser exportChooser = new JFileChooser();
+        exportChooser.setFileFilter(new FileNameExtensionFilter("PNG images", "png"));
+        JButton exportBtn = new JButton("Export");
+        exportBtn.addActionListener(e -> {
+            Object size = JOptionPane.showInputDialog(frame, "Width and height in pixels", "Export",
+                    JOptionPane.PLAIN_MESSAGE, null, new Object[]{"4000", "8000", "16000"}, "8000");
+            if (size == null || exportChooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+                return;
+            Path file = exportChooser.getSelectedFile().toPath();
+            if (!file.toString().endsWith(".png"))
+                file = file.resolveSibling(file.getFileName() + ".png");
+            Path png = file;
+            List<Design> designs = canvas.getVisibleDesigns();
+            int pixels = Integer.parseInt(size.toString());
+            exportInBackground(() -> new StripExporter().export(designs, pixels, png), "the image", frame, exportBtn);
+        });
+
+        //animated GIF of the visible layers being drawn, a few strokes a frame
+        JFileChooser timelapseChooser = new JFileChooser();
+        timelapseChooser.setFileFilter(new FileNameExtensionFilter("GIF animations", "gif"));
+        JButton timelapseBtn = new JButton("Timelapse");
+        timelapseBtn.addActionListener(e -> {
+            Object every = JOptionPane.showInputDialog(frame, "Strokes drawn each frame", "Timelapse",
+                    JOptionPane.PLAIN_MESSAGE, null, new Object[]{"1", "5", "20"}, "5");
+            if (every == null || timelapseChooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+                return;
+            Path file = timelapseChooser.getSelectedFile().toPath();
+            if (!file.toString().endsWith(".gif"))
+                file = file.resolveSibling(file.getFileName() + ".gif");
+            Path gif = file;
+            List<Design> designs = canvas.getVisibleDesigns();
+            TimelapseExporter exporter = new TimelapseExporter();
+            exporter.setStrokesPerFrame(Integer.parseInt(every.toString()));
+            exportInBackground(() -> exporter.exportGif(designs, Design.SIZE, gif), "the timelapse", frame, timelapseBtn);
+        });
+
+        reflectPointsBtn = new JToggleButton("Reflect Points");
         reflectPointsBtn.addItemListener(e -> {
             if (e.getStateChange() == ItemEvent.SELECTED) {
                 canvas.setReflected(true);
@@ -65,7 +129,7 @@ public class UI extends JFrame{
         brushSize.setPaintLabels(true);
 
         Integer lineMax = 20;
-        JSlider sectorCount = new JSlider(JSlider.HORIZONTAL, 1, lineMax, 1);
+        sectorCount = new JSlider(JSlider.HORIZONTAL, 1, lineMax, 1);
         sectorCount.addChangeListener(e -> { canvas.setLineCount(sectorCount.getValue());
                                                 sectorLines.setLineCount(sectorCount.getValue());});
         sectorCount.setMajorTickSpacing(1);
@@ -77,6 +141,62 @@ public class UI extends JFrame{
         sectorCount.setLabelTable( sectorLabels );
         sectorCount.setPaintLabels(true);
 
+        JButton openDesignBtn = new JButton("Open Design");
+        openDesignBtn.addActionListener(e -> {
+            if (designChooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+                return;
+            try {
+                canvas.open(designChooser.getSelectedFile().toPath());
+                //the canvas already uses the selected layer's settings, so these only update the controls
+                reflectPointsBtn.setSelected(canvas.isReflected());
+                sectorCount.setValue(Math.max(1, canvas.getLineCount()));
+                listLayers();
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(frame, "Could not open the design: " + ex.getMessage());
+            }
+        });
+
+        //Layers, listed from the top down like they are stacked on the canvas
+        layerList = new JComboBox<>();
+        layerVisibleBox = new JCheckBox("Visible", true);
+        layerList.addActionListener(e -> {
+            if (listingLayers || layerList.getSelectedIndex() < 0)
+                return;
+            canvas.selectLayer(canvas.getLayerCount() - 1 - layerList.getSelectedIndex());
+            //the controls show the settings of the layer selected
+            reflectPointsBtn.setSelected(canvas.isReflected());
+            sectorCount.setValue(Math.max(1, canvas.getLineCount()));
+            listLayers();
+        });
+        layerVisibleBox.addActionListener(e -> canvas.setLayerVisible(canvas.getSelectedLayer(), layerVisibleBox.isSelected()));
+        JButton addLayerBtn = new JButton("Add Layer");
+        addLayerBtn.addActionListener(e -> {
+            canvas.selectLayer(canvas.addLayer());
+            listLayers();
+        });
+        JButton removeLayerBtn = new JButton("Delete Layer");
+        removeLayerBtn.addActionListener(e -> {
+            canvas.removeLayer();
+            reflectPointsBtn.setSelected(canvas.isReflected());
+            sectorCount.setValue(Math.max(1, canvas.getLineCount()));
+            listLayers();
+        });
+        JButton layerUpBtn = new JButton("Up");
+        layerUpBtn.addActionListener(e -> {
+            int selected = canvas.getSelectedLayer();
+            if (selected < canvas.getLayerCount() - 1)
+                canvas.moveLayer(selected, selected + 1);
+            listLayers();
+        });
+        JButton layerDownBtn = new JButton("Down");
+        layerDownBtn.addActionListener(e -> {
+            int selected = canvas.getSelectedLayer();
+            if (selected > 0)
+                canvas.moveLayer(selected, selected - 1);
+            listLayers();
+        });
+        listLayers();
+
         //Colour Palette
         AbstractColorChooserPanel colorPalette = new JColorChooser().getChooserPanels()[0];
         colorPalette.getColorSelectionModel().addChangeListener(e -> canvas.setBrushColor(colorPalette.getColorSelectionModel().getSelectedColor()));
@@ -103,6 +223,58 @@ public class UI extends JFrame{
         JPanel paintBox = new JPanel();
         paintBox.add(colorPalettePanel);
 
+        //records everything done to the canvas to a trace, which can be played back with --replay
+        JFileChooser traceChooser = new JFileChooser();
+        traceChooser.setFileFilter(new FileNameExtensionFilter("Input traces", "trace"));
+        JToggleButton recordBtn = new JToggleButton("Record");
+        recordBtn.addActionListener(e -> {
+            if (!recordBtn.isSelected()) {
+                stopRecording();
+                return;
+            }
+            if (traceChooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+                recordBtn.setSelected(false);
+                return;
+            }
+            Path file = traceChooser.getSelectedFile().toPath();
+            if (!file.toString().endsWith(".trace"))
+                file = file.resolveSibling(file.getFileName() + ".trace");
+            try {
+                startRecording(file);
+            } catch (IOException ex) {
+                recordBtn.setSelected(false);
+                JOptionPane.showMessageDialog(frame, "Could not start recording: " + ex.getMessage());
+            }
+        });
+        //-Ddoily.fps=n draws the mouse's drags n times a second, 0 draws each as it comes
+        canvas.setFrameRate(Integer.getInteger("doily.fps", 60));
+
+        //-Ddoily.renderMode=tiled|stamp|wedge redraws the whole design that way instead of one Circle after another
+        String renderMode = System.getProperty("doily.renderMode");
+        if (renderMode != null) {
+            try {
+                canvas.setRenderMode(RenderMode.valueOf(renderMode.toUpperCase()));
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Unknown render mode " + renderMode + ", drawing serially");
+            }
+        }
+
+        //-Ddoily.trace=file records from the start
+        String traceFile = System.getProperty("doily.trace");
+        if (traceFile != null) {
+            try {
+                startRecording(Paths.get(traceFile));
+                recordBtn.setSelected(true);
+            } catch (IOException ex) {
+                System.err.println("Could not record to " + traceFile + ": " + ex.getMessage());
+            }
+        }
+
+        //-Ddoily.session=host:port draws together with everyone else in a session started with --serve
+        String session = System.getProperty("doily.session");
+        if (session != null)
+            joinSession(session, frame);
+
         JPanel sliders = new JPanel();
         sliders.setLayout(new GridLayout(4,1));
         sliders.add(sectorsLabel);
@@ -110,12 +282,19 @@ public class UI extends JFrame{
         sliders.add(brushSize);
 
         JPanel buttonGroup = new JPanel();
-        buttonGroup.setLayout(new GridLayout(2,3));
+        buttonGroup.setLayout(new GridLayout(4,4));
 
         JLayeredPane layeredPane = getLayeredPane();
         sectorLines.setLocation(0, 0);
         layeredPane.add(canvas, Integer.valueOf(1));
         layeredPane.add(sectorLines, Integer.valueOf(2));
+        //the canvas and its lines fill the middle of the window as it is resized
+        layeredPane.addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) {
+                canvas.setSize(layeredPane.getSize());
+                sectorLines.setSize(layeredPane.getSize());
+            }
+        });
 
         //add to panels
         buttonGroup.add(toggleLinesBtn);
@@ -124,6 +303,17 @@ public class UI extends JFrame{
         buttonGroup.add(undoBtn);
         buttonGroup.add(redoBtn);
         buttonGroup.add(eraserBtn);
+        buttonGroup.add(saveDesignBtn);
+        buttonGroup.add(openDesignBtn);
+        buttonGroup.add(exportBtn);
+        buttonGroup.add(timelapseBtn);
+        buttonGroup.add(layerList);
+        buttonGroup.add(layerVisibleBox);
+        buttonGroup.add(layerUpBtn);
+        buttonGroup.add(layerDownBtn);
+        buttonGroup.add(addLayerBtn);
+        buttonGroup.add(removeLayerBtn);
+        buttonGroup.add(recordBtn);
 
         toolbar.add(buttonGroup);
         toolbar.add(paintBox);
@@ -139,10 +329,112 @@ public class UI extends JFrame{
         frame.setLocationRelativeTo(null);
     }
 
-    public void addImage(BufferedImage image){
-        gallery.addImage(image);
+    /** Fills the layer list from the canvas, top layer first, and shows the selected layer's visibility */
+    private void listLayers(){
+        listingLayers = true;
+        layerList.removeAllItems();
+        for (int i = canvas.getLayerCount() - 1; i >= 0; i--)
+            layerList.addItem(canvas.getLayerName(i));
+        layerList.setSelectedIndex(canvas.getLayerCount() - 1 - canvas.getSelectedLayer());
+        layerVisibleBox.setSelected(canvas.isLayerVisible(canvas.getSelectedLayer()));
+        listingLayers = false;
+    }
+
+    /** An export run away from the event thread */
+    private interface Export {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs an export in the background, so the canvas can be used meanwhile
+     * @param export export to run
+     * @param what what is exported, for the error message
+     * @param frame frame to report errors over
+     * @param button button disabled while it runs
+     */
+    private void exportInBackground(Export export, String what, JFrame frame, JButton button){
+        button.setEnabled(false);
+        Thread exporter = new Thread(() -> {
+            String error = null;
+            try {
+                export.run();
+            } catch (IOException ex) {
+                error = ex.getMessage();
+            }
+            String message = error;
+            SwingUtilities.invokeLater(() -> {
+                button.setEnabled(true);
+                if (message != null)
+                    JOptionPane.showMessageDialog(frame, "Could not export " + what + ": " + message);
+            });
+        }, "Export");
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
+    /**
+     * Joins a shared drawing session, so strokes drawn here and by the others show on every canvas
+     * @param address host and port of the session server, as host:port, or host for the default port
+     * @param frame frame to report errors over
+     */
+    private void joinSession(String address, JFrame frame){
+        int colon = address.lastIndexOf(':');
+        try {
+            String host = colon < 0 ? address : address.substring(0, colon);
+            int port = colon < 0 ? SessionServer.DEFAULT_PORT : Integer.parseInt(address.substring(colon + 1));
+            SessionClient client = new SessionClient(host, port, new SessionClient.Listener() {
+                public void received(SessionProtocol.Batch batch){
+                    SwingUtilities.invokeLater(() -> canvas.applyBatch(batch));
+                }
+                public void disconnected(IOException cause){
+                    SwingUtilities.invokeLater(() -> {
+                        canvas.setSession(null);
+                        JOptionPane.showMessageDialog(frame, "Left the drawing session: " + cause.getMessage());
+                    });
+                }
+            });
+            canvas.setSession(client);
+        } catch (IOException | NumberFormatException ex) {
+            JOptionPane.showMessageDialog(frame, "Could not join the drawing session at " + address + ": " + ex.getMessage());
+        }
+    }
+
+    /** Records everything done to the canvas from now on into a new trace file */
+    private void startRecording(Path file) throws IOException {
+        stopRecording();
+        recorder = new InputTrace.Recorder(file);
+        canvas.setRecorder(recorder);
+    }
+
+    /** Finishes the trace being recorded, if any */
+    private void stopRecording(){
+        if (recorder == null)
+            return;
+        canvas.setRecorder(null);
+        try {
+            recorder.close();
+        } catch (IOException ex) {
+            System.err.println("Could not finish the input trace: " + ex.getMessage());
+        }
+        recorder = null;
+    }
+
+    /**
+     * Opens a design saved to the gallery on the canvas, and shows its settings on the controls
+     * @param design snapshot of the layers to open
+     */
+    public void load(Canvas.Snapshot design){
+        canvas.load(design);
+        //the canvas already uses the selected layer's settings, so these only update the controls
+        reflectPointsBtn.setSelected(canvas.isReflected());
+        sectorCount.setValue(Math.max(1, canvas.getLineCount()));
+        listLayers();
+    }
+    /** Shows the line count of the canvas's selected layer on the controls, once the canvas has changed it itself */
+    public void showLineCount(){
+        sectorCount.setValue(Math.max(1, canvas.getLineCount()));
     }
     public void save(){
-        canvas.save();
+        canvas.save(gallery);
     }
 }
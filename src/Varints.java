@@ -0,0 +1,71 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Varints as used by design files, input traces and the session protocol: an unsigned number 7 bits at a time,
+ * low bits first, with the top bit set on all but the last byte, so small numbers take a byte or two.
+ * Signed numbers are zigzagged first so small negative differences stay short too.
+ */
+final class Varints {
+    private Varints(){
+    }
+
+    /** Writes a number to a buffer with room for 5 more bytes */
+    static void put(ByteBuffer buffer, int value){
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @return the number read from a buffer
+     * @throws IllegalArgumentException if it runs past 5 bytes
+     * @throws java.nio.BufferUnderflowException if the buffer ends first
+     */
+    static int get(ByteBuffer buffer){
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    /** Writes a number to a stream */
+    static void write(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * @return the number read from a stream
+     * @throws IOException if it runs past 5 bytes or the stream ends first
+     */
+    static int read(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("varint too long");
+    }
+
+    //maps signed numbers to unsigned ones, 0, -1, 1, -2... to 0, 1, 2, 3...
+    static int zigzag(int value){
+        return (value << 1) ^ (value >> 31);
+    }
+    static int unzigzag(int value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,260 @@
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws Circles over sectors by only drawing the first sector, the wedge between angle 0 and one sector, into a
+ * master image, and filling the rest of the canvas with rotated copies of the wedge.
+ * A design drawn over sectors looks the same after being rotated by a sector, so every canvas pixel can be looked up
+ * in the wedge. A table built once per line count maps each canvas pixel to its point in the wedge, which is read
+ * with bilinear filtering. The wedge is drawn a few pixels wider than a sector so the filtering at the edges of
+ * each copy reads the same paint as the copy next to it, and there are no seams.
+ *
+ * Only the copies of a Circle or polyline that touch the wedge are drawn, usually one or two, so drawing one costs about
+ * the same whatever the line count. Reflected copies are drawn into the wedge like any other copy. A wedge of half
+ * a sector would only be enough if every Circle were reflected, which designs mixing both do not keep to.
+ *
+ * Pixels of the first sector are drawn exactly as SERIAL draws them. Sectors a quarter, half or three quarter turn
+ * from it map pixel for pixel onto the wedge, so they are copied without filtering and match SERIAL to within a few
+ * levels. Every other sector is softened by the filtering where it crosses an antialiased edge: at 20 lines the mean
+ * error against SERIAL is about 0.4 to 0.7 of a level per channel, and single edge pixels can be off by up to about 85.
+ * Reading the nearest pixel instead leaves fewer pixels off but does worse on both counts, so filtering is kept.
+ * Shapes are given in design cords and scaled to fit the square canvas like SectorRenderer does.
+ */
+public class WedgeRenderer {
+    private static final int MARGIN = 2;                            //extra pixels drawn on each side of the wedge
+
+    private int width, height, centerX, centerY;                    //size and centre of the canvas
+    private double scale;                                           //canvas pixels per design cord
+    private boolean premultiplied;                                  //flags if the canvas is TYPE_INT_ARGB_PRE, so the master keeps alpha too
+    private int masterCentre;                                       //the canvas centre lies at this x and y of the master
+    private int masterSize;                                         //width and height of the master
+    private BufferedImage master;                                   //holds the wedge, large enough for the canvas corners turned into it
+    private int[] masterPixels;
+    private Graphics2D masterGraphics;
+    private SectorTransforms sectors = SectorTransforms.forLineCount(0);
+    private double incrAngle;                                       //angle of one sector
+    private int[] sourceX, sourceY;                                 //point of each canvas pixel in the master, in 1/256ths of a pixel
+    private boolean stale;                                          //flags if the master no longer matches the canvas
+    private AffineTransform copyTransform = new AffineTransform();
+
+    /**
+     * @param width width of the canvas
+     * @param height height of the canvas
+     * @param premultiplied true if the canvas is a TYPE_INT_ARGB_PRE image rather than TYPE_INT_RGB
+     */
+    public WedgeRenderer(int width, int height, boolean premultiplied){
+        this.width = width;
+        this.height = height;
+        this.premultiplied = premultiplied;
+        centerX = width / 2;
+        centerY = height / 2;
+        scale = width / (double) Design.SIZE;
+        masterCentre = (int) Math.ceil(Math.hypot(Math.max(centerX, width - centerX), Math.max(centerY, height - centerY))) + MARGIN + 2;
+        masterSize = masterCentre * 2;
+        master = new BufferedImage(masterSize, masterSize, premultiplied ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+        masterPixels = StampRasterizer.pixels(master);
+        masterGraphics = master.createGraphics();
+        masterGraphics.setBackground(premultiplied ? new Color(0, true) : Color.white);
+        masterGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        sourceX = new int[width * height];
+        sourceY = new int[width * height];
+        setLineCount(0);
+    }
+
+    /** @return true if the renderer is for a canvas of this size and type */
+    public boolean fits(int width, int height, boolean premultiplied){
+        return this.width == width && this.height == height && this.premultiplied == premultiplied;
+    }
+
+    /**
+     * Builds the table from canvas pixels to the wedge. The master has to be redrawn or resynced afterwards
+     * @param lineCount number of sectors
+     */
+    public void setLineCount(int lineCount){
+        sectors = SectorTransforms.forLineCount(lineCount);
+        incrAngle = lineCount == 0 ? 0 : Math.PI * 2 / lineCount;
+        int offsetX = masterCentre - centerX, offsetY = masterCentre - centerY;
+        for (int y = 0, p = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, p++) {
+                double dx = x + 0.5 - centerX, dy = y + 0.5 - centerY;
+                int sector = lineCount <= 1 ? 0 : (int) (angle(dx, dy) / incrAngle);
+                int turn = lineCount - sector;
+                if (sector <= 0 || sector >= lineCount) {
+                    //the first sector is the wedge itself
+                    sourceX[p] = (x + offsetX) << 8;
+                    sourceY[p] = (y + offsetY) << 8;
+                } else if (turn * 4 % lineCount == 0) {
+                    //a quarter turn takes pixel centres onto pixel centres, so the pixel is found without rounding
+                    int quarters = turn * 4 / lineCount;
+                    int fromX = x - centerX, fromY = y - centerY;
+                    int turnedX = quarters == 1 ? -fromY - 1 : quarters == 2 ? -fromX - 1 : fromY;
+                    int turnedY = quarters == 1 ? fromX : quarters == 2 ? -fromY - 1 : -fromX - 1;
+                    sourceX[p] = (turnedX + masterCentre) << 8;
+                    sourceY[p] = (turnedY + masterCentre) << 8;
+                } else {
+                    //turns the pixel back by its sector, which is the same as turning it on by the rest
+                    sourceX[p] = (int) Math.round((sectors.rotateX(lineCount - sector, dx, dy) + masterCentre - 0.5) * 256);
+                    sourceY[p] = (int) Math.round((sectors.rotateY(lineCount - sector, dx, dy) + masterCentre - 0.5) * 256);
+                }
+            }
+        }
+        stale = true;
+    }
+
+    /** Fills the master with white, or clears it to transparent, to match a canvas that has just been cleared */
+    public void clear(){
+        masterGraphics.clearRect(0, 0, masterSize, masterSize);
+        stale = false;
+    }
+
+    /** Notes that the canvas has been changed other than through this renderer, so the master is read back from it */
+    public void invalidate(){
+        stale = true;
+    }
+
+    /**
+     * Draws the copies of a Circle or polyline that touch the wedge into the master
+     * @param canvas pixels of the canvas, read from if the master has to be resynced first
+     * @param shape shape to draw
+     * @param reflected reflected flag for reflecting in a sector
+     * @param color color of the shape
+     */
+    public void draw(int[] canvas, DabShape shape, boolean reflected, Color color){
+        int lineCount = sectors.lineCount();
+        if (lineCount == 0)
+            return;
+        if (stale)
+            resync(canvas);
+        masterGraphics.setColor(color);
+        double dx = shape.centerX() * scale - centerX, dy = shape.centerY() * scale - centerY;
+        double distance = Math.hypot(dx, dy), reach = shape.reach() * scale + MARGIN + 1;
+        //how far either side of its centre the Circle reaches, as an angle around the canvas centre
+        double spread = distance <= reach ? Math.PI : Math.asin(reach / distance);
+        double angle = angle(dx, dy), reflectedAngle = angle(-dx, dy);
+        for (int i = 1; i <= lineCount; i++) {
+            if (touchesWedge(angle + i * incrAngle, spread))
+                drawCopy(shape, i, false);
+            if (reflected && touchesWedge(reflectedAngle + i * incrAngle, spread))
+                drawCopy(shape, i, true);
+        }
+        copyTransform.setToIdentity();
+        masterGraphics.setTransform(copyTransform);
+    }
+
+    /**
+     * Copies the wedge onto the canvas around every copy of a shape just drawn
+     * @param canvas pixels of the canvas
+     * @param shape shape drawn
+     * @param reflected reflected flag for reflecting in a sector
+     */
+    public void composite(int[] canvas, DabShape shape, boolean reflected){
+        double dx = shape.centerX() * scale - centerX, dy = shape.centerY() * scale - centerY, reach = shape.reach() * scale + MARGIN;
+        for (int i = 1; i <= sectors.lineCount(); i++) {
+            compositeAround(canvas, centerX + sectors.rotateX(i, dx, dy), centerY + sectors.rotateY(i, dx, dy), reach);
+            if (reflected)
+                compositeAround(canvas, centerX + sectors.reflectX(i, dx, dy), centerY + sectors.reflectY(i, dx, dy), reach);
+        }
+    }
+
+    /**
+     * Copies the wedge over the whole canvas
+     * @param canvas pixels of the canvas
+     */
+    public void compositeAll(int[] canvas){
+        if (sectors.lineCount() == 0)
+            return;
+        composite(canvas, 0, 0, width, height);
+    }
+
+    /** Draws copy i of a shape into the master, with the canvas centre moved to the master's centre */
+    private void drawCopy(DabShape shape, int i, boolean reflected){
+        copyTransform.setToTranslation(masterCentre - centerX, masterCentre - centerY);
+        copyTransform.rotate(i * incrAngle, centerX, centerY);
+        if (reflected) {
+            //Translates to the x-axis, reflects over the x-axis and translates back
+            copyTransform.translate(centerX, 0);
+            copyTransform.scale(-1, 1);
+            copyTransform.translate(-centerX, 0);
+        }
+        copyTransform.scale(scale, scale);
+        masterGraphics.setTransform(copyTransform);
+        shape.paint(masterGraphics);
+    }
+
+    /** @return true if a shape whose centre is at an angle, and reaches a spread either side of it, touches the wedge */
+    private boolean touchesWedge(double angle, double spread){
+        if (sectors.lineCount() == 1 || spread >= Math.PI)
+            return true;
+        angle %= Math.PI * 2;
+        return angle <= incrAngle + spread || angle >= Math.PI * 2 - spread;
+    }
+
+    private void compositeAround(int[] canvas, double x, double y, double reach){
+        int left = Math.max(0, (int) Math.floor(x - reach)), top = Math.max(0, (int) Math.floor(y - reach));
+        int right = Math.min(width, (int) Math.ceil(x + reach) + 1), bottom = Math.min(height, (int) Math.ceil(y + reach) + 1);
+        if (left < right && top < bottom)
+            composite(canvas, left, top, right, bottom);
+    }
+
+    /** Looks up every canvas pixel of a rectangle in the master */
+    private void composite(int[] canvas, int left, int top, int right, int bottom){
+        //premultiplied pixels filter the same as opaque ones, with alpha as a fourth channel
+        int lastShift = premultiplied ? 24 : 16;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left, p = y * width + left; x < right; x++, p++) {
+                int fx = sourceX[p], fy = sourceY[p];
+                int source = (fy >> 8) * masterSize + (fx >> 8);
+                int wx = fx & 0xFF, wy = fy & 0xFF;
+                if (wx == 0 && wy == 0) {
+                    canvas[p] = masterPixels[source];
+                } else {
+                    canvas[p] = bilinear(masterPixels[source], masterPixels[source + 1],
+                            masterPixels[source + masterSize], masterPixels[source + masterSize + 1], wx, wy, lastShift);
+                }
+            }
+        }
+    }
+
+    /** Reads the master back from the canvas, turning each master pixel into the canvas when it lies off the canvas */
+    private void resync(int[] canvas){
+        int offsetX = masterCentre - centerX, offsetY = masterCentre - centerY;
+        int lineCount = sectors.lineCount();
+        for (int my = 0; my < masterSize; my++) {
+            for (int mx = 0; mx < masterSize; mx++) {
+                int x = mx - offsetX, y = my - offsetY;
+                if (x >= 0 && x < width && y >= 0 && y < height) {
+                    masterPixels[my * masterSize + mx] = canvas[y * width + x];
+                    continue;
+                }
+                double dx = mx + 0.5 - masterCentre, dy = my + 0.5 - masterCentre;
+                for (int i = 1; i < lineCount; i++) {
+                    int cx = (int) Math.floor(centerX + sectors.rotateX(i, dx, dy));
+                    int cy = (int) Math.floor(centerY + sectors.rotateY(i, dx, dy));
+                    if (cx >= 0 && cx < width && cy >= 0 && cy < height) {
+                        masterPixels[my * masterSize + mx] = canvas[cy * width + cx];
+                        break;
+                    }
+                }
+            }
+        }
+        stale = false;
+    }
+
+    /** @return angle of a point around the centre, from 0 to 2 pi, in the direction the sectors turn */
+    private static double angle(double dx, double dy){
+        double angle = Math.atan2(dy, dx);
+        return angle < 0 ? angle + Math.PI * 2 : angle;
+    }
+
+    /** Mixes four neighbouring pixels by weights out of 256, channel by channel up to the one at lastShift */
+    private static int bilinear(int topLeft, int topRight, int bottomLeft, int bottomRight, int wx, int wy, int lastShift){
+        int result = 0;
+        for (int shift = 0; shift <= lastShift; shift += 8) {
+            int top = ((topLeft >> shift) & 0xFF) * (256 - wx) + ((topRight >> shift) & 0xFF) * wx;
+            int bottom = ((bottomLeft >> shift) & 0xFF) * (256 - wx) + ((bottomRight >> shift) & 0xFF) * wx;
+            result |= ((top * (256 - wy) + bottom * wy + (1 << 15)) >> 16) << shift;
+        }
+        return result;
+    }
+}